@@ -0,0 +1,19 @@
+package be.itlive.common.enums;
+
+/**
+ * What to do with a new task when a bounded queue is full.
+ *
+ * @author vbiertho
+ */
+public enum BackpressurePolicy {
+
+    /** Block the caller until there is room in the queue.*/
+    BLOCK,
+
+    /** Refuse the new task with a {@link java.util.concurrent.RejectedExecutionException}.*/
+    REJECT,
+
+    /** Discard the oldest queued task to make room for the new one.*/
+    DROP_OLDEST;
+
+}
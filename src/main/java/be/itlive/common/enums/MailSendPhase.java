@@ -0,0 +1,25 @@
+package be.itlive.common.enums;
+
+/**
+ * The phases of the sending of a mail, measured by a {@link be.itlive.common.utils.MailMetrics}.
+ *
+ * @author vbiertho
+ */
+public enum MailSendPhase {
+
+    /** Building the MIME message (addresses, body, attachments).*/
+    BUILD,
+
+    /** Computing the headers and transfer encodings of the message.*/
+    ENCODE,
+
+    /** Opening and authenticating a new SMTP connection.*/
+    CONNECT,
+
+    /** Sending the envelope and streaming the encoded message (DATA).*/
+    TRANSFER,
+
+    /** The whole sending, from building to the acceptance by the server.*/
+    TOTAL;
+
+}
@@ -0,0 +1,16 @@
+package be.itlive.common.enums;
+
+/**
+ * How a relay group chooses the SMTP relay of the next mail.
+ *
+ * @author vbiertho
+ */
+public enum RelaySelectionStrategy {
+
+    /** The relay with the fewest mails being sent, the slow relays thus get fewer mails.*/
+    LEAST_OUTSTANDING,
+
+    /** Each relay in turn, proportionally to its weight.*/
+    WEIGHTED_ROUND_ROBIN;
+
+}
@@ -0,0 +1,262 @@
+package be.itlive.common.utils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.BackpressurePolicy;
+
+/**
+ * Sends {@link MailSender} in the background, so the caller does not wait for the SMTP server.
+ * <p>
+ * Mails are queued in a bounded queue and sent by a fixed number of worker threads. When the queue is full, the {@link BackpressurePolicy}
+ * decides whether the caller blocks, is rejected or whether the oldest queued mail is dropped. {@link #shutdown()} stops accepting mails and
+ * lets the workers drain the queue.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * AsyncMailSender async = new AsyncMailSender(1000, 4, BackpressurePolicy.BLOCK);
+ * async.submit(mailSender).whenComplete((mail, error) -&gt; ...);
+ * ...
+ * async.shutdown();
+ * async.awaitTermination(30, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class AsyncMailSender implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncMailSender.class);
+
+    /**
+     * How long an idle worker waits for a mail before checking for shutdown.
+     */
+    private static final long POLL_MILLIS = 200L;
+
+    private final BlockingDeque<Task> queue;
+
+    private final BackpressurePolicy policy;
+
+    private final Thread[] workers;
+
+    private volatile boolean shutdown;
+
+    private volatile MailMetrics metrics = MailMetrics.NOOP;
+
+    /**
+     * @param queueCapacity maximum number of mails waiting to be sent.
+     * @param workerCount number of threads sending mails.
+     * @param policy what to do when the queue is full.
+     */
+    public AsyncMailSender(final int queueCapacity, final int workerCount, final BackpressurePolicy policy) {
+        if (queueCapacity <= 0 || workerCount <= 0) {
+            throw new IllegalArgumentException("queueCapacity and workerCount must be positive");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy cannot be null");
+        }
+        this.queue = new LinkedBlockingDeque<>(queueCapacity);
+        this.policy = policy;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "async-mail-sender-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a mail.
+     * @param mail the mail to send.
+     * @return a future completed with the mail once sent, or with the sending error.
+     * @throws RejectedExecutionException if the sender is shut down, or if the queue is full with {@link BackpressurePolicy#REJECT}.
+     */
+    public CompletableFuture<MailSender> submit(final MailSender mail) {
+        if (mail == null) {
+            throw new NullPointerException("mail cannot be null");
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("AsyncMailSender is shut down");
+        }
+        Task task = new Task(mail);
+        switch (policy) {
+        case BLOCK:
+            try {
+                queue.putLast(task);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the mail queue", e);
+            }
+            break;
+        case REJECT:
+            if (!queue.offerLast(task)) {
+                throw new RejectedExecutionException("Mail queue is full (" + queue.size() + ")");
+            }
+            break;
+        case DROP_OLDEST:
+            while (!queue.offerLast(task)) {
+                Task oldest = queue.pollFirst();
+                if (oldest != null) {
+                    LOGGER.warn("Mail queue is full, dropping mail '{}'", oldest.mail.getSubject());
+                    oldest.future.completeExceptionally(new RejectedExecutionException("Dropped from a full mail queue"));
+                }
+            }
+            break;
+        default:
+            throw new IllegalStateException("Unknown policy " + policy);
+        }
+        // a worker may have stopped between the shutdown check and the enqueue
+        if (shutdown && queue.remove(task)) {
+            throw new RejectedExecutionException("AsyncMailSender is shut down");
+        }
+        metrics.recordQueueDepth(queue.size());
+        return task.future;
+    }
+
+    /**
+     * @return the number of mails waiting to be sent.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the metrics
+     */
+    public MailMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics recording the queue depth, null for none. The phases of the sending are recorded by the metrics of each mail.
+     */
+    public void setMetrics(final MailMetrics metrics) {
+        this.metrics = metrics == null ? MailMetrics.NOOP : metrics;
+    }
+
+    /**
+     * @return the policy
+     */
+    public BackpressurePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Stops accepting mails, the already queued ones are still sent.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Stops accepting mails and cancels the queued ones, mails being sent are not interrupted.
+     * @return the mails which were never sent.
+     */
+    public List<MailSender> shutdownNow() {
+        shutdown = true;
+        List<MailSender> pending = new ArrayList<>();
+        Task task;
+        while ((task = queue.pollFirst()) != null) {
+            task.future.completeExceptionally(new CancellationException("AsyncMailSender shut down"));
+            pending.add(task.mail);
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for the workers to drain the queue after a shutdown.
+     * @param timeout maximum time to wait.
+     * @param unit unit of <code>timeout</code>.
+     * @return true if all workers ended, false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return !isAlive();
+            }
+            worker.join(remaining);
+        }
+        return !isAlive();
+    }
+
+    /**
+     * @return true once shut down and all the queued mails were handled.
+     */
+    public boolean isTerminated() {
+        return shutdown && !isAlive();
+    }
+
+    /**
+     * Shuts down and waits for the queue to be drained.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        try {
+            while (!awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOGGER.debug("Waiting for {} queued mail(s) to be sent", queue.size());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isAlive() {
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void work() {
+        while (!shutdown || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.pollFirst(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task != null) {
+                metrics.recordQueueDepth(queue.size());
+                try {
+                    task.mail.sendMail();
+                    task.future.complete(task.mail);
+                } catch (final Throwable e) {
+                    // an Error too, the future must complete and the worker keep running
+                    LOGGER.error("Error sending mail '{}': {}", task.mail.getSubject(), e.getMessage());
+                    task.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued mail and its future.
+     */
+    private static final class Task {
+
+        private final MailSender mail;
+
+        private final CompletableFuture<MailSender> future = new CompletableFuture<>();
+
+        private Task(final MailSender mail) {
+            this.mail = mail;
+        }
+    }
+}
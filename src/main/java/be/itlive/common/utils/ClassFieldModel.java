@@ -0,0 +1,194 @@
+package be.itlive.common.utils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of a class and of its superclasses, introspected once per class and shared.
+ * <p>
+ * The models are cached in a {@link ClassValue}, which is attached to the class itself: the model of a class of a redeployed application is
+ * collected with its class loader instead of keeping it alive. The model of a class reuses the one of its superclass, so each class of a
+ * hierarchy is introspected only once. All the views are unmodifiable and shared by all the threads; the {@link Field} instances are shared
+ * too, so making one accessible makes it accessible for every caller. The fields bearing each annotation type are indexed at the first
+ * annotation lookup, so later lookups only merge the precomputed positions instead of calling {@link Field#isAnnotationPresent(Class)}.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * for (Field field : ClassFieldModel.of(entity.getClass()).getFields()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public final class ClassFieldModel {
+
+    private static final ClassValue<ClassFieldModel> MODELS = new ClassValue<ClassFieldModel>() {
+
+        @Override
+        protected ClassFieldModel computeValue(final Class<?> type) {
+            return new ClassFieldModel(type);
+        }
+    };
+
+    private static final Field[] NO_FIELDS = new Field[0];
+
+    private static final int[] NO_INDEXES = new int[0];
+
+    private final Class<?> type;
+
+    /**
+     * The declared fields of the class, then the ones of its superclass, and so on.
+     */
+    private final Field[] fields;
+
+    private final List<Field> fieldList;
+
+    private final Map<String, Field> fieldsByName;
+
+    /**
+     * Positions in {@link #fields} of the fields annotated by each annotation type, in ascending order. Built at the first lookup; a race
+     * builds it twice, to the same content.
+     */
+    private volatile Map<Class<? extends Annotation>, int[]> annotationIndex;
+
+    private ClassFieldModel(final Class<?> type) {
+        this.type = type;
+        Field[] declared = type.getDeclaredFields();
+        Field[] inherited = type.getSuperclass() == null ? NO_FIELDS : of(type.getSuperclass()).fields;
+        fields = Arrays.copyOf(declared, declared.length + inherited.length);
+        System.arraycopy(inherited, 0, fields, declared.length, inherited.length);
+        fieldList = Collections.unmodifiableList(Arrays.asList(fields));
+        Map<String, Field> byName = new LinkedHashMap<>();
+        for (Field field : fields) {
+            // a hidden field is replaced by the one of the superclass, as ReflectionUtils.collectFieldsAsMap always did
+            byName.put(field.getName(), field);
+        }
+        fieldsByName = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * @param type a class.
+     * @return the model of the class, computed at the first call.
+     */
+    public static ClassFieldModel of(final Class<?> type) {
+        return MODELS.get(type);
+    }
+
+    /**
+     * @return the class of this model.
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return the fields of the class then of its superclasses, unmodifiable.
+     */
+    public List<Field> getFields() {
+        return fieldList;
+    }
+
+    /**
+     * @return the fields by name, unmodifiable; of two fields with the same name, the one of the superclass is kept.
+     */
+    public Map<String, Field> getFieldsByName() {
+        return fieldsByName;
+    }
+
+    /**
+     * @return the names of the fields, unmodifiable.
+     */
+    public Set<String> getFieldNames() {
+        return fieldsByName.keySet();
+    }
+
+    /**
+     * @param name a field name.
+     * @return the field, null if the class has no field with this name.
+     */
+    public Field getField(final String name) {
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * @param annotations annotation types.
+     * @return the fields annotated by at least one of the annotations, in the order of {@link #getFields()}, unmodifiable.
+     */
+    @SafeVarargs
+    public final List<Field> getAnnotatedFields(final Class<? extends Annotation>... annotations) {
+        Map<Class<? extends Annotation>, int[]> index = getAnnotationIndex();
+        int[] merged = NO_INDEXES;
+        for (Class<? extends Annotation> annotation : annotations) {
+            int[] indexes = index.get(annotation);
+            if (indexes != null) {
+                merged = merged.length == 0 ? indexes : union(merged, indexes);
+            }
+        }
+        if (merged.length == 0) {
+            return Collections.emptyList();
+        }
+        Field[] annotated = new Field[merged.length];
+        for (int i = 0; i < merged.length; i++) {
+            annotated[i] = fields[merged[i]];
+        }
+        return Collections.unmodifiableList(Arrays.asList(annotated));
+    }
+
+    private Map<Class<? extends Annotation>, int[]> getAnnotationIndex() {
+        Map<Class<? extends Annotation>, int[]> index = annotationIndex;
+        if (index == null) {
+            Map<Class<? extends Annotation>, List<Integer>> positions = new HashMap<>();
+            for (int i = 0; i < fields.length; i++) {
+                for (Annotation annotation : fields[i].getDeclaredAnnotations()) {
+                    positions.computeIfAbsent(annotation.annotationType(), k -> new ArrayList<>()).add(i);
+                }
+            }
+            index = new HashMap<>();
+            for (Map.Entry<Class<? extends Annotation>, List<Integer>> entry : positions.entrySet()) {
+                int[] indexes = new int[entry.getValue().size()];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = entry.getValue().get(i);
+                }
+                index.put(entry.getKey(), indexes);
+            }
+            annotationIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the merge of two ascending arrays, without duplicates.
+     */
+    private static int[] union(final int[] a, final int[] b) {
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                merged[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                merged[n++] = b[j++];
+            } else {
+                merged[n++] = a[i++];
+                j++;
+            }
+        }
+        return n == merged.length ? merged : Arrays.copyOf(merged, n);
+    }
+
+    @Override
+    public String toString() {
+        return "ClassFieldModel [type=" + type.getName() + ", fields=" + fields.length + "]";
+    }
+}
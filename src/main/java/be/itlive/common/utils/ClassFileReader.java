@@ -0,0 +1,337 @@
+package be.itlive.common.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the name, access flags, super class, interfaces and class annotations of a class from its class file, without loading the class.
+ * <p>
+ * Only the constant pool, the header and the class attributes are decoded: the fields and methods are skipped. The annotations are the
+ * visible and invisible ones (retention <code>RUNTIME</code> and <code>CLASS</code>). The names are binary names, as returned by
+ * {@link Class#getName()}. Used by the {@link ClassPathScanner} to filter the classes before loading them.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * try (InputStream in = classLoader.getResourceAsStream("be/itlive/app/Customer.class")) {
+ *     ClassFileReader classFile = ClassFileReader.read(in);
+ *     if (classFile.hasAnnotation(Entity.class)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public final class ClassFileReader {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private static final int ACC_ANNOTATION = 0x2000;
+
+    private static final int ACC_ENUM = 0x4000;
+
+    // constant pool tags
+    private static final int UTF8 = 1;
+
+    private static final int INTEGER = 3;
+
+    private static final int FLOAT = 4;
+
+    private static final int LONG = 5;
+
+    private static final int DOUBLE = 6;
+
+    private static final int CLASS = 7;
+
+    private static final int STRING = 8;
+
+    private static final int FIELD_REF = 9;
+
+    private static final int METHOD_REF = 10;
+
+    private static final int INTERFACE_METHOD_REF = 11;
+
+    private static final int NAME_AND_TYPE = 12;
+
+    private static final int METHOD_HANDLE = 15;
+
+    private static final int METHOD_TYPE = 16;
+
+    private static final int DYNAMIC = 17;
+
+    private static final int INVOKE_DYNAMIC = 18;
+
+    private static final int MODULE = 19;
+
+    private static final int PACKAGE = 20;
+
+    private final int accessFlags;
+
+    private final String className;
+
+    private final String superClassName;
+
+    private final List<String> interfaceNames;
+
+    private final List<String> annotationNames;
+
+    private ClassFileReader(final int accessFlags, final String className, final String superClassName, final List<String> interfaceNames,
+            final List<String> annotationNames) {
+        this.accessFlags = accessFlags;
+        this.className = className;
+        this.superClassName = superClassName;
+        this.interfaceNames = interfaceNames;
+        this.annotationNames = annotationNames;
+    }
+
+    /**
+     * @param in the class file, not closed.
+     * @return the metadata of the class.
+     * @throws IOException if the stream can't be read or is not a class file.
+     */
+    public static ClassFileReader read(final InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        // minor and major versions
+        data.readUnsignedShort();
+        data.readUnsignedShort();
+
+        int count = data.readUnsignedShort();
+        // the UTF-8 strings, and for the classes the index of their name
+        String[] utf8 = new String[count];
+        int[] classNameIndexes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = data.readUnsignedByte();
+            switch (tag) {
+                case UTF8:
+                    utf8[i] = data.readUTF();
+                    break;
+                case CLASS:
+                    classNameIndexes[i] = data.readUnsignedShort();
+                    break;
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    skip(data, 2);
+                    break;
+                case METHOD_HANDLE:
+                    skip(data, 3);
+                    break;
+                case INTEGER:
+                case FLOAT:
+                case FIELD_REF:
+                case METHOD_REF:
+                case INTERFACE_METHOD_REF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    skip(data, 4);
+                    break;
+                case LONG:
+                case DOUBLE:
+                    skip(data, 8);
+                    // takes two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag " + tag + " at " + i);
+            }
+        }
+
+        int accessFlags = data.readUnsignedShort();
+        String className = classAt(utf8, classNameIndexes, data.readUnsignedShort());
+        int superIndex = data.readUnsignedShort();
+        String superClassName = superIndex == 0 ? null : classAt(utf8, classNameIndexes, superIndex);
+        String[] interfaces = new String[data.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = classAt(utf8, classNameIndexes, data.readUnsignedShort());
+        }
+
+        // fields then methods
+        for (int members = 0; members < 2; members++) {
+            int memberCount = data.readUnsignedShort();
+            for (int i = 0; i < memberCount; i++) {
+                // access flags, name and descriptor
+                skip(data, 6);
+                skipAttributes(data);
+            }
+        }
+
+        List<String> annotations = new ArrayList<>();
+        int attributeCount = data.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++) {
+            String name = utf8[data.readUnsignedShort()];
+            int length = data.readInt();
+            if ("RuntimeVisibleAnnotations".equals(name) || "RuntimeInvisibleAnnotations".equals(name)) {
+                int annotationCount = data.readUnsignedShort();
+                for (int j = 0; j < annotationCount; j++) {
+                    annotations.add(readAnnotation(data, utf8));
+                }
+            } else {
+                skip(data, length);
+            }
+        }
+
+        return new ClassFileReader(accessFlags, className, superClassName, Collections.unmodifiableList(Arrays.asList(interfaces)),
+                Collections.unmodifiableList(annotations));
+    }
+
+    /**
+     * @return the access flags of the class, see {@link Modifier}.
+     */
+    public int getAccessFlags() {
+        return accessFlags;
+    }
+
+    /**
+     * @return the binary name of the class.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return the binary name of the super class, null for {@link Object} and the module descriptors.
+     */
+    public String getSuperClassName() {
+        return superClassName;
+    }
+
+    /**
+     * @return the binary names of the interfaces directly implemented, unmodifiable.
+     */
+    public List<String> getInterfaceNames() {
+        return interfaceNames;
+    }
+
+    /**
+     * @return the binary names of the annotations of the class, unmodifiable.
+     */
+    public List<String> getAnnotationNames() {
+        return annotationNames;
+    }
+
+    /**
+     * @param annotation an annotation type.
+     * @return true if the class is annotated with it, inherited annotations excepted.
+     */
+    public boolean hasAnnotation(final Class<? extends Annotation> annotation) {
+        return annotationNames.contains(annotation.getName());
+    }
+
+    /**
+     * @return true for the interfaces, annotation types included.
+     */
+    public boolean isInterface() {
+        return (accessFlags & ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return true for the annotation types.
+     */
+    public boolean isAnnotation() {
+        return (accessFlags & ACC_ANNOTATION) != 0;
+    }
+
+    /**
+     * @return true for the enums.
+     */
+    public boolean isEnum() {
+        return (accessFlags & ACC_ENUM) != 0;
+    }
+
+    /**
+     * @return true for the abstract classes and the interfaces.
+     */
+    public boolean isAbstract() {
+        return Modifier.isAbstract(accessFlags);
+    }
+
+    @Override
+    public String toString() {
+        return "ClassFileReader [className=" + className + ", superClassName=" + superClassName + ", interfaceNames=" + interfaceNames
+                + ", annotationNames=" + annotationNames + "]";
+    }
+
+    private static String classAt(final String[] utf8, final int[] classNameIndexes, final int index) throws IOException {
+        if (index <= 0 || index >= classNameIndexes.length || classNameIndexes[index] == 0) {
+            throw new IOException("Invalid class reference " + index);
+        }
+        return utf8[classNameIndexes[index]].replace('/', '.');
+    }
+
+    /**
+     * Reads an annotation, skipping its values.
+     * @return the binary name of its type.
+     */
+    private static String readAnnotation(final DataInputStream data, final String[] utf8) throws IOException {
+        String descriptor = utf8[data.readUnsignedShort()];
+        int pairCount = data.readUnsignedShort();
+        for (int i = 0; i < pairCount; i++) {
+            // element name
+            skip(data, 2);
+            skipElementValue(data, utf8);
+        }
+        // Lbe/itlive/Type; to be.itlive.Type
+        return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+    }
+
+    private static void skipElementValue(final DataInputStream data, final String[] utf8) throws IOException {
+        int tag = data.readUnsignedByte();
+        switch (tag) {
+            case 'e':
+                // enum type and constant name
+                skip(data, 4);
+                break;
+            case '@':
+                readAnnotation(data, utf8);
+                break;
+            case '[':
+                int count = data.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    skipElementValue(data, utf8);
+                }
+                break;
+            default:
+                // constant or class index: B C D F I J S Z s c
+                skip(data, 2);
+        }
+    }
+
+    private static void skipAttributes(final DataInputStream data) throws IOException {
+        int count = data.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            skip(data, 2);
+            skip(data, data.readInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void skip(final DataInputStream data, final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            long skipped = data.skip(remaining);
+            if (skipped <= 0) {
+                // skip may return 0 before the end, read distinguishes the end
+                if (data.read() < 0) {
+                    throw new IOException("Truncated class file");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package be.itlive.common.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the named classes of a package from the index written at build time by the {@link ClassIndexProcessor}, and by scanning the roots
+ * which have no index or a stale one.
+ * <p>
+ * Each root (directory or jar) of the package is looked up for its own index, so indexed jars and non indexed ones can be mixed. The
+ * annotated classes are read from the index too; in a scanned root, they are found by reading the class files with a
+ * {@link ClassFileReader}, without loading the classes.
+ * </p>
+ * <p>
+ * An index is stale, and its root scanned with the {@link ClassPathScanner}, when a class it lists is missing from the root, or when the
+ * directory of an indexed package or the class file of an indexed class (the entries of a jar) was modified more than
+ * {@link #COMPILATION_WINDOW_MILLIS} after the generation time of the index: the class was compiled again, or a class added, by a build or
+ * an IDE which did not run the processor. javac writes the class files after the processor ran, hence the window. The check only reads
+ * the modification times, not the class files; it is skipped for the other roots (e.g. vfs), whose index is trusted.
+ * </p>
+ * <p>
+ * Only the named classes are found: the top-level and member classes. The anonymous and local classes, which the processor can't see, are
+ * left out of the scanned roots too, so a root gives the same classes with or without an index; use the {@link ClassPathScanner} to find
+ * them. The annotations are the ones retained in the class files and declared on the class itself, inherited ones excepted.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * ClassIndex index = new ClassIndex(Thread.currentThread().getContextClassLoader());
+ * for (String className : index.findAnnotatedClassNames("be.itlive.app.entities", true, Entity.class)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class ClassIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassIndex.class);
+
+    /**
+     * Directory of the index in a root.
+     */
+    public static final String INDEX_LOCATION = "META-INF/be.itlive.common/class-index/";
+
+    static final String PACKAGES_LOCATION = INDEX_LOCATION + "packages/";
+
+    static final String ANNOTATIONS_LOCATION = INDEX_LOCATION + "annotations/";
+
+    static final String PACKAGE_LIST_LOCATION = INDEX_LOCATION + "package-list";
+
+    static final String ANNOTATION_LIST_LOCATION = INDEX_LOCATION + "annotation-list";
+
+    /**
+     * First line of the index files, followed by the generation time in milliseconds.
+     */
+    static final String GENERATED_PREFIX = "# generated ";
+
+    /**
+     * Time after the generation of the index during which the class files are written by the same compilation.
+     */
+    public static final long COMPILATION_WINDOW_MILLIS = 60000L;
+
+    private final ClassLoader classLoader;
+
+    private final AtomicInteger indexedRoots = new AtomicInteger();
+
+    private final AtomicInteger scannedRoots = new AtomicInteger();
+
+    /**
+     * @param classLoader the class loader to look up.
+     */
+    public ClassIndex(final ClassLoader classLoader) {
+        if (classLoader == null) {
+            throw new NullPointerException("classLoader cannot be null");
+        }
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @return the names of the named classes of the package, member classes included, sorted.
+     * @throws IOException if a root or an index can't be read.
+     */
+    public Set<String> findClassNames(final String packageName, final boolean recurse) throws IOException {
+        return find(packageName, recurse, null);
+    }
+
+    /**
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @param annotation the annotation of the classes.
+     * @return the names of the named classes of the package annotated with <code>annotation</code>, sorted.
+     * @throws IOException if a root, an index or a class file can't be read.
+     */
+    public Set<String> findAnnotatedClassNames(final String packageName, final boolean recurse,
+            final Class<? extends Annotation> annotation) throws IOException {
+        return find(packageName, recurse, annotation);
+    }
+
+    /**
+     * @return the number of roots read from their index since the creation.
+     */
+    public int getIndexedRootCount() {
+        return indexedRoots.get();
+    }
+
+    /**
+     * @return the number of roots scanned since the creation, for lack of an index or because it is stale.
+     */
+    public int getScannedRootCount() {
+        return scannedRoots.get();
+    }
+
+    private Set<String> find(final String packageName, final boolean recurse, final Class<? extends Annotation> annotation) throws IOException {
+        String path = packageName.replace('.', '/');
+        List<URL> roots = Collections.list(classLoader.getResources(path));
+        try {
+            return roots.parallelStream().flatMap(root -> findInRoot(root, packageName, recurse, annotation).stream())
+                    .collect(Collectors.toCollection(TreeSet::new));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private List<String> findInRoot(final URL root, final String packageName, final boolean recurse,
+            final Class<? extends Annotation> annotation) {
+        String path = packageName.replace('.', '/');
+        try {
+            String base = root.toString();
+            base = base.substring(0, base.length() - (base.endsWith("/") ? path.length() + 1 : path.length()));
+            List<String> names = readIndex(base, packageName, recurse);
+            if (names == null) {
+                scannedRoots.incrementAndGet();
+                Predicate<ClassFileReader> filter = annotation == null ? null : classFile -> classFile.hasAnnotation(annotation);
+                return ClassPathScanner.scanRoot(root, path, recurse, filter).stream().filter(ClassIndex::isNamed)
+                        .collect(Collectors.toList());
+            }
+            indexedRoots.incrementAndGet();
+            if (annotation == null) {
+                return names;
+            }
+            IndexFile annotated = readList(new URL(base + ANNOTATIONS_LOCATION + annotation.getName()));
+            if (annotated == null) {
+                return Collections.emptyList();
+            }
+            annotated.names.retainAll(new HashSet<>(names));
+            return annotated.names;
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Error reading the class index of " + root, e);
+        }
+    }
+
+    /**
+     * @param className the binary name of a class.
+     * @return false for the anonymous and local classes, whose binary name has a digit after a <code>$</code>.
+     */
+    static boolean isNamed(final String className) {
+        for (int i = className.indexOf('$'); i >= 0 && i + 1 < className.length(); i = className.indexOf('$', i + 1)) {
+            if (Character.isDigit(className.charAt(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the classes of the package(s) listed by the index of the root, null if the root has no index or a stale one.
+     */
+    private List<String> readIndex(final String base, final String packageName, final boolean recurse) throws IOException {
+        List<String> packageNames = new ArrayList<>();
+        packageNames.add(packageName);
+        if (recurse) {
+            IndexFile indexedPackages = readList(new URL(base + PACKAGE_LIST_LOCATION));
+            if (indexedPackages == null) {
+                return null;
+            }
+            for (String indexedPackage : indexedPackages.names) {
+                if (indexedPackage.startsWith(packageName + '.')) {
+                    packageNames.add(indexedPackage);
+                }
+            }
+        }
+        Map<String, IndexFile> packages = new LinkedHashMap<>();
+        for (String indexedPackage : packageNames) {
+            IndexFile classNames = readList(new URL(base + PACKAGES_LOCATION + indexedPackage));
+            if (classNames == null) {
+                // the package itself may hold no class, only its sub-packages
+                if (indexedPackage.equals(packageName) && recurse && packageNames.size() > 1) {
+                    continue;
+                }
+                return null;
+            }
+            packages.put(indexedPackage, classNames);
+        }
+        if (isStale(new URL(base), packages)) {
+            LOGGER.info("Stale class index of {} in {}, scanning it", packageName, base);
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (IndexFile classNames : packages.values()) {
+            names.addAll(classNames.names);
+        }
+        return names;
+    }
+
+    /**
+     * @param base the root of the index.
+     * @param packages the index files of the packages, by package name.
+     * @return true if a class of the index is missing, or a package directory or class file modified after the compilation of the index.
+     */
+    private static boolean isStale(final URL base, final Map<String, IndexFile> packages) throws IOException {
+        if ("file".equals(base.getProtocol())) {
+            File directory;
+            try {
+                directory = Paths.get(base.toURI()).toFile();
+            } catch (final URISyntaxException e) {
+                throw new IOException("Invalid root " + base, e);
+            }
+            for (Map.Entry<String, IndexFile> entry : packages.entrySet()) {
+                long limit = entry.getValue().generated + COMPILATION_WINDOW_MILLIS;
+                if (isModifiedAfter(new File(directory, entry.getKey().replace('.', '/')), limit)) {
+                    return true;
+                }
+                for (String className : entry.getValue().names) {
+                    if (isModifiedAfter(new File(directory, className.replace('.', '/') + ".class"), limit)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        URLConnection connection = base.openConnection();
+        if (!(connection instanceof JarURLConnection)) {
+            return false;
+        }
+        // not cached, so the jar file is ours to close
+        connection.setUseCaches(false);
+        try (JarFile jar = ((JarURLConnection) connection).getJarFile()) {
+            for (Map.Entry<String, IndexFile> entry : packages.entrySet()) {
+                long limit = entry.getValue().generated + COMPILATION_WINDOW_MILLIS;
+                // the directory entry is optional
+                JarEntry directory = jar.getJarEntry(entry.getKey().replace('.', '/') + '/');
+                if (directory != null && directory.getTime() > limit) {
+                    return true;
+                }
+                for (String className : entry.getValue().names) {
+                    JarEntry classFile = jar.getJarEntry(className.replace('.', '/') + ".class");
+                    if (classFile == null || classFile.getTime() > limit) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the file is missing or was modified after <code>limit</code>.
+     */
+    private static boolean isModifiedAfter(final File file, final long limit) {
+        // 0 if the file doesn't exist
+        long lastModified = file.lastModified();
+        return lastModified == 0L || lastModified > limit;
+    }
+
+    /**
+     * @return the index file, null if there is no such file.
+     */
+    private static IndexFile readList(final URL url) throws IOException {
+        try (BufferedReader in = open(url)) {
+            if (in == null) {
+                return null;
+            }
+            IndexFile file = new IndexFile();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(GENERATED_PREFIX)) {
+                    file.generated = Long.parseLong(line.substring(GENERATED_PREFIX.length()).trim());
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    file.names.add(line);
+                }
+            }
+            return file;
+        } catch (final NumberFormatException e) {
+            throw new IOException("Invalid generation time in " + url, e);
+        }
+    }
+
+    private static BufferedReader open(final URL url) throws IOException {
+        try {
+            URLConnection connection = url.openConnection();
+            return new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+        } catch (final FileNotFoundException | NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The names listed by a file of the index and its generation time.
+     */
+    private static final class IndexFile {
+
+        /**
+         * Generation time in milliseconds, 0 if the file has no header: it is then stale.
+         */
+        private long generated;
+
+        private final List<String> names = new ArrayList<>();
+    }
+}
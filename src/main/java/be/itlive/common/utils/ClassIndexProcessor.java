@@ -0,0 +1,205 @@
+package be.itlive.common.utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor writing the {@link ClassIndex} of the compiled classes: one file per package listing its classes, one file per
+ * annotation listing the classes it annotates, and the lists of the indexed packages and annotations.
+ * <p>
+ * It is not registered in <code>META-INF/services</code>, so it only runs in the modules which ask for it, with the
+ * <code>annotationProcessors</code> of the maven-compiler-plugin (javac <code>-processor</code>, which disables the discovery of the other
+ * processors: list them too). An incremental compilation only sees the recompiled classes, so the previous index of the output directory is
+ * merged in: its classes which were not recompiled are kept as long as their class file exists. The named classes are indexed, top-level
+ * and member ones: the anonymous and local classes are not elements the processor can see. The annotations of source retention are left
+ * out, as they are not in the class files.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;artifactId&gt;maven-compiler-plugin&lt;/artifactId&gt;
+ *     &lt;configuration&gt;
+ *         &lt;annotationProcessors&gt;
+ *             &lt;annotationProcessor&gt;be.itlive.common.utils.ClassIndexProcessor&lt;/annotationProcessor&gt;
+ *         &lt;/annotationProcessors&gt;
+ *     &lt;/configuration&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ *
+ * @author vbiertho
+ */
+@SupportedAnnotationTypes("*")
+public class ClassIndexProcessor extends AbstractProcessor {
+
+    /**
+     * Class names by package.
+     */
+    private final Map<String, Set<String>> packages = new TreeMap<>();
+
+    /**
+     * Class names by annotation.
+     */
+    private final Map<String, Set<String>> annotations = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotationTypes, final RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement) {
+                index((TypeElement) element);
+            }
+        }
+        if (roundEnv.processingOver()) {
+            mergePreviousIndex();
+            write();
+        }
+        // the annotations are left to the other processors
+        return false;
+    }
+
+    private void index(final TypeElement type) {
+        String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        packages.computeIfAbsent(packageName, k -> new TreeSet<>()).add(className);
+        for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            Retention retention = annotationType.getAnnotation(Retention.class);
+            if (retention != null && retention.value() == RetentionPolicy.SOURCE) {
+                continue;
+            }
+            String annotationName = processingEnv.getElementUtils().getBinaryName(annotationType).toString();
+            annotations.computeIfAbsent(annotationName, k -> new TreeSet<>()).add(className);
+        }
+        for (Element enclosed : type.getEnclosedElements()) {
+            if (enclosed instanceof TypeElement) {
+                index((TypeElement) enclosed);
+            }
+        }
+    }
+
+    /**
+     * Adds the classes of the previous index which were not compiled again and whose class file still exists.
+     */
+    private void mergePreviousIndex() {
+        Set<String> compiled = new HashSet<>();
+        packages.values().forEach(compiled::addAll);
+        try {
+            for (String packageName : readList(ClassIndex.PACKAGE_LIST_LOCATION)) {
+                merge(packages, packageName, readList(ClassIndex.PACKAGES_LOCATION + packageName), compiled);
+            }
+            for (String annotationName : readList(ClassIndex.ANNOTATION_LIST_LOCATION)) {
+                merge(annotations, annotationName, readList(ClassIndex.ANNOTATIONS_LOCATION + annotationName), compiled);
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Can't read the previous class index, only the compiled classes are indexed: " + e.getMessage());
+        }
+    }
+
+    private void merge(final Map<String, Set<String>> index, final String key, final List<String> previous, final Set<String> compiled)
+            throws IOException {
+        for (String className : previous) {
+            if (!compiled.contains(className) && exists(classFile(className))) {
+                index.computeIfAbsent(key, k -> new TreeSet<>()).add(className);
+            }
+        }
+    }
+
+    private FileObject classFile(final String className) throws IOException {
+        int dot = className.lastIndexOf('.');
+        String packageName = dot < 0 ? "" : className.substring(0, dot);
+        return processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, packageName, className.substring(dot + 1) + ".class");
+    }
+
+    private static boolean exists(final FileObject file) throws IOException {
+        try (InputStream in = file.openInputStream()) {
+            return in != null;
+        } catch (final FileNotFoundException | NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the names listed by a file of the previous index, empty if there is no such file.
+     */
+    private List<String> readList(final String location) throws IOException {
+        List<String> names = new ArrayList<>();
+        FileObject file;
+        try {
+            file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", location);
+        } catch (final FileNotFoundException | NoSuchFileException e) {
+            return names;
+        }
+        if (!exists(file)) {
+            return names;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(file.openInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        }
+        return names;
+    }
+
+    private void write() {
+        long generated = System.currentTimeMillis();
+        try {
+            for (Map.Entry<String, Set<String>> entry : packages.entrySet()) {
+                writeList(ClassIndex.PACKAGES_LOCATION + entry.getKey(), generated, entry.getValue());
+            }
+            for (Map.Entry<String, Set<String>> entry : annotations.entrySet()) {
+                writeList(ClassIndex.ANNOTATIONS_LOCATION + entry.getKey(), generated, entry.getValue());
+            }
+            writeList(ClassIndex.PACKAGE_LIST_LOCATION, generated, packages.keySet());
+            writeList(ClassIndex.ANNOTATION_LIST_LOCATION, generated, annotations.keySet());
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Error writing the class index: " + e.getMessage());
+        }
+    }
+
+    private void writeList(final String location, final long generated, final Set<String> names) throws IOException {
+        FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", location);
+        try (Writer out = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+            out.write(ClassIndex.GENERATED_PREFIX + generated + "\n");
+            for (String name : names) {
+                out.write(name);
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package be.itlive.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the classes of a package in all the roots of a class loader: directories and jars.
+ * <p>
+ * Every resource of the package is scanned, not only the first one, so a package split over several jars is found whole; the roots are
+ * scanned in parallel. The jars are listed from their central directory with a {@link JarFile}, without inflating the entries not filtered,
+ * and the directories are walked with {@link Files#walk(Path, java.nio.file.FileVisitOption...)}. The scan only returns class names: the
+ * classes are loaded one by one as the stream of {@link #findClasses(String, boolean)} is consumed, without running their static
+ * initializers unless requested. They can be filtered beforehand on their {@link ClassFileReader}, read from the open jar or directory
+ * during the scan of its root, so that only the matching classes are loaded. The roots are the resources of the package directory, so a jar
+ * is only found if it holds the directory entries, as the jars built by Maven do.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * ClassPathScanner scanner = new ClassPathScanner();
+ * try (Stream&lt;Class&lt;?&gt;&gt; classes = scanner.findClasses("be.itlive.app.entities", true, c -&gt; c.hasAnnotation(Entity.class))) {
+ *     classes.forEach(registry::register);
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class ClassPathScanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassPathScanner.class);
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private final ClassLoader classLoader;
+
+    private final boolean initialize;
+
+    /**
+     * Scans the context class loader of the current thread, without initializing the classes.
+     */
+    public ClassPathScanner() {
+        this(Thread.currentThread().getContextClassLoader(), false);
+    }
+
+    /**
+     * @param classLoader the class loader to scan and to load the classes with.
+     * @param initialize true to run the static initializers of the classes when they are loaded.
+     */
+    public ClassPathScanner(final ClassLoader classLoader, final boolean initialize) {
+        if (classLoader == null) {
+            throw new NullPointerException("classLoader cannot be null");
+        }
+        this.classLoader = classLoader;
+        this.initialize = initialize;
+    }
+
+    /**
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @return the names of the classes of the package, nested classes included, sorted; empty if the package is not found.
+     * @throws IOException if a root can't be read.
+     */
+    public Set<String> findClassNames(final String packageName, final boolean recurse) throws IOException {
+        return findClassNames(packageName, recurse, null);
+    }
+
+    /**
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @return the classes of the package, loaded while the stream is consumed; the classes which can't be loaded are logged and skipped.
+     * @throws IOException if a root can't be read.
+     */
+    public Stream<Class<?>> findClasses(final String packageName, final boolean recurse) throws IOException {
+        return findClassNames(packageName, recurse).stream().map(this::loadQuietly).filter(Objects::nonNull);
+    }
+
+    /**
+     * Finds the classes of the package matching a filter, which reads their class file instead of loading them.
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @param filter the filter of the classes, e.g. <code>classFile -&gt; classFile.hasAnnotation(Entity.class)</code>.
+     * @return the names of the matching classes, sorted.
+     * @throws IOException if a root or a class file can't be read.
+     */
+    public Set<String> findClassNames(final String packageName, final boolean recurse, final Predicate<ClassFileReader> filter)
+            throws IOException {
+        String path = packageName.replace('.', '/');
+        List<URL> roots = Collections.list(classLoader.getResources(path));
+        try {
+            return roots.parallelStream().flatMap(root -> scanRoot(root, path, recurse, filter).stream())
+                    .collect(Collectors.toCollection(TreeSet::new));
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param packageName the fully-qualified package name.
+     * @param recurse if <code>true</code>, the classes of the sub-packages are found too.
+     * @param filter the filter of the classes, tested on their class file before loading them.
+     * @return the matching classes of the package, loaded while the stream is consumed; the classes which can't be loaded are logged and
+     *         skipped.
+     * @throws IOException if a root or a class file can't be read.
+     */
+    public Stream<Class<?>> findClasses(final String packageName, final boolean recurse, final Predicate<ClassFileReader> filter)
+            throws IOException {
+        return findClassNames(packageName, recurse, filter).stream().map(this::loadQuietly).filter(Objects::nonNull);
+    }
+
+    /**
+     * @param className a class name.
+     * @return the metadata read from the class file, null if the class loader has no such class file.
+     * @throws IOException if the class file can't be read.
+     */
+    public ClassFileReader readClassFile(final String className) throws IOException {
+        try (InputStream in = classLoader.getResourceAsStream(className.replace('.', '/') + CLASS_EXTENSION)) {
+            return in == null ? null : ClassFileReader.read(in);
+        }
+    }
+
+    /**
+     * Tells if a class extends or implements a type, reading the class files of its super types instead of loading them.
+     * @param classFile the class file.
+     * @param typeName the binary name of a class or interface.
+     * @return true if the class is the type or one of its subtypes; false if a super type can't be read.
+     * @throws IOException if a class file can't be read.
+     */
+    public boolean isSubtypeOf(final ClassFileReader classFile, final String typeName) throws IOException {
+        Deque<ClassFileReader> toVisit = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        toVisit.add(classFile);
+        while (!toVisit.isEmpty()) {
+            ClassFileReader current = toVisit.poll();
+            if (typeName.equals(current.getClassName())) {
+                return true;
+            }
+            List<String> superTypes = new ArrayList<>(current.getInterfaceNames());
+            if (current.getSuperClassName() != null) {
+                superTypes.add(current.getSuperClassName());
+            }
+            for (String superType : superTypes) {
+                if (typeName.equals(superType)) {
+                    return true;
+                }
+                if (visited.add(superType) && !"java.lang.Object".equals(superType)) {
+                    ClassFileReader superClassFile = readClassFile(superType);
+                    if (superClassFile == null) {
+                        LOGGER.debug("No class file for {}, super type of {}", superType, current.getClassName());
+                    } else {
+                        toVisit.add(superClassFile);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param className a class name found by the scan.
+     * @return the class, initialized if this scanner initializes the classes.
+     * @throws ClassNotFoundException if the class can't be found.
+     */
+    public Class<?> loadClass(final String className) throws ClassNotFoundException {
+        return Class.forName(className, initialize, classLoader);
+    }
+
+    /**
+     * @return the classLoader
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * @return true if the classes are initialized when they are loaded.
+     */
+    public boolean isInitialize() {
+        return initialize;
+    }
+
+    private Class<?> loadQuietly(final String className) {
+        try {
+            return loadClass(className);
+        } catch (final ClassNotFoundException | LinkageError e) {
+            // typically a class referencing an optional dependency missing from the classpath
+            LOGGER.warn("Can't load class {}: {}", className, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @param root a resource of the package.
+     * @param path the path of the package.
+     * @param recurse true to scan the sub-packages.
+     * @param filter the filter of the class files, null to find all the classes.
+     * @return the class names found under the root.
+     * @throws UncheckedIOException if the root can't be read.
+     */
+    static List<String> scanRoot(final URL root, final String path, final boolean recurse, final Predicate<ClassFileReader> filter) {
+        try {
+            if ("file".equals(root.getProtocol())) {
+                return scanDirectory(Paths.get(root.toURI()), path, recurse, filter);
+            }
+            URLConnection connection = root.openConnection();
+            if (connection instanceof JarURLConnection) {
+                return scanJar((JarURLConnection) connection, path, recurse, filter);
+            }
+            // e.g. vfs, whose URL still holds the path of an exploded deployment
+            File directory = new File(root.getFile());
+            if (directory.isDirectory()) {
+                return scanDirectory(directory.toPath(), path, recurse, filter);
+            }
+            LOGGER.warn("Can't scan {}, unsupported protocol {}", root, root.getProtocol());
+            return Collections.emptyList();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Error scanning " + root, e);
+        } catch (final URISyntaxException e) {
+            throw new UncheckedIOException(new IOException("Invalid root " + root, e));
+        }
+    }
+
+    private static List<String> scanDirectory(final Path directory, final String path, final boolean recurse,
+            final Predicate<ClassFileReader> filter) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> files = recurse ? Files.walk(directory) : Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (isClass(fileName) && Files.isRegularFile(file) && (filter == null || matches(Files.newInputStream(file), filter))) {
+                    String relative = directory.relativize(file).toString().replace(File.separatorChar, '/');
+                    names.add(toClassName(path + '/' + relative));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static List<String> scanJar(final JarURLConnection connection, final String path, final boolean recurse,
+            final Predicate<ClassFileReader> filter) throws IOException {
+        // not cached, so the jar file is ours to close
+        connection.setUseCaches(false);
+        String prefix = path + '/';
+        List<String> names = new ArrayList<>();
+        try (JarFile jar = connection.getJarFile()) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.startsWith(prefix) && isClass(name) && (recurse || name.indexOf('/', prefix.length()) < 0)
+                        && (filter == null || matches(jar.getInputStream(entry), filter))) {
+                    names.add(toClassName(name));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param classFile the class file, closed.
+     * @param filter the filter.
+     * @return true if the class file matches the filter.
+     * @throws IOException if the class file can't be read.
+     */
+    private static boolean matches(final InputStream classFile, final Predicate<ClassFileReader> filter) throws IOException {
+        try (InputStream in = classFile) {
+            return filter.test(ClassFileReader.read(in));
+        }
+    }
+
+    private static boolean isClass(final String fileName) {
+        return fileName.endsWith(CLASS_EXTENSION) && !fileName.endsWith("package-info.class") && !fileName.endsWith("module-info.class");
+    }
+
+    private static String toClassName(final String resourceName) {
+        return resourceName.substring(0, resourceName.length() - CLASS_EXTENSION.length()).replace('/', '.');
+    }
+}
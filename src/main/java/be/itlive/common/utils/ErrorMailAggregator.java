@@ -0,0 +1,359 @@
+package be.itlive.common.utils;
+
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.MimeType;
+import be.itlive.common.exceptions.AlreadyMailedException;
+
+/**
+ * Sends error mails without flooding the recipients when the same error occurs for every request.
+ * <p>
+ * Exceptions are grouped by a fingerprint made of their type, the type of their root cause and their top stack frames. The first occurrence of
+ * a fingerprint is mailed at once, the following ones are only counted and reported in a digest mail sent every
+ * <code>digestIntervalMillis</code>. Once a fingerprint was not seen for a whole window, its next occurrence is mailed at once again. Counting
+ * is lock-free, so the failing requests are not serialized on the aggregator.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * private static final ErrorMailAggregator ERROR_MAILS = new ErrorMailAggregator(session, "app@itlive.be", "support@itlive.be", "[MyApp] ",
+ *         TimeUnit.MINUTES.toMillis(15), TimeUnit.MINUTES.toMillis(5));
+ * ...
+ * } catch (final ServiceException e) {
+ *     throw ERROR_MAILS.handle(e);
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class ErrorMailAggregator implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ErrorMailAggregator.class);
+
+    /**
+     * Number of stack frames used in the fingerprint.
+     */
+    public static final int DEFAULT_FINGERPRINT_FRAMES = 5;
+
+    /**
+     * Number of buckets of the sliding window.
+     */
+    private static final int WINDOW_BUCKETS = 12;
+
+    private final Session session;
+
+    private final String sender;
+
+    private final String recep;
+
+    private final String subjectPrefix;
+
+    private final long windowMillis;
+
+    private final int fingerprintFrames;
+
+    private final ConcurrentMap<String, Occurrences> occurrences = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param session the mail session.
+     * @param sender the sender of the error mails.
+     * @param recep the recipients of the error mails, comma separated.
+     * @param subjectPrefix prepended to the subject of the error mails.
+     * @param windowMillis the sliding window over which occurrences are counted.
+     * @param digestIntervalMillis the interval between two digest mails.
+     */
+    public ErrorMailAggregator(final Session session, final String sender, final String recep, final String subjectPrefix, final long windowMillis,
+            final long digestIntervalMillis) {
+        this(session, sender, recep, subjectPrefix, windowMillis, digestIntervalMillis, DEFAULT_FINGERPRINT_FRAMES);
+    }
+
+    /**
+     * @param session the mail session.
+     * @param sender the sender of the error mails.
+     * @param recep the recipients of the error mails, comma separated.
+     * @param subjectPrefix prepended to the subject of the error mails.
+     * @param windowMillis the sliding window over which occurrences are counted.
+     * @param digestIntervalMillis the interval between two digest mails.
+     * @param fingerprintFrames the number of top stack frames used in the fingerprint.
+     */
+    public ErrorMailAggregator(final Session session, final String sender, final String recep, final String subjectPrefix, final long windowMillis,
+            final long digestIntervalMillis, final int fingerprintFrames) {
+        if (windowMillis < WINDOW_BUCKETS || digestIntervalMillis <= 0 || fingerprintFrames < 0) {
+            throw new IllegalArgumentException("Invalid window (" + windowMillis + "), digest interval (" + digestIntervalMillis + ") or frames ("
+                    + fingerprintFrames + ")");
+        }
+        this.session = session;
+        this.sender = sender;
+        this.recep = recep;
+        this.subjectPrefix = subjectPrefix == null ? "" : subjectPrefix;
+        this.windowMillis = windowMillis;
+        this.fingerprintFrames = fingerprintFrames;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "error-mail-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, digestIntervalMillis, digestIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the exception, mails it at once if it is the first occurrence of its fingerprint.
+     * @param exception the exception.
+     * @return the exception wrapped in an {@link AlreadyMailedException}, or itself if already one.
+     */
+    public AlreadyMailedException handle(final Exception exception) {
+        if (exception instanceof AlreadyMailedException) {
+            return (AlreadyMailedException) exception;
+        }
+        record(exception);
+        return new AlreadyMailedException(exception);
+    }
+
+    /**
+     * Records the exception, mails it at once if it is the first occurrence of its fingerprint.
+     * @param exception the exception.
+     * @return true if the exception is mailed at once, false if it is left for the next digest.
+     */
+    public boolean record(final Exception exception) {
+        long now = System.currentTimeMillis();
+        String fingerprint = fingerprint(exception);
+        Occurrences created = new Occurrences(exception, now);
+        Occurrences existing = occurrences.putIfAbsent(fingerprint, created);
+        if (existing == null) {
+            created.count(now);
+            try {
+                scheduler.execute(() -> sendFirst(created));
+            } catch (final RejectedExecutionException e) {
+                // closed, sent in the calling thread
+                sendFirst(created);
+            }
+            return true;
+        }
+        existing.count(now);
+        existing.pending.incrementAndGet();
+        existing.lastException = exception;
+        return false;
+    }
+
+    /**
+     * Sends the digest of the occurrences counted since the previous one, if any, and forgets the fingerprints not seen for a whole window.
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+        List<DigestLine> lines = new ArrayList<>();
+        for (Iterator<Occurrences> it = occurrences.values().iterator(); it.hasNext();) {
+            Occurrences occurrence = it.next();
+            long pending = occurrence.pending.getAndSet(0L);
+            if (pending > 0) {
+                lines.add(new DigestLine(occurrence, pending, occurrence.inWindow(now)));
+            } else if (now - occurrence.lastSeen >= windowMillis) {
+                it.remove();
+            }
+        }
+        if (!lines.isEmpty()) {
+            sendDigest(lines);
+        }
+    }
+
+    /**
+     * @param exception the exception.
+     * @return the number of occurrences of the fingerprint of the exception in the sliding window.
+     */
+    public long getWindowCount(final Exception exception) {
+        Occurrences occurrence = occurrences.get(fingerprint(exception));
+        return occurrence == null ? 0L : occurrence.inWindow(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of tracked fingerprints.
+     */
+    public int getFingerprintCount() {
+        return occurrences.size();
+    }
+
+    /**
+     * Sends the pending digest and stops the digest schedule.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * The fingerprint is made of the type of the exception, the type of its root cause and the top frames of the root cause, the message is
+     * ignored as it often holds request specific values.
+     * @param exception the exception.
+     * @return the fingerprint.
+     */
+    protected String fingerprint(final Exception exception) {
+        Throwable root = exception;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        StringBuilder fingerprint = new StringBuilder(exception.getClass().getName());
+        if (root != exception) {
+            fingerprint.append('/').append(root.getClass().getName());
+        }
+        StackTraceElement[] frames = root.getStackTrace();
+        for (int i = 0; i < Math.min(fingerprintFrames, frames.length); i++) {
+            fingerprint.append('|').append(frames[i].getClassName()).append('.').append(frames[i].getMethodName()).append(':')
+                    .append(frames[i].getLineNumber());
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Sends an error mail, overridden to send it differently.
+     * @param subject the subject.
+     * @param body the html body.
+     * @throws Exception if the mail can't be sent.
+     */
+    protected void send(final String subject, final String body) throws Exception {
+        MailSender mail = new MailSender(session, sender, recep, MimeType.TEXT_HTML.getMimeType() + "; charset=\"UTF-8\"");
+        mail.setSubject(subject);
+        mail.getMessageAppendable().append(body);
+        mail.sendMail();
+    }
+
+    private void sendFirst(final Occurrences occurrence) {
+        StringBuilder body = new StringBuilder();
+        body.append("<p>First occurrence at ").append(format(occurrence.firstSeen)).append(", next ones are reported in a digest.</p>");
+        appendException(body, occurrence.firstException);
+        trySend(MailSender.getReason(occurrence.firstException), body.toString());
+    }
+
+    private void sendDigest(final List<DigestLine> lines) {
+        long total = 0L;
+        StringBuilder body = new StringBuilder("<table border=\"1\"><tr><th>Error</th><th>Since last digest</th><th>In the last ")
+                .append(TimeUnit.MILLISECONDS.toMinutes(windowMillis)).append(" min</th><th>First seen</th><th>Last seen</th></tr>");
+        for (DigestLine line : lines) {
+            total += line.pending;
+            body.append("<tr><td>").append(MailSender.getXml(MailSender.getReason(line.occurrence.lastException))).append("</td><td>")
+                    .append(line.pending).append("</td><td>").append(line.inWindow).append("</td><td>").append(format(line.occurrence.firstSeen))
+                    .append("</td><td>").append(format(line.occurrence.lastSeen)).append("</td></tr>");
+        }
+        body.append("</table>");
+        for (DigestLine line : lines) {
+            appendException(body, line.occurrence.lastException);
+        }
+        trySend("Digest: " + total + " error(s) of " + lines.size() + " kind(s)", body.toString());
+    }
+
+    private void appendException(final StringBuilder body, final Exception exception) {
+        body.append("<p><b>").append(MailSender.getXml(MailSender.getReason(exception))).append("</b></p><p>")
+                .append(MailSender.getStackTrace(exception)).append("</p>");
+    }
+
+    private void trySend(final String subject, final String body) {
+        try {
+            send(subjectPrefix + subject, body);
+        } catch (final Exception e) {
+            LOGGER.error("Error sending error mail '{}': {}", subject, e.getMessage());
+        }
+    }
+
+    private static String format(final long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(millis));
+    }
+
+    /**
+     * The occurrences of one fingerprint.
+     * <p>
+     * The window is split in buckets stamped with their period: a bucket of an elapsed period is reset by the first thread counting in its new
+     * period, a concurrent increment may be lost at that moment, which is acceptable for a digest.
+     * </p>
+     */
+    private final class Occurrences {
+
+        private final Exception firstException;
+
+        private final long firstSeen;
+
+        private volatile Exception lastException;
+
+        private volatile long lastSeen;
+
+        private final AtomicLong pending = new AtomicLong();
+
+        private final AtomicLongArray periods = new AtomicLongArray(WINDOW_BUCKETS);
+
+        private final AtomicLongArray counts = new AtomicLongArray(WINDOW_BUCKETS);
+
+        private Occurrences(final Exception exception, final long now) {
+            this.firstException = exception;
+            this.lastException = exception;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+
+        private void count(final long now) {
+            lastSeen = now;
+            long period = now / bucketMillis();
+            int bucket = (int) (period % WINDOW_BUCKETS);
+            long stamped = periods.get(bucket);
+            if (stamped != period && periods.compareAndSet(bucket, stamped, period)) {
+                counts.set(bucket, 0L);
+            }
+            counts.incrementAndGet(bucket);
+        }
+
+        private long inWindow(final long now) {
+            long period = now / bucketMillis();
+            long sum = 0L;
+            for (int bucket = 0; bucket < WINDOW_BUCKETS; bucket++) {
+                if (period - periods.get(bucket) < WINDOW_BUCKETS) {
+                    sum += counts.get(bucket);
+                }
+            }
+            return sum;
+        }
+
+        private long bucketMillis() {
+            return windowMillis / WINDOW_BUCKETS;
+        }
+    }
+
+    /**
+     * A line of a digest.
+     */
+    private static final class DigestLine {
+
+        private final Occurrences occurrence;
+
+        private final long pending;
+
+        private final long inWindow;
+
+        private DigestLine(final Occurrences occurrence, final long pending, final long inWindow) {
+            this.occurrence = occurrence;
+            this.pending = pending;
+            this.inWindow = inWindow;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Utility class rendering text, xml and stack traces as html directly into an {@link Appendable}, such as the body of a {@link MailSender}.
+ * <p>
+ * Everything is escaped and written in a single pass, without building intermediate strings. Stack traces are rendered like
+ * {@link Throwable#printStackTrace()}, lines ending with <code>&lt;br/&gt;</code>, with the frames in common with the enclosing trace
+ * folded, repeated frames (recursion) folded, frames of the given packages folded and the cause chain capped to a maximum depth.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * HtmlRenderUtils.appendStackTrace(mailSender.getMessageAppendable(), exception, 5, "sun.reflect.", "org.jboss.");
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public final class HtmlRenderUtils {
+
+    /**
+     * Line separator of the rendered stack traces.
+     */
+    public static final String LINE_BREAK = "<br/>";
+
+    /**
+     * Longest sequence of frames looked for when folding repeated frames.
+     */
+    private static final int MAX_REPEATED_PERIOD = 8;
+
+    private HtmlRenderUtils() {
+    }
+
+    /**
+     * Escapes <code>&amp;</code>, <code>&lt;</code>, <code>&gt;</code> and <code>&quot;</code>.
+     * @param out where to write.
+     * @param text the text, nothing is written if null.
+     * @throws IOException if thrown by <code>out</code>.
+     */
+    public static void appendEscaped(final Appendable out, final CharSequence text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String entity;
+            switch (text.charAt(i)) {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            default:
+                continue;
+            }
+            out.append(text, start, i).append(entity);
+            start = i + 1;
+        }
+        out.append(text, start, text.length());
+    }
+
+    /**
+     * Writes the xml so that its tags are displayed as text.
+     * @param out where to write.
+     * @param xml the xml, nothing is written if null.
+     * @throws IOException if thrown by <code>out</code>.
+     */
+    public static void appendXml(final Appendable out, final CharSequence xml) throws IOException {
+        appendEscaped(out, xml);
+    }
+
+    /**
+     * Writes the whole stack trace, with all its causes.
+     * @param out where to write.
+     * @param throwable the throwable, nothing is written if null.
+     * @throws IOException if thrown by <code>out</code>.
+     */
+    public static void appendStackTrace(final Appendable out, final Throwable throwable) throws IOException {
+        appendStackTrace(out, throwable, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param out where to write.
+     * @param throwable the throwable, nothing is written if null.
+     * @param maxCauseDepth the maximum number of causes written, the next ones are only counted.
+     * @param foldedPackages prefixes of the classes whose consecutive frames are folded in one line (e.g. "sun.reflect.").
+     * @throws IOException if thrown by <code>out</code>.
+     */
+    public static void appendStackTrace(final Appendable out, final Throwable throwable, final int maxCauseDepth, final String... foldedPackages)
+            throws IOException {
+        if (throwable != null) {
+            Set<Throwable> written = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+            appendThrowable(out, throwable, new StackTraceElement[0], "", "", 0, maxCauseDepth, foldedPackages, written);
+        }
+    }
+
+    private static void appendThrowable(final Appendable out, final Throwable throwable, final StackTraceElement[] enclosingTrace,
+            final String caption, final String prefix, final int depth, final int maxCauseDepth, final String[] foldedPackages,
+            final Set<Throwable> written) throws IOException {
+        if (!written.add(throwable)) {
+            out.append(prefix).append(caption).append("[CIRCULAR REFERENCE:");
+            appendEscaped(out, throwable.toString());
+            out.append(']').append(LINE_BREAK);
+            return;
+        }
+        out.append(prefix).append(caption);
+        appendEscaped(out, throwable.toString());
+        out.append(LINE_BREAK);
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int last = trace.length - 1;
+        int enclosing = enclosingTrace.length - 1;
+        while (last >= 0 && enclosing >= 0 && trace[last].equals(enclosingTrace[enclosing])) {
+            last--;
+            enclosing--;
+        }
+        appendFrames(out, trace, last + 1, prefix, foldedPackages);
+        int inCommon = trace.length - 1 - last;
+        if (inCommon > 0) {
+            out.append(prefix).append("\t... ").append(String.valueOf(inCommon)).append(" more").append(LINE_BREAK);
+        }
+
+        for (Throwable suppressed : throwable.getSuppressed()) {
+            appendThrowable(out, suppressed, trace, "Suppressed: ", prefix + '\t', depth, maxCauseDepth, foldedPackages, written);
+        }
+
+        Throwable cause = throwable.getCause();
+        if (cause != null) {
+            if (depth < maxCauseDepth) {
+                appendThrowable(out, cause, trace, "Caused by: ", prefix, depth + 1, maxCauseDepth, foldedPackages, written);
+            } else {
+                int remaining = 0;
+                Set<Throwable> counted = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+                for (Throwable t = cause; t != null && counted.add(t); t = t.getCause()) {
+                    remaining++;
+                }
+                out.append(prefix).append("... ").append(String.valueOf(remaining)).append(" more cause(s)").append(LINE_BREAK);
+            }
+        }
+    }
+
+    private static void appendFrames(final Appendable out, final StackTraceElement[] trace, final int end, final String prefix,
+            final String[] foldedPackages) throws IOException {
+        int i = 0;
+        while (i < end) {
+            int folded = 0;
+            while (i + folded < end && isFolded(trace[i + folded], foldedPackages)) {
+                folded++;
+            }
+            if (folded > 1) {
+                out.append(prefix).append("\t... ").append(String.valueOf(folded)).append(" folded frames").append(LINE_BREAK);
+                i += folded;
+                continue;
+            }
+            int period = 0;
+            int repeats = 0;
+            for (int p = 1; p <= MAX_REPEATED_PERIOD && repeats == 0; p++) {
+                repeats = countRepeats(trace, i, p, end);
+                period = p;
+            }
+            int count = repeats > 0 ? period : 1;
+            for (int f = i; f < i + count; f++) {
+                out.append(prefix).append("\tat ");
+                appendEscaped(out, trace[f].toString());
+                out.append(LINE_BREAK);
+            }
+            i += count;
+            if (repeats > 0) {
+                out.append(prefix).append("\t... ").append(String.valueOf(period)).append(" frame(s) repeated ").append(String.valueOf(repeats))
+                        .append(" time(s)").append(LINE_BREAK);
+                i += period * repeats;
+            }
+        }
+    }
+
+    /**
+     * @return how many times the <code>period</code> frames from <code>start</code> are repeated right after, 0 if fewer than twice.
+     */
+    private static int countRepeats(final StackTraceElement[] trace, final int start, final int period, final int end) {
+        int repeats = 0;
+        int next = start + period;
+        while (next + period <= end && sameFrames(trace, start, next, period)) {
+            repeats++;
+            next += period;
+        }
+        return repeats >= 2 ? repeats : 0;
+    }
+
+    private static boolean sameFrames(final StackTraceElement[] trace, final int first, final int second, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (!trace[first + i].equals(trace[second + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFolded(final StackTraceElement frame, final String[] foldedPackages) {
+        for (String folded : foldedPackages) {
+            if (frame.getClassName().startsWith(folded)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
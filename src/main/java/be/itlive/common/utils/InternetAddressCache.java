@@ -0,0 +1,195 @@
+package be.itlive.common.utils;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Bounded cache of parsed {@link InternetAddress}, so the addresses of distribution lists are parsed once instead of for every mail.
+ * <p>
+ * Parsing is the one of {@link InternetAddress#InternetAddress(String)}. Each call returns a copy of the cached address, which the caller may
+ * modify. {@link #validate(Iterable)} checks a whole list in one pass and reports every invalid address.
+ * </p>
+ * <p>
+ * The cache is shared by all the sending threads, so reading it takes no lock: the addresses are held by a {@link ConcurrentHashMap} and
+ * marked when used. Once the maximum is exceeded, a single thread sweeps the cache, removing the addresses not used since the previous
+ * sweep and clearing the mark of the others (second chance eviction, an approximation of least recently used). The maximum can be
+ * exceeded by the addresses cached while a sweep runs.
+ * </p>
+ *
+ * @author vbiertho
+ */
+public class InternetAddressCache {
+
+    /**
+     * Number of addresses kept by the default cache.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final InternetAddressCache DEFAULT = new InternetAddressCache(DEFAULT_MAX_ENTRIES);
+
+    private final ConcurrentMap<String, Entry> addresses = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries maximum number of cached addresses.
+     */
+    public InternetAddressCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache shared by the {@link MailSender}.
+     */
+    public static InternetAddressCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param address the address.
+     * @return the parsed address.
+     * @throws AddressException if the address is not valid.
+     */
+    public InternetAddress parse(final String address) throws AddressException {
+        Entry entry = addresses.get(address);
+        if (entry == null) {
+            misses.increment();
+            entry = new Entry(new InternetAddress(address));
+            if (addresses.put(address, entry) == null && addresses.size() > maxEntries) {
+                evict();
+            }
+        } else {
+            hits.increment();
+            if (!entry.used) {
+                entry.used = true;
+            }
+        }
+        return (InternetAddress) entry.address.clone();
+    }
+
+    /**
+     * @param addresses the addresses, blank ones are ignored.
+     * @return the parsed addresses.
+     * @throws AddressException at the first address which is not valid.
+     */
+    public InternetAddress[] parseAll(final String... addresses) throws AddressException {
+        List<InternetAddress> parsed = new ArrayList<>(addresses.length);
+        for (String address : addresses) {
+            if (!isBlank(address)) {
+                parsed.add(parse(address));
+            }
+        }
+        return parsed.toArray(new InternetAddress[parsed.size()]);
+    }
+
+    /**
+     * Checks all the addresses, valid ones are cached.
+     * @param addresses the addresses, blank ones are ignored.
+     * @return the invalid addresses with their error, in the iteration order, empty if all are valid.
+     */
+    public Map<String, AddressException> validate(final Iterable<String> addresses) {
+        Map<String, AddressException> invalid = new LinkedHashMap<>();
+        for (String address : addresses) {
+            if (!isBlank(address) && !invalid.containsKey(address)) {
+                try {
+                    parse(address);
+                } catch (final AddressException e) {
+                    invalid.put(address, e);
+                }
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * @return the number of cached addresses.
+     */
+    public int size() {
+        return addresses.size();
+    }
+
+    /**
+     * @return the number of addresses found in the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of addresses parsed because not in the cache.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all the cached addresses.
+     */
+    public void clear() {
+        addresses.clear();
+    }
+
+    /**
+     * Sweeps the cache down to its maximum, unless another thread is sweeping it.
+     */
+    private void evict() {
+        // checked again once swept, for the addresses cached meanwhile
+        while (addresses.size() > maxEntries && sweeping.compareAndSet(false, true)) {
+            try {
+                Iterator<Entry> it = addresses.values().iterator();
+                while (addresses.size() > maxEntries) {
+                    if (!it.hasNext()) {
+                        it = addresses.values().iterator();
+                        continue;
+                    }
+                    Entry entry = it.next();
+                    if (entry.used) {
+                        entry.used = false;
+                    } else {
+                        it.remove();
+                    }
+                }
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    /**
+     * A cached address and its mark.
+     */
+    private static final class Entry {
+
+        private final InternetAddress address;
+
+        /**
+         * True if the address was used since the previous sweep.
+         */
+        private volatile boolean used;
+
+        private Entry(final InternetAddress address) {
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package be.itlive.common.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe cache evicting the least recently used entries once the total weight of its values exceeds a maximum.
+ * <p>
+ * By default each value weighs 1, so the maximum weight is a maximum number of entries. A value heavier than the maximum weight is not cached.
+ * </p>
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ * @author vbiertho
+ */
+public class LruCache<K, V> {
+
+    private final long maxWeight;
+
+    private final ToLongFunction<? super V> weigher;
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @param maxEntries maximum number of entries.
+     */
+    public LruCache(final long maxEntries) {
+        this(maxEntries, value -> 1L);
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the values.
+     * @param weigher gives the weight of a value.
+     */
+    public LruCache(final long maxWeight, final ToLongFunction<? super V> weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param key the key.
+     * @return the cached value, null if none.
+     */
+    public synchronized V get(final K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * @param key the key.
+     * @param value the value.
+     * @return false if the value was too heavy to be cached.
+     */
+    public synchronized boolean put(final K key, final V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            return false;
+        }
+        V previous = entries.put(key, value);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+        weight += valueWeight;
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            weight -= weigher.applyAsLong(eldest.getValue());
+            it.remove();
+        }
+        return true;
+    }
+
+    /**
+     * @param key the key.
+     * @return the removed value, null if none.
+     */
+    public synchronized V remove(final K key) {
+        V previous = entries.remove(key);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0L;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the values.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the number of {@link #get(Object)} which found a value.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of {@link #get(Object)} which found nothing.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
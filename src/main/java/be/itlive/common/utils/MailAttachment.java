@@ -1,10 +1,32 @@
 package be.itlive.common.utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
 import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
 
 /**
+ * An attachment of a {@link MailSender}.
+ * <p>
+ * The content is either the given bytes (wrapped, not copied), a file (streamed through a memory mapping), an {@link InputStreamSupplier} or any
+ * {@link DataSource}, so big contents are streamed into the mail instead of being loaded in the heap. Only the bytes and file based
+ * attachments can be serialized, writing the others throws a {@link NotSerializableException}.
+ * </p>
+ *
  * @author vbiertho
  *
  */
@@ -15,6 +37,11 @@ public class MailAttachment implements Serializable {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Content type used when none is given.
+     */
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
     private String fileName;
 
     private String mimeType;
@@ -23,6 +50,23 @@ public class MailAttachment implements Serializable {
 
     private String disposition = Part.ATTACHMENT;
 
+    private String filePath;
+
+    private transient DataSource dataSource;
+
+    /**
+     * Supplies a new stream on the content each time it is called.
+     */
+    @FunctionalInterface
+    public interface InputStreamSupplier {
+
+        /**
+         * @return a new stream on the content, closed by the caller.
+         * @throws IOException if the content can't be read.
+         */
+        InputStream get() throws IOException;
+    }
+
     /**
      * @category Constructor
      * @param fileName the file name
@@ -49,6 +93,125 @@ public class MailAttachment implements Serializable {
         this.disposition = disposition;
     }
 
+    /**
+     * @category Constructor
+     * @param fileName the file name, the name of the file if null
+     * @param mimeType the mime type
+     * @param path the file streamed as content
+     */
+    public MailAttachment(final String fileName, final String mimeType, final Path path) {
+        this.fileName = fileName == null ? path.getFileName().toString() : fileName;
+        this.mimeType = mimeType;
+        this.filePath = path.toString();
+    }
+
+    /**
+     * @category Constructor
+     * @param fileName the file name
+     * @param mimeType the mime type
+     * @param supplier the supplier of the content, it may be called several times
+     */
+    public MailAttachment(final String fileName, final String mimeType, final InputStreamSupplier supplier) {
+        this(new SupplierDataSource(fileName, mimeType, supplier));
+    }
+
+    /**
+     * @category Constructor
+     * @param dataSource the content, its name and content type are used as file name and mime type
+     */
+    public MailAttachment(final DataSource dataSource) {
+        this.fileName = dataSource.getName();
+        this.mimeType = dataSource.getContentType();
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Gives the content as a {@link DataSource}, without copying it. When no content was given, the file name is read as a path.
+     * @return the content.
+     */
+    public DataSource getDataSource() {
+        if (dataSource != null) {
+            return dataSource;
+        }
+        if (bytes != null) {
+            ByteArrayDataSource byteArrayDataSource = new ByteArrayDataSource(bytes, getContentType());
+            byteArrayDataSource.setName(fileName);
+            return byteArrayDataSource;
+        }
+        if (filePath != null) {
+            return new MappedFileDataSource(Paths.get(filePath), fileName, getContentType());
+        }
+        return new FileDataSource(fileName);
+    }
+
+    /**
+     * @param out the stream.
+     * @throws IOException if the content is streamed from a {@link DataSource}, which can't be written.
+     */
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        if (dataSource != null) {
+            // read back, the attachment would have no content
+            throw new NotSerializableException("The attachment " + fileName + " is streamed from a " + dataSource.getClass().getName()
+                    + ", only the bytes and file based attachments can be serialized");
+        }
+        out.defaultWriteObject();
+    }
+
+    /**
+     * @return a body part streaming the content when written.
+     * @throws MessagingException if the part can't be built.
+     */
+    public MimeBodyPart toBodyPart() throws MessagingException {
+        DataSource source = getDataSource();
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(source));
+        part.setFileName(source.getName());
+        part.setDisposition(disposition);
+        if (!source.getContentType().startsWith("text/")) {
+            // avoids a first pass over the whole content to choose the encoding
+            part.setHeader("Content-Transfer-Encoding", "base64");
+        }
+        return part;
+    }
+
+    /**
+     * @param level the compression level, see {@link java.util.zip.Deflater}.
+     * @return an attachment of this content compressed in a zip archive while it is written, with the same disposition.
+     */
+    public MailAttachment zipped(final int level) {
+        MailAttachment zipped = new MailAttachment(new ZipDataSource(getDataSource(), level));
+        zipped.disposition = disposition;
+        return zipped;
+    }
+
+    /**
+     * @return the size of the content in bytes, -1 if unknown.
+     */
+    public long getSize() {
+        if (bytes != null && dataSource == null) {
+            return bytes.length;
+        }
+        if (filePath != null) {
+            try {
+                return Files.size(Paths.get(filePath));
+            } catch (final IOException e) {
+                return -1L;
+            }
+        }
+        if (dataSource == null && fileName != null) {
+            File file = new File(fileName);
+            return file.isFile() ? file.length() : -1L;
+        }
+        return -1L;
+    }
+
+    /**
+     * @return the mime type, application/octet-stream if none.
+     */
+    public String getContentType() {
+        return mimeType == null ? DEFAULT_MIME_TYPE : mimeType;
+    }
+
     /**
      * @category Accessor
      * @return the fileName
@@ -83,7 +246,7 @@ public class MailAttachment implements Serializable {
 
     /**
      * @category Accessor
-     * @return the bytes
+     * @return the bytes, null if the content is not held in memory
      */
     public byte[] getBytes() {
         return bytes;
@@ -105,4 +268,42 @@ public class MailAttachment implements Serializable {
         return disposition;
     }
 
+    /**
+     * {@link DataSource} over an {@link InputStreamSupplier}.
+     */
+    private static final class SupplierDataSource implements DataSource {
+
+        private final String name;
+
+        private final String contentType;
+
+        private final InputStreamSupplier supplier;
+
+        private SupplierDataSource(final String name, final String contentType, final InputStreamSupplier supplier) {
+            this.name = name;
+            this.contentType = contentType == null ? DEFAULT_MIME_TYPE : contentType;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return supplier.get();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachment content is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
 }
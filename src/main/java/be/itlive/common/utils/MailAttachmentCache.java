@@ -0,0 +1,128 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Cache of transfer-encoded {@link MailAttachment} body parts, keyed by the SHA-256 of their content.
+ * <p>
+ * An attachment sent many times (a policy document, a CSV) is base64 encoded once, the following mails write its cached encoded bytes. The
+ * cache holds at most <code>maxBytes</code> of encoded parts, evicting the least recently used ones. Hashing still reads the content of each
+ * attachment, but it is much cheaper than encoding it and does not allocate the encoded form. An attachment of unknown size, or whose base64
+ * form can't fit in the cache, bypasses it: it is neither hashed nor encoded in memory, but streamed when the mail is written.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * private static final MailAttachmentCache ATTACHMENT_CACHE = new MailAttachmentCache(32 * 1024 * 1024);
+ * ...
+ * mailSender.setAttachmentCache(ATTACHMENT_CACHE);
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailAttachmentCache {
+
+    private final long maxBytes;
+
+    private final LruCache<String, PreencodedBodyPart> parts;
+
+    private final AtomicLong bypassCount = new AtomicLong();
+
+    /**
+     * @param maxBytes maximum size of the encoded parts kept in the cache.
+     */
+    public MailAttachmentCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        parts = new LruCache<>(maxBytes, PreencodedBodyPart::getEncodedSize);
+    }
+
+    /**
+     * @param attachment the attachment.
+     * @return a body part of the attachment, written from the cached encoded bytes, or a plain one if it bypasses the cache.
+     * @throws MessagingException if the attachment can't be read or encoded.
+     */
+    public MimeBodyPart getBodyPart(final MailAttachment attachment) throws MessagingException {
+        long size = attachment.getSize();
+        // base64 size, line breaks excepted
+        if (size < 0 || (size + 2) / 3 * 4 > maxBytes) {
+            bypassCount.incrementAndGet();
+            return attachment.toBodyPart();
+        }
+        String key = key(attachment);
+        PreencodedBodyPart part = parts.get(key);
+        if (part == null) {
+            part = PreencodedBodyPart.encode(attachment.toBodyPart());
+            parts.put(key, part);
+        }
+        return part.toBodyPart();
+    }
+
+    /**
+     * @return the number of cached parts.
+     */
+    public int size() {
+        return parts.size();
+    }
+
+    /**
+     * @return the size of the cached encoded parts.
+     */
+    public long getEncodedBytes() {
+        return parts.getWeight();
+    }
+
+    /**
+     * @return the number of attachments found in the cache.
+     */
+    public long getHitCount() {
+        return parts.getHitCount();
+    }
+
+    /**
+     * @return the number of attachments encoded because not in the cache.
+     */
+    public long getMissCount() {
+        return parts.getMissCount();
+    }
+
+    /**
+     * @return the number of attachments not cached because of their size.
+     */
+    public long getBypassCount() {
+        return bypassCount.get();
+    }
+
+    /**
+     * Removes all the cached parts.
+     */
+    public void clear() {
+        parts.clear();
+    }
+
+    /**
+     * The encoded part also holds the name, type and disposition, they are part of the key.
+     */
+    private static String key(final MailAttachment attachment) throws MessagingException {
+        DataSource source = attachment.getDataSource();
+        String hash;
+        if (source instanceof ByteArrayDataSource && attachment.getBytes() != null) {
+            hash = DigestUtils.sha256Hex(attachment.getBytes());
+        } else {
+            try (InputStream in = source.getInputStream()) {
+                hash = DigestUtils.sha256Hex(in);
+            } catch (final IOException e) {
+                throw new MessagingException("Error reading attachment " + attachment.getFileName(), e);
+            }
+        }
+        return hash + '|' + source.getName() + '|' + source.getContentType() + '|' + attachment.getDisposition();
+    }
+}
@@ -0,0 +1,276 @@
+package be.itlive.common.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Sends many {@link MailSender} over one connected {@link Transport} per {@link Session}.
+ * <p>
+ * All messages are built first, then grouped by session and pushed with {@link Transport#sendMessage(javax.mail.Message, Address[])} on a
+ * single connection. A failing mail does not stop the batch: its error is reported in the {@link MailBatchReport}. The connection is only
+ * kept after recipients were refused; after any other failure (an I/O error, a 421 reply, an error after the data) a new one is opened for
+ * the remaining mails, and a mail which failed on a broken connection is sent again once on the new one.
+ * </p>
+ * <p>
+ * The settings of each mail are kept: its metrics record its phases as {@link MailSender#sendMail()} does, the connection being recorded on
+ * the mail it is opened for, and its deduplicator skips it if it was already sent. The connection of a session is borrowed from the pool of
+ * the batch, or else from the transportPool of the mails. A mail with a relayGroup is not batched but sent with
+ * {@link MailSender#sendMail()}, its relays choosing the connection.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailBatchReport report = new MailBatch(pool).sendAll(mails);
+ * for (MailSendResult failure : report.getFailures()) {
+ *     LOGGER.warn("Mail not sent: {}", failure);
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailBatch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailBatch.class);
+
+    private final MailTransportPool transportPool;
+
+    /**
+     * Batch opening its own connection per session, closed at the end of {@link #sendAll(Collection)}, unless the mails have a
+     * transportPool.
+     */
+    public MailBatch() {
+        this(null);
+    }
+
+    /**
+     * @param transportPool pool to borrow the connection of each session from, null for the transportPool of the mails.
+     */
+    public MailBatch(final MailTransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    /**
+     * Sends the mails, then releases their file appendables.
+     * @param mails the mails to send.
+     * @return the outcome of each mail, in the iteration order of <code>mails</code>; a mail skipped by its deduplicator is a success.
+     */
+    public MailBatchReport sendAll(final Collection<? extends MailSender> mails) {
+        List<BatchedMail> batched = new ArrayList<>(mails.size());
+        for (MailSender mail : mails) {
+            batched.add(new BatchedMail(mail));
+        }
+
+        try {
+            Map<Session, Map<MailTransportPool, List<BatchedMail>>> bySession = new LinkedHashMap<>();
+            for (BatchedMail item : batched) {
+                if (item.mail.getRelayGroup() != null) {
+                    sendAlone(item);
+                } else if (build(item)) {
+                    MailTransportPool pool = transportPool != null ? transportPool : item.mail.getTransportPool();
+                    bySession.computeIfAbsent(item.mail.getSession(), s -> new LinkedHashMap<>())
+                            .computeIfAbsent(pool, p -> new ArrayList<>()).add(item);
+                }
+            }
+
+            for (Map.Entry<Session, Map<MailTransportPool, List<BatchedMail>>> entry : bySession.entrySet()) {
+                for (Map.Entry<MailTransportPool, List<BatchedMail>> group : entry.getValue().entrySet()) {
+                    send(entry.getKey(), group.getKey(), group.getValue());
+                }
+            }
+        } finally {
+            for (BatchedMail item : batched) {
+                item.mail.releaseFileBuffers();
+            }
+        }
+
+        List<MailSendResult> results = new ArrayList<>(batched.size());
+        for (BatchedMail item : batched) {
+            results.add(new MailSendResult(item.mail, item.error));
+        }
+        return new MailBatchReport(results);
+    }
+
+    private static void sendAlone(final BatchedMail item) {
+        try {
+            item.mail.sendMail();
+        } catch (final MessagingException | UnsupportedEncodingException | RuntimeException e) {
+            item.error = e;
+        }
+    }
+
+    /**
+     * Builds and saves the message of the mail, as {@link MailSender#sendMail()} does before sending it.
+     * @return true if the mail is to be sent; false if it failed or is a duplicate.
+     */
+    private static boolean build(final BatchedMail item) {
+        MailMetrics metrics = item.mail.getMetrics();
+        MailSendPhase phase = MailSendPhase.BUILD;
+        long start = System.nanoTime();
+        try {
+            item.message = item.mail.createMessage();
+            long built = System.nanoTime();
+            metrics.recordPhase(MailSendPhase.BUILD, built - start);
+
+            phase = MailSendPhase.ENCODE;
+            item.message.saveChanges();
+            item.recipients = item.message.getAllRecipients();
+            if (item.recipients == null || item.recipients.length == 0) {
+                throw new SendFailedException("No recipient addresses");
+            }
+            MailDeduplicator deduplicator = item.mail.getDeduplicator();
+            if (deduplicator != null) {
+                String digest = deduplicator.digest(item.message);
+                if (!deduplicator.tryAcquire(digest)) {
+                    LOGGER.info("Mail '{}' already sent, skipped", item.mail.getSubject());
+                    return false;
+                }
+                item.digest = digest;
+            }
+            long encoded = System.nanoTime();
+            metrics.recordPhase(MailSendPhase.ENCODE, encoded - built);
+            item.elapsed = encoded - start;
+            return true;
+        } catch (final MessagingException | UnsupportedEncodingException | RuntimeException e) {
+            item.error = e;
+            metrics.recordFailure(phase, e);
+            return false;
+        }
+    }
+
+    private void send(final Session session, final MailTransportPool pool, final List<BatchedMail> group) {
+        Transport transport = null;
+        int failed = 0;
+        try {
+            for (BatchedMail item : group) {
+                MailMetrics metrics = item.mail.getMetrics();
+                long start = System.nanoTime();
+                Exception error = null;
+                // a connection failure is retried once on a new connection
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    if (transport == null) {
+                        try {
+                            transport = open(session, pool, metrics);
+                        } catch (final MessagingException | RuntimeException e) {
+                            // no connection for this mail, the next one will try again
+                            error = e;
+                            break;
+                        }
+                    }
+                    try {
+                        MailTransportPool.sendMessage(transport, item.message, item.recipients, metrics);
+                        error = null;
+                        break;
+                    } catch (final MessagingException | RuntimeException e) {
+                        error = e;
+                        if (!SmtpFailures.isRecipientRefusal(e) || !transport.isConnected()) {
+                            // dead or in an unknown SMTP state, e.g. after a 421 reply or an error after the data
+                            LOGGER.debug("Connection failed during batch, reconnecting: {}", e.getMessage());
+                            discard(session, pool, transport);
+                            transport = null;
+                        }
+                        if (e instanceof RuntimeException || !SmtpFailures.isConnectionFailure(e)) {
+                            break;
+                        }
+                    }
+                }
+                if (error != null) {
+                    failed(item, error);
+                    failed++;
+                    continue;
+                }
+                if (item.digest != null) {
+                    item.mail.getDeduplicator().sent(item.digest);
+                }
+                metrics.recordSent(MailSender.getWrittenBytes(item.message));
+                metrics.recordPhase(MailSendPhase.TOTAL, item.elapsed + System.nanoTime() - start);
+            }
+        } finally {
+            if (transport != null) {
+                close(session, pool, transport);
+            }
+        }
+        LOGGER.debug("Batch of {} mail(s) sent, {} failed", group.size(), failed);
+    }
+
+    /**
+     * Records the failure of a mail, whose connection or transfer failure is already recorded on its metrics.
+     */
+    private static void failed(final BatchedMail item, final Exception e) {
+        item.error = e;
+        if (item.digest != null) {
+            // not sent, a retry must not be skipped
+            item.mail.getDeduplicator().failed(item.digest);
+        }
+    }
+
+    private static Transport open(final Session session, final MailTransportPool pool, final MailMetrics metrics)
+            throws MessagingException {
+        if (pool != null) {
+            return pool.borrow(session, metrics);
+        }
+        Transport transport = session.getTransport();
+        MailTransportPool.connect(transport, metrics);
+        return transport;
+    }
+
+    private static void close(final Session session, final MailTransportPool pool, final Transport transport) {
+        if (pool != null) {
+            pool.release(session, transport);
+        } else {
+            discard(session, null, transport);
+        }
+    }
+
+    private static void discard(final Session session, final MailTransportPool pool, final Transport transport) {
+        if (pool != null) {
+            pool.invalidate(session, transport);
+        } else {
+            try {
+                transport.close();
+            } catch (final MessagingException e) {
+                LOGGER.debug("Error closing transport: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A mail of the batch and its state.
+     */
+    private static final class BatchedMail {
+
+        private final MailSender mail;
+
+        private MimeMessage message;
+
+        private Address[] recipients;
+
+        private String digest;
+
+        /**
+         * Time spent building and encoding the message, in nanoseconds.
+         */
+        private long elapsed;
+
+        private Exception error;
+
+        private BatchedMail(final MailSender mail) {
+            this.mail = mail;
+        }
+    }
+}
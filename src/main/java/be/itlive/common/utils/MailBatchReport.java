@@ -0,0 +1,68 @@
+package be.itlive.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per mail outcome of a {@link MailBatch}, in the order the mails were given.
+ *
+ * @author vbiertho
+ */
+public class MailBatchReport {
+
+    private final List<MailSendResult> results;
+
+    /**
+     * @category Constructor
+     * @param results the results.
+     */
+    public MailBatchReport(final List<MailSendResult> results) {
+        this.results = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @category Accessor
+     * @return all the results.
+     */
+    public List<MailSendResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the results of the mails which could not be sent.
+     */
+    public List<MailSendResult> getFailures() {
+        List<MailSendResult> failures = new ArrayList<>();
+        for (MailSendResult result : results) {
+            if (!result.isSuccess()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return the number of sent mails.
+     */
+    public int getSuccessCount() {
+        return results.size() - getFailures().size();
+    }
+
+    /**
+     * @return true if every mail was sent.
+     */
+    public boolean isSuccess() {
+        for (MailSendResult result : results) {
+            if (!result.isSuccess()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "MailBatchReport [total=" + results.size() + ", failures=" + getFailures().size() + "]";
+    }
+}
@@ -0,0 +1,278 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Mail body template with <code>${expression}</code> placeholders, parsed once and rendered directly into an {@link Appendable} such as
+ * {@link MailSender#getMessageAppendable()}.
+ * <p>
+ * An expression is a dotted path, as understood by {@link OGNLBeanUtils}. When rendering with a {@link Map}, the first element of the path
+ * is the key in the map and the rest is evaluated on the value, nested maps being read by key. A null value is rendered as an empty string.
+ * The <code>render</code> methods escape the values for HTML with {@link HtmlRenderUtils#appendEscaped(Appendable, CharSequence)}, the
+ * <code>renderRaw</code> methods write them as is, for plain text bodies, subjects or values which are already HTML. Templates can be
+ * cached by name with {@link #register(String, String)} or {@link #fromResource(String)}.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailBodyTemplate template = MailBodyTemplate.fromResource("mails/confirmation.html");
+ * template.render(mailSender.getMessageAppendable(), model);
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public final class MailBodyTemplate {
+
+    private static final ConcurrentMap<String, MailBodyTemplate> CACHE = new ConcurrentHashMap<>();
+
+    private static final Pattern PATH_ELEMENT = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private static final String START = "${";
+
+    private static final char END = '}';
+
+    /**
+     * Literal texts, one more than the placeholders.
+     */
+    private final String[] texts;
+
+    /**
+     * Split path of each placeholder.
+     */
+    private final String[][] paths;
+
+    private MailBodyTemplate(final String[] texts, final String[][] paths) {
+        this.texts = texts;
+        this.paths = paths;
+    }
+
+    /**
+     * Parses a template, without caching it.
+     * @param source the template.
+     * @return the compiled template.
+     * @throws IllegalArgumentException if a placeholder is not closed or is not a valid path.
+     */
+    public static MailBodyTemplate compile(final String source) {
+        List<String> texts = new ArrayList<>();
+        List<String[]> paths = new ArrayList<>();
+        int from = 0;
+        int start;
+        while ((start = source.indexOf(START, from)) >= 0) {
+            int end = source.indexOf(END, start + START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Placeholder not closed at " + start);
+            }
+            String expression = source.substring(start + START.length(), end).trim();
+            String[] path = expression.split("\\.");
+            for (String element : path) {
+                if (!PATH_ELEMENT.matcher(element).matches()) {
+                    throw new IllegalArgumentException("The expression : \"" + expression + "\" is not valid.");
+                }
+            }
+            texts.add(source.substring(from, start));
+            paths.add(path);
+            from = end + 1;
+        }
+        texts.add(source.substring(from));
+        return new MailBodyTemplate(texts.toArray(new String[texts.size()]), paths.toArray(new String[paths.size()][]));
+    }
+
+    /**
+     * Compiles a template and caches it, replacing any template of the same name.
+     * @param name the name of the template.
+     * @param source the template.
+     * @return the compiled template.
+     */
+    public static MailBodyTemplate register(final String name, final String source) {
+        MailBodyTemplate template = compile(source);
+        CACHE.put(name, template);
+        return template;
+    }
+
+    /**
+     * @param name the name of the template.
+     * @return the cached template, null if none.
+     */
+    public static MailBodyTemplate get(final String name) {
+        return CACHE.get(name);
+    }
+
+    /**
+     * Gets a template from the classpath (UTF-8), loaded and compiled on first use only.
+     * @param resourceName the name of the resource, also used as template name.
+     * @return the compiled template.
+     * @throws IllegalArgumentException if the resource doesn't exist or can't be read.
+     */
+    public static MailBodyTemplate fromResource(final String resourceName) {
+        MailBodyTemplate template = CACHE.get(resourceName);
+        if (template == null) {
+            template = compile(readResource(resourceName));
+            MailBodyTemplate previous = CACHE.putIfAbsent(resourceName, template);
+            if (previous != null) {
+                template = previous;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Removes all the cached templates.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Renders the template, the values escaped for HTML.
+     * @param out where to render.
+     * @param model the values, by first path element.
+     * @throws IOException if <code>out</code> fails.
+     */
+    public void render(final Appendable out, final Map<String, ?> model) throws IOException {
+        render(out, model, true);
+    }
+
+    /**
+     * Renders the template, the values escaped for HTML.
+     * @param out where to render.
+     * @param bean the object the paths are evaluated on, or a {@link Map} of the values.
+     * @throws IOException if <code>out</code> fails.
+     */
+    public void render(final Appendable out, final Object bean) throws IOException {
+        render(out, bean, true);
+    }
+
+    /**
+     * Renders the template, the values escaped for HTML.
+     * @param model the values, a {@link Map} or a bean.
+     * @return the rendered template.
+     */
+    public String render(final Object model) {
+        return render(model, true);
+    }
+
+    /**
+     * Renders the template, the values written as is.
+     * @param out where to render.
+     * @param model the values, by first path element.
+     * @throws IOException if <code>out</code> fails.
+     */
+    public void renderRaw(final Appendable out, final Map<String, ?> model) throws IOException {
+        render(out, model, false);
+    }
+
+    /**
+     * Renders the template, the values written as is.
+     * @param out where to render.
+     * @param bean the object the paths are evaluated on, or a {@link Map} of the values.
+     * @throws IOException if <code>out</code> fails.
+     */
+    public void renderRaw(final Appendable out, final Object bean) throws IOException {
+        render(out, bean, false);
+    }
+
+    /**
+     * Renders the template, the values written as is.
+     * @param model the values, a {@link Map} or a bean.
+     * @return the rendered template.
+     */
+    public String renderRaw(final Object model) {
+        return render(model, false);
+    }
+
+    private String render(final Object model, final boolean escape) {
+        StringBuilder out = new StringBuilder(length());
+        try {
+            render(out, model, escape);
+        } catch (final IOException e) {
+            // StringBuilder does not throw IOException
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private void render(final Appendable out, final Object bean, final boolean escape) throws IOException {
+        Map<?, ?> model = bean instanceof Map ? (Map<?, ?>) bean : null;
+        for (int i = 0; i < paths.length; i++) {
+            out.append(texts[i]);
+            String[] path = paths[i];
+            Object value = model == null ? evaluate(bean, path, 0) : evaluate(model.get(path[0]), path, 1);
+            appendValue(out, value, escape);
+        }
+        out.append(texts[paths.length]);
+    }
+
+    /**
+     * @return the number of placeholders.
+     */
+    public int getPlaceholderCount() {
+        return paths.length;
+    }
+
+    /**
+     * @return the length of the literal text.
+     */
+    private int length() {
+        int length = 0;
+        for (String text : texts) {
+            length += text.length();
+        }
+        return length;
+    }
+
+    private static Object evaluate(final Object root, final String[] path, final int from) {
+        Object value = root;
+        for (int i = from; i < path.length && value != null; i++) {
+            if (value instanceof Map) {
+                value = ((Map<?, ?>) value).get(path[i]);
+            } else {
+                value = OGNLBeanUtils.getFieldOrMethodReturnValue(value, path[i]);
+            }
+        }
+        return value;
+    }
+
+    private static void appendValue(final Appendable out, final Object value, final boolean escape) throws IOException {
+        if (value == null) {
+            return;
+        }
+        CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+        if (escape) {
+            HtmlRenderUtils.appendEscaped(out, text);
+        } else {
+            out.append(text);
+        }
+    }
+
+    private static String readResource(final String resourceName) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = MailBodyTemplate.class.getClassLoader();
+        }
+        InputStream in = classLoader.getResourceAsStream(resourceName);
+        if (in == null) {
+            throw new IllegalArgumentException("Template not found: " + resourceName);
+        }
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            StringBuilder source = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                source.append(buffer, 0, read);
+            }
+            return source.toString();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Template can't be read: " + resourceName, e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Skips the mails already sent within a time window, so that retried jobs do not send the same mail twice.
+ * <p>
+ * A mail is identified by a SHA-256 digest of what its recipients see: the From, Reply-To, To, Cc, Bcc and Subject headers and the type,
+ * disposition, name and decoded content of each part. The Message-ID, the Date and the multipart boundaries, which change at each build, are
+ * left out. The digests of the sent mails are kept, with their sending time, for <code>windowMillis</code> and at most
+ * <code>maxEntries</code>; when a file is given they are also appended to it, and reloaded when a deduplicator is opened on the same file.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailDeduplicator dedup = new MailDeduplicator(TimeUnit.HOURS.toMillis(24), 100000, Paths.get("/var/lib/app/mail-dedup.log"));
+ * ...
+ * mailSender.setDeduplicator(dedup);
+ * mailSender.sendMail(); // does nothing if the same mail was sent in the last 24 hours
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailDeduplicator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailDeduplicator.class);
+
+    private static final String[] DIGESTED_HEADERS = { "From", "Reply-To", "To", "Cc", "Bcc", "Subject" };
+
+    /**
+     * Time of the digests reserved by a sending in progress.
+     */
+    private static final long RESERVED = -1L;
+
+    private final long windowMillis;
+
+    private final int maxEntries;
+
+    private final Path file;
+
+    /**
+     * Sending time by digest, in sending order.
+     */
+    private final LinkedHashMap<String, Long> sent = new LinkedHashMap<>();
+
+    private Writer writer;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @param windowMillis how long a sent mail is remembered.
+     * @param maxEntries maximum number of remembered mails, the oldest ones are forgotten first.
+     */
+    public MailDeduplicator(final long windowMillis, final int maxEntries) {
+        if (windowMillis <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("windowMillis and maxEntries must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+        this.file = null;
+    }
+
+    /**
+     * Opens a deduplicator persisted in a file, the digests still in the window are reloaded and the file is rewritten with them only.
+     * @param windowMillis how long a sent mail is remembered.
+     * @param maxEntries maximum number of remembered mails, the oldest ones are forgotten first.
+     * @param file the file the digests are appended to.
+     * @throws IOException if the file can't be read or written.
+     */
+    public MailDeduplicator(final long windowMillis, final int maxEntries, final Path file) throws IOException {
+        if (windowMillis <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("windowMillis and maxEntries must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+        this.file = file;
+        load();
+    }
+
+    /**
+     * @param message the built message, saved or not.
+     * @return the hexadecimal digest of the message, stable from one build to the other.
+     * @throws MessagingException if the message can't be read.
+     */
+    public String digest(final MimeMessage message) throws MessagingException {
+        MessageDigest md = newDigest();
+        for (String header : DIGESTED_HEADERS) {
+            update(md, header);
+            update(md, message.getHeader(header, ","));
+        }
+        try (DigestOutputStream out = new DigestOutputStream(NullOutputStream.INSTANCE, md)) {
+            digestPart(out, message);
+        } catch (final IOException e) {
+            throw new MessagingException("Error reading the content of the message", e);
+        }
+        return Hex.encodeHexString(md.digest());
+    }
+
+    /**
+     * Reserves the digest for a sending, unless it was already sent or is being sent.
+     * @param digest the digest of the mail.
+     * @return true if the mail has to be sent, then {@link #sent(String)} or {@link #failed(String)} must be called.
+     */
+    public synchronized boolean tryAcquire(final String digest) {
+        evict(System.currentTimeMillis());
+        if (sent.containsKey(digest)) {
+            hits++;
+            return false;
+        }
+        misses++;
+        sent.put(digest, RESERVED);
+        return true;
+    }
+
+    /**
+     * Remembers that the mail was sent.
+     * @param digest the digest of the mail, reserved by {@link #tryAcquire(String)}.
+     */
+    public synchronized void sent(final String digest) {
+        long now = System.currentTimeMillis();
+        sent.remove(digest);
+        sent.put(digest, now);
+        if (writer != null) {
+            try {
+                writer.write(now + " " + digest + "\n");
+                writer.flush();
+            } catch (final IOException e) {
+                LOGGER.warn("Error persisting mail digest {} in {}: {}", digest, file, e.getMessage());
+            }
+        }
+        evict(now);
+    }
+
+    /**
+     * Releases the reservation of a mail which could not be sent, so it can be sent again.
+     * @param digest the digest of the mail, reserved by {@link #tryAcquire(String)}.
+     */
+    public synchronized void failed(final String digest) {
+        Long time = sent.get(digest);
+        if (time != null && time == RESERVED) {
+            sent.remove(digest);
+        }
+    }
+
+    /**
+     * @return the number of remembered mails.
+     */
+    public synchronized int size() {
+        return sent.size();
+    }
+
+    /**
+     * @return the number of mails skipped as duplicates.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of mails which were not duplicates.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Closes the file, if any.
+     * @throws IOException if the file can't be closed.
+     */
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void evict(final long now) {
+        Iterator<Map.Entry<String, Long>> it = sent.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            long time = eldest.getValue();
+            if (time == RESERVED) {
+                continue;
+            }
+            if (sent.size() <= maxEntries && now - time < windowMillis) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void load() throws IOException {
+        long now = System.currentTimeMillis();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    try {
+                        sent.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+                    } catch (final NumberFormatException e) {
+                        LOGGER.warn("Ignoring corrupted line of {}: {}", file, line);
+                    }
+                }
+            }
+        }
+        evict(now);
+        // rewrites the file with the digests still in the window
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+            for (Map.Entry<String, Long> entry : sent.entrySet()) {
+                out.write(entry.getValue() + " " + entry.getKey() + "\n");
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII, StandardOpenOption.APPEND);
+    }
+
+    private static void digestPart(final DigestOutputStream out, final Part part) throws MessagingException, IOException {
+        MessageDigest md = out.getMessageDigest();
+        // the type of the handler, the header being only set by saveChanges
+        DataHandler handler = part.getDataHandler();
+        ContentType contentType = new ContentType(handler.getContentType());
+        if (contentType.getParameterList() != null) {
+            contentType.getParameterList().remove("boundary");
+        }
+        update(md, contentType.toString());
+        update(md, part.getDisposition());
+        update(md, part.getFileName());
+        if (contentType.match("multipart/*")) {
+            Multipart multipart = (Multipart) handler.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                digestPart(out, multipart.getBodyPart(i));
+            }
+        } else {
+            if (handler.getDataSource() instanceof ZipDataSource) {
+                // the archive holds the time it is written at, its content is digested instead
+                handler = new DataHandler(((ZipDataSource) handler.getDataSource()).getSource());
+            }
+            handler.writeTo(out);
+        }
+    }
+
+    private static void update(final MessageDigest md, final String value) {
+        if (value != null) {
+            md.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        // separates the values, so that moving text from one to the next changes the digest
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Discards what is written.
+     */
+    private static final class NullOutputStream extends OutputStream {
+
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package be.itlive.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+
+/**
+ * Outcome, per address, of a mail delivered in several transactions.
+ *
+ * @author vbiertho
+ */
+public class MailDeliveryReport {
+
+    private final List<Address> sent = new ArrayList<>();
+
+    private final List<Address> unsent = new ArrayList<>();
+
+    private final List<Address> invalid = new ArrayList<>();
+
+    private final List<Exception> errors = new ArrayList<>();
+
+    /**
+     * @param addresses the addresses the mail was delivered to.
+     */
+    synchronized void addSent(final Address[] addresses) {
+        addAll(sent, addresses);
+    }
+
+    /**
+     * @param addresses the valid addresses the mail could not be delivered to.
+     * @param error the cause.
+     */
+    synchronized void addUnsent(final Address[] addresses, final Exception error) {
+        addAll(unsent, addresses);
+        errors.add(error);
+    }
+
+    /**
+     * @param e the failure of a transaction, possibly partial.
+     */
+    synchronized void addFailure(final SendFailedException e) {
+        addAll(sent, e.getValidSentAddresses());
+        addAll(unsent, e.getValidUnsentAddresses());
+        addAll(invalid, e.getInvalidAddresses());
+        errors.add(e);
+    }
+
+    /**
+     * @return the addresses the mail was delivered to.
+     */
+    public synchronized List<Address> getSent() {
+        return Collections.unmodifiableList(new ArrayList<>(sent));
+    }
+
+    /**
+     * @return the valid addresses the mail could not be delivered to.
+     */
+    public synchronized List<Address> getUnsent() {
+        return Collections.unmodifiableList(new ArrayList<>(unsent));
+    }
+
+    /**
+     * @return the addresses refused by the server.
+     */
+    public synchronized List<Address> getInvalid() {
+        return Collections.unmodifiableList(new ArrayList<>(invalid));
+    }
+
+    /**
+     * @return the errors of the failed transactions.
+     */
+    public synchronized List<Exception> getErrors() {
+        return Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    /**
+     * @return true if the mail was delivered to every address.
+     */
+    public synchronized boolean isSuccess() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return a {@link SendFailedException} aggregating all the failures, null if none.
+     */
+    public synchronized SendFailedException toException() {
+        if (errors.isEmpty()) {
+            return null;
+        }
+        SendFailedException e = new SendFailedException(errors.size() + " transaction(s) failed, " + unsent.size() + " unsent and "
+                + invalid.size() + " invalid address(es)", errors.get(0), sent.toArray(new Address[sent.size()]),
+                unsent.toArray(new Address[unsent.size()]), invalid.toArray(new Address[invalid.size()]));
+        for (int i = 1; i < errors.size(); i++) {
+            e.addSuppressed(errors.get(i));
+        }
+        return e;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MailDeliveryReport [sent=" + sent.size() + ", unsent=" + unsent.size() + ", invalid=" + invalid.size() + ", errors="
+                + errors.size() + "]";
+    }
+
+    private static void addAll(final List<Address> list, final Address[] addresses) {
+        if (addresses != null) {
+            Collections.addAll(list, addresses);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package be.itlive.common.utils;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends {@link MailSender} concurrently, on virtual threads when the JDK supports them (Java 21+), on a fixed pool of platform threads
+ * otherwise.
+ * <p>
+ * The dispatched mails are queued per SMTP server (host and port of the session) and at most <code>maxPerHost</code> of them are sent at
+ * once to the same server, so thousands of mails can be dispatched without opening thousands of connections. A thread is only started when
+ * the server has a free slot, then sends the queued mails of that server one after the other. A mail waiting for its server holds no
+ * thread, so a slow server never ties up the platform threads needed by the other servers. Before Java 24, the synchronized sections of the
+ * SMTP transport pin a virtual thread to its carrier during the I/O, so sending a mail still occupies a carrier thread.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * try (MailDispatcher dispatcher = new MailDispatcher(20)) {
+ *     for (MailSender mail : mails) {
+ *         dispatcher.dispatch(mail).exceptionally(...);
+ *     }
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailDispatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailDispatcher.class);
+
+    /**
+     * Number of platform threads when virtual threads are not available.
+     */
+    public static final int DEFAULT_PLATFORM_THREADS = 32;
+
+    private final int maxPerHost;
+
+    private final ExecutorService executor;
+
+    private final boolean virtual;
+
+    private final ConcurrentMap<String, HostQueue> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxPerHost maximum number of mails sent at once to the same SMTP server.
+     */
+    public MailDispatcher(final int maxPerHost) {
+        this(maxPerHost, DEFAULT_PLATFORM_THREADS);
+    }
+
+    /**
+     * @param maxPerHost maximum number of mails sent at once to the same SMTP server.
+     * @param platformThreads number of threads sending the mails when virtual threads are not available.
+     */
+    public MailDispatcher(final int maxPerHost, final int platformThreads) {
+        if (maxPerHost <= 0 || platformThreads <= 0) {
+            throw new IllegalArgumentException("maxPerHost and platformThreads must be positive");
+        }
+        this.maxPerHost = maxPerHost;
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : Executors.newFixedThreadPool(platformThreads, new DaemonThreadFactory());
+    }
+
+    /**
+     * Sends the mail in the background.
+     * @param mail the mail.
+     * @return a future completed with the mail once sent, or with the sending error.
+     * @throws RejectedExecutionException if the dispatcher is closed.
+     */
+    public CompletableFuture<MailSender> dispatch(final MailSender mail) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The dispatcher is closed");
+        }
+        HostQueue host = hosts.computeIfAbsent(hostOf(mail.getSession()), h -> new HostQueue());
+        CompletableFuture<MailSender> future = new CompletableFuture<>();
+        Runnable task = () -> send(host, mail, future);
+        host.pending.add(task);
+        try {
+            host.start();
+        } catch (final RejectedExecutionException e) {
+            // closed meanwhile, unless a running thread of the server already took the mail
+            if (host.pending.remove(task)) {
+                throw e;
+            }
+        }
+        return future;
+    }
+
+    private static void send(final HostQueue host, final MailSender mail, final CompletableFuture<MailSender> future) {
+        Throwable error = null;
+        host.sending.incrementAndGet();
+        try {
+            mail.sendMail();
+        } catch (final Throwable e) {
+            // an Error too, the future must complete
+            error = e;
+        } finally {
+            // decremented before completing, so the callbacks see the mail sent
+            host.sending.decrementAndGet();
+        }
+        if (error == null) {
+            future.complete(mail);
+        } else {
+            LOGGER.error("Error sending mail '{}': {}", mail.getSubject(), error.getMessage());
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * @return true if the mails are sent on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param session the session.
+     * @return the number of mails being sent to the SMTP server of the session.
+     */
+    public int getInFlight(final Session session) {
+        HostQueue host = hosts.get(hostOf(session));
+        return host == null ? 0 : host.sending.get();
+    }
+
+    /**
+     * @return the maxPerHost
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Stops accepting mails, the dispatched ones are still sent.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param timeout maximum time to wait.
+     * @param unit unit of <code>timeout</code>.
+     * @return true if all the dispatched mails were handled, false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Shuts down and waits for the dispatched mails to be handled.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        try {
+            while (!awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.debug("Waiting for the dispatched mails to be sent");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The SMTP server of the session, "host:port".
+     */
+    private static String hostOf(final Session session) {
+        if (session == null) {
+            return "";
+        }
+        String protocol = session.getProperty("mail.transport.protocol");
+        String prefix = "mail." + (protocol == null ? "smtp" : protocol) + ".";
+        String host = session.getProperty(prefix + "host");
+        if (host == null) {
+            host = session.getProperty("mail.host");
+        }
+        String port = session.getProperty(prefix + "port");
+        return (host == null ? "localhost" : host) + ':' + (port == null ? "default" : port);
+    }
+
+    /**
+     * Looked up by reflection, the library being compiled for Java 8.
+     * @return the virtual thread per task executor, null if the JDK does not support it.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Java before 21, or 19-20 without --enable-preview
+            LOGGER.debug("Virtual threads not available, using platform threads: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * The mails waiting for an SMTP server and the threads sending them.
+     */
+    private final class HostQueue {
+
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Number of threads sending the mails of the server, at most maxPerHost.
+         */
+        private final AtomicInteger threads = new AtomicInteger();
+
+        /**
+         * Number of mails being sent.
+         */
+        private final AtomicInteger sending = new AtomicInteger();
+
+        /**
+         * Starts a thread if the server has a free slot, the queued mails are otherwise sent by the running ones.
+         */
+        private void start() {
+            if (tryAcquire()) {
+                try {
+                    executor.execute(this::drain);
+                } catch (final RejectedExecutionException e) {
+                    threads.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+
+        private void drain() {
+            do {
+                try {
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    threads.decrementAndGet();
+                }
+                // a mail queued after the last poll may have found no free slot
+            } while (!pending.isEmpty() && tryAcquire());
+        }
+
+        private boolean tryAcquire() {
+            int current;
+            do {
+                current = threads.get();
+                if (current >= maxPerHost) {
+                    return false;
+                }
+            } while (!threads.compareAndSet(current, current + 1));
+            return true;
+        }
+    }
+
+    /**
+     * Names the platform threads and makes them daemon.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "mail-dispatcher-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import be.itlive.common.enums.MimeType;
+
+/**
+ * Sends the same mail to many recipients, with only a personalized part rendered per recipient.
+ * <p>
+ * The shared parts (attachments) are encoded once when added and kept as {@link PreencodedBodyPart}, each message then only renders its
+ * subject and body templates with the model of its recipient. The shared HTML is encoded once too, in inline parts following the rendered
+ * body in a <code>multipart/mixed</code> body part, which the mail readers show one after the other as a single body. The values are escaped in an HTML body, written as is in the subject and in a plain text body. The mails
+ * are {@link MailSender} and can be sent one by one or with {@link #send(Map, MailTransportPool)}.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailMerge merge = new MailMerge(session, "hr@company.com", MimeType.TEXT_HTML.getMimeType() + "; charset=\"UTF-8\"");
+ * merge.setSubjectTemplate(MailBodyTemplate.compile("Your payslip, ${name}"));
+ * merge.setBodyTemplate(MailBodyTemplate.fromResource("mails/payslip.html"));
+ * merge.addAttachment(policyDocument);
+ * MailBatchReport report = merge.send(modelsByRecipient, pool);
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailMerge {
+
+    private final Session session;
+
+    private final String sender;
+
+    private final String contentType;
+
+    private String senderName = "";
+
+    private String replyTo;
+
+    private MailBodyTemplate subjectTemplate;
+
+    private MailBodyTemplate bodyTemplate;
+
+    private final List<PreencodedBodyPart> sharedParts = new ArrayList<>();
+
+    private final List<PreencodedBodyPart> sharedHtml = new ArrayList<>();
+
+    /**
+     * @param session the session
+     * @param sender the sender
+     * @param contentType the content type of the personalized body, "text/plain" if null
+     */
+    public MailMerge(final Session session, final String sender, final String contentType) {
+        this.session = session;
+        this.sender = sender;
+        this.contentType = contentType == null ? MimeType.TEXT_PLAIN.getMimeType() + "; charset=\"UTF-8\"" : contentType;
+    }
+
+    /**
+     * Adds a part shared by all the mails, encoded now.
+     * @param part the part.
+     * @throws MessagingException if the part can't be encoded.
+     */
+    public void addSharedPart(final MimeBodyPart part) throws MessagingException {
+        sharedParts.add(PreencodedBodyPart.encode(part));
+    }
+
+    /**
+     * Adds static HTML shared by all the mails, encoded now and shown inline after the personalized body of each one.
+     * @param html the HTML.
+     * @throws IllegalStateException if the personalized body is not HTML.
+     * @throws MessagingException if the HTML can't be encoded.
+     */
+    public void addSharedHtml(final String html) throws MessagingException {
+        if (!isHtml()) {
+            throw new IllegalStateException("Shared HTML can't be appended to a body of type " + contentType);
+        }
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(html, contentType);
+        part.setDisposition(Part.INLINE);
+        sharedHtml.add(PreencodedBodyPart.encode(part));
+    }
+
+    /**
+     * @return true if the personalized body is HTML, its values are then escaped.
+     */
+    private boolean isHtml() {
+        return contentType.startsWith(MimeType.TEXT_HTML.getMimeType());
+    }
+
+    /**
+     * Adds an attachment shared by all the mails, encoded now.
+     * @param attachment the attachment.
+     * @throws MessagingException if the attachment can't be encoded.
+     */
+    public void addAttachment(final MailAttachment attachment) throws MessagingException {
+        addSharedPart(attachment.toBodyPart());
+    }
+
+    /**
+     * @param recipients the recipient(s), comma separated.
+     * @param model the model of the templates, a {@link Map} or a bean.
+     * @return the mail of the recipient, rendered when its message is created.
+     */
+    public MailSender newMail(final String recipients, final Object model) {
+        MergedMail mail = new MergedMail(this, recipients, model);
+        mail.setSenderName(senderName);
+        return mail;
+    }
+
+    /**
+     * Sends one mail per entry.
+     * @param modelsByRecipient the model of each recipient.
+     * @param transportPool the pool to send with, may be null.
+     * @return the outcome of each mail.
+     */
+    public MailBatchReport send(final Map<String, ?> modelsByRecipient, final MailTransportPool transportPool) {
+        List<MailSender> mails = new ArrayList<>(modelsByRecipient.size());
+        for (Map.Entry<String, ?> entry : modelsByRecipient.entrySet()) {
+            mails.add(newMail(entry.getKey(), entry.getValue()));
+        }
+        return new MailBatch(transportPool).sendAll(mails);
+    }
+
+    /**
+     * @return the senderName
+     */
+    public String getSenderName() {
+        return senderName;
+    }
+
+    /**
+     * @param senderName the senderName to set
+     */
+    public void setSenderName(final String senderName) {
+        this.senderName = senderName;
+    }
+
+    /**
+     * @param replyTo the replyTo(s), comma separated
+     */
+    public void setReplyTo(final String replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    /**
+     * @return the subjectTemplate
+     */
+    public MailBodyTemplate getSubjectTemplate() {
+        return subjectTemplate;
+    }
+
+    /**
+     * @param subjectTemplate the subjectTemplate to set
+     */
+    public void setSubjectTemplate(final MailBodyTemplate subjectTemplate) {
+        this.subjectTemplate = subjectTemplate;
+    }
+
+    /**
+     * @return the bodyTemplate
+     */
+    public MailBodyTemplate getBodyTemplate() {
+        return bodyTemplate;
+    }
+
+    /**
+     * @param bodyTemplate the bodyTemplate to set
+     */
+    public void setBodyTemplate(final MailBodyTemplate bodyTemplate) {
+        this.bodyTemplate = bodyTemplate;
+    }
+
+    /**
+     * A mail of the merge, rendering its templates and adding the shared parts.
+     */
+    private static final class MergedMail extends MailSender {
+
+        private final MailMerge merge;
+
+        private final Object model;
+
+        private MergedMail(final MailMerge merge, final String recipients, final Object model) {
+            super(merge.session, merge.sender, recipients, merge.replyTo, merge.contentType);
+            this.merge = merge;
+            this.model = model;
+            if (merge.subjectTemplate != null) {
+                setSubject(merge.subjectTemplate.renderRaw(model));
+            }
+        }
+
+        @Override
+        protected BodyPart createBody() throws MessagingException {
+            BodyPart body = merge.bodyTemplate == null ? super.createBody() : renderBody();
+            if (merge.sharedHtml.isEmpty()) {
+                return body;
+            }
+            body.setDisposition(Part.INLINE);
+            MimeMultipart inline = new MimeMultipart();
+            inline.addBodyPart(body);
+            for (PreencodedBodyPart part : merge.sharedHtml) {
+                inline.addBodyPart(part.toBodyPart());
+            }
+            MimeBodyPart wrapper = new MimeBodyPart();
+            wrapper.setContent(inline);
+            return wrapper;
+        }
+
+        private BodyPart renderBody() throws MessagingException {
+            StringBuilder body = new StringBuilder();
+            try {
+                if (merge.isHtml()) {
+                    merge.bodyTemplate.render(body, model);
+                } else {
+                    merge.bodyTemplate.renderRaw(body, model);
+                }
+            } catch (final IOException e) {
+                throw new MessagingException("Error rendering the body", e);
+            }
+            MimeBodyPart part = new MimeBodyPart();
+            part.setContent(body.toString(), getContentType());
+            return part;
+        }
+
+        @Override
+        protected void addMailAttachments(final MimeMultipart multipart) throws MessagingException {
+            super.addMailAttachments(multipart);
+            for (PreencodedBodyPart part : merge.sharedParts) {
+                multipart.addBodyPart(part.toBodyPart());
+            }
+        }
+    }
+}
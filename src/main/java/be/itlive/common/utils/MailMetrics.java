@@ -0,0 +1,64 @@
+package be.itlive.common.utils;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Receives the measures of the sending of mails by {@link MailSender}, {@link MailTransportPool} and {@link AsyncMailSender}.
+ * <p>
+ * The methods are called on the sending threads, implementations must be thread safe and cheap. {@link #NOOP} ignores everything and is used
+ * when no metrics are set, {@link MailMetricsRecorder} keeps lock-free counters and histograms exported through JMX.
+ * </p>
+ * <p>
+ * Each phase is recorded once, as a duration or as a failure: the building, the encoding and the total by the {@link MailSender}, each
+ * connection opened and each transfer tried where they are done, by the {@link MailTransportPool} or the {@link MailRelayGroup} when the
+ * mail goes through them. A mail sent after a failover or a retry on a new connection thus records several connections or transfers.
+ * </p>
+ *
+ * @author vbiertho
+ */
+public interface MailMetrics {
+
+    /**
+     * Metrics ignoring all the measures.
+     */
+    MailMetrics NOOP = new MailMetrics() {
+
+        @Override
+        public void recordPhase(final MailSendPhase phase, final long nanos) {
+        }
+
+        @Override
+        public void recordSent(final long bytes) {
+        }
+
+        @Override
+        public void recordFailure(final MailSendPhase phase, final Throwable error) {
+        }
+
+        @Override
+        public void recordQueueDepth(final int depth) {
+        }
+    };
+
+    /**
+     * @param phase the phase.
+     * @param nanos how long the phase took, in nanoseconds.
+     */
+    void recordPhase(MailSendPhase phase, long nanos);
+
+    /**
+     * @param bytes the size of the sent message, -1 if unknown.
+     */
+    void recordSent(long bytes);
+
+    /**
+     * @param phase the phase which failed.
+     * @param error the error.
+     */
+    void recordFailure(MailSendPhase phase, Throwable error);
+
+    /**
+     * @param depth the number of mails waiting to be sent.
+     */
+    void recordQueueDepth(int depth);
+}
@@ -0,0 +1,69 @@
+package be.itlive.common.utils;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MailMetricsRecorder}. The maps are keyed by {@link be.itlive.common.enums.MailSendPhase} name, except the failures
+ * returned by {@link #getFailures()}, keyed by exception class name.
+ *
+ * @author vbiertho
+ */
+public interface MailMetricsMXBean {
+
+    /**
+     * @return the number of sent mails.
+     */
+    long getSentCount();
+
+    /**
+     * @return the total size of the sent mails whose size is known.
+     */
+    long getSentBytes();
+
+    /**
+     * @return the number of failed sendings.
+     */
+    long getFailureCount();
+
+    /**
+     * @return the number of failures by exception class.
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * @return the number of failures by phase.
+     */
+    Map<String, Long> getPhaseFailures();
+
+    /**
+     * @return the last recorded number of mails waiting to be sent.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of measures by phase.
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return the mean duration by phase, in milliseconds.
+     */
+    Map<String, Double> getMeanMillis();
+
+    /**
+     * @return the 99th percentile of the duration by phase, in milliseconds.
+     */
+    Map<String, Double> getPercentile99Millis();
+
+    /**
+     * @param phase the name of the phase.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the upper bound of the duration of the phase at this percentile, in milliseconds.
+     */
+    double percentileMillis(String phase, double percentile);
+
+    /**
+     * Resets all the counters.
+     */
+    void reset();
+}
@@ -0,0 +1,271 @@
+package be.itlive.common.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Lock-free {@link MailMetrics}, counting with {@link LongAdder} so that concurrent senders do not contend on the counters.
+ * <p>
+ * The durations of each phase are kept in a histogram of power of two buckets (1µs, 2µs, 4µs...), percentiles are thus approximated by the
+ * upper bound of their bucket. The recorder can be registered as an MXBean with {@link #register(String)}.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailMetricsRecorder metrics = new MailMetricsRecorder();
+ * metrics.register("notifications");
+ * mailSender.setMetrics(metrics);
+ * pool.setMetrics(metrics);
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailMetricsRecorder implements MailMetrics, MailMetricsMXBean {
+
+    /**
+     * Domain of the registered MXBeans.
+     */
+    public static final String JMX_DOMAIN = "be.itlive.common";
+
+    /**
+     * Number of histogram buckets, the last one holds everything from 2^(BUCKETS - 2) µs (about 35 minutes).
+     */
+    private static final int BUCKETS = 33;
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final Map<MailSendPhase, Histogram> histograms = new EnumMap<>(MailSendPhase.class);
+
+    private final LongAdder sentCount = new LongAdder();
+
+    private final LongAdder sentBytes = new LongAdder();
+
+    private final LongAdder failureCount = new LongAdder();
+
+    private final Map<MailSendPhase, LongAdder> phaseFailures = new EnumMap<>(MailSendPhase.class);
+
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private volatile int queueDepth;
+
+    /**
+     * @category Constructor
+     */
+    public MailMetricsRecorder() {
+        for (MailSendPhase phase : MailSendPhase.values()) {
+            histograms.put(phase, new Histogram());
+            phaseFailures.put(phase, new LongAdder());
+        }
+    }
+
+    /**
+     * Registers this recorder in the platform MBean server.
+     * @param name the name of the recorder, distinguishing it from the other ones.
+     * @return the name it was registered with.
+     * @throws JMException if it can't be registered.
+     */
+    public ObjectName register(final String name) throws JMException {
+        ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=MailMetrics,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public void recordPhase(final MailSendPhase phase, final long nanos) {
+        histograms.get(phase).record(nanos);
+    }
+
+    @Override
+    public void recordSent(final long bytes) {
+        sentCount.increment();
+        if (bytes > 0) {
+            sentBytes.add(bytes);
+        }
+    }
+
+    @Override
+    public void recordFailure(final MailSendPhase phase, final Throwable error) {
+        failureCount.increment();
+        phaseFailures.get(phase).increment();
+        failures.computeIfAbsent(error.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void recordQueueDepth(final int depth) {
+        queueDepth = depth;
+    }
+
+    @Override
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    @Override
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseFailures() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<MailSendPhase, LongAdder> entry : phaseFailures.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<MailSendPhase, Histogram> entry : histograms.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().count.sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Map.Entry<MailSendPhase, Histogram> entry : histograms.entrySet()) {
+            means.put(entry.getKey().name(), entry.getValue().meanNanos() / NANOS_PER_MILLI);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getPercentile99Millis() {
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        for (MailSendPhase phase : histograms.keySet()) {
+            percentiles.put(phase.name(), percentileMillis(phase.name(), 99d));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public double percentileMillis(final String phase, final double percentile) {
+        return histograms.get(MailSendPhase.valueOf(phase)).percentileNanos(percentile) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @param phase the phase.
+     * @return the number of measures of the phase.
+     */
+    public long getCount(final MailSendPhase phase) {
+        return histograms.get(phase).count.sum();
+    }
+
+    /**
+     * @param phase the phase.
+     * @return the number of failures of the phase.
+     */
+    public long getFailureCount(final MailSendPhase phase) {
+        return phaseFailures.get(phase).sum();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        sentCount.reset();
+        sentBytes.reset();
+        failureCount.reset();
+        for (LongAdder phaseFailure : phaseFailures.values()) {
+            phaseFailure.reset();
+        }
+        failures.clear();
+    }
+
+    /**
+     * Histogram of durations in power of two buckets of microseconds.
+     */
+    private static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(final long nanos) {
+            long micros = Math.max(0L, nanos / 1000L);
+            // bucket i holds the durations below 2^i µs
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        private double meanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0d : (double) totalNanos.sum() / n;
+        }
+
+        private double percentileNanos(final double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0d;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100d);
+            long cumulated = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulated += snapshot[i];
+                if (cumulated >= rank) {
+                    return (1L << i) * 1000d;
+                }
+            }
+            return (1L << (BUCKETS - 1)) * 1000d;
+        }
+
+        private void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+        }
+    }
+}
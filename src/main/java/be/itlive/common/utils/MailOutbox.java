@@ -0,0 +1,597 @@
+package be.itlive.common.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable outbox: a mail is written to an on-disk journal before being sent, so it survives an unavailable SMTP relay or a crash.
+ * <p>
+ * The journal is a directory of append-only, memory-mapped segment files holding the MIME bytes of each message. {@link #enqueue(MailSender)}
+ * returns as soon as the message is journaled, delivery happens on background threads and is retried with an exponential backoff, up to
+ * <code>maxAttempts</code> attempts. Only transient failures (I/O or a 4xx reply) are retried, and only to the recipients not yet sent to: a
+ * mail refused with a 5xx reply or by all its recipients is not retried. A mail which can't be delivered, refused by the server or out of
+ * attempts, is written to the {@link #DEAD_LETTER_DIRECTORY} of the journal as an <code>.eml</code> file. Delivered entries are marked in place, pending entries are
+ * replayed when an outbox is opened on an existing directory, and a background compaction deletes (or rewrites) the segments which hold few
+ * pending entries. Delivery is at-least-once: a crash between sending and marking may send a mail twice.
+ * </p>
+ * <p>
+ * A segment stays mapped until its buffer is garbage collected, and a mapped file can't be deleted on Windows: a segment which can't be
+ * deleted is retried at the next compaction and when the outbox is closed, and its moved entries are marked so they are not replayed.
+ * </p>
+ * Record layout: <code>status(int) length(int) createdMillis(long) crc32(int) mime(byte[length])</code>, the status being written last.
+ *
+ * @author vbiertho
+ */
+public class MailOutbox implements Closeable {
+
+    /**
+     * Default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default number of delivery threads.
+     */
+    public static final int DEFAULT_DELIVERY_THREADS = 2;
+
+    /**
+     * Default number of delivery attempts of a mail, about two hours with the backoff.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 20;
+
+    /**
+     * Sub-directory of the journal where the undeliverable mails are written.
+     */
+    public static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailOutbox.class);
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int STATUS_END = 0;
+
+    private static final int STATUS_PENDING = 1;
+
+    private static final int STATUS_DELIVERED = 2;
+
+    private static final int STATUS_FAILED = 3;
+
+    /**
+     * Copied to another segment by the compaction.
+     */
+    private static final int STATUS_MOVED = 4;
+
+    private static final int HEADER_SIZE = 20;
+
+    private static final long INITIAL_RETRY_MILLIS = 1000L;
+
+    private static final long MAX_RETRY_MILLIS = 10L * 60L * 1000L;
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 60L * 1000L;
+
+    /**
+     * A sealed segment whose pending bytes are below this ratio is rewritten.
+     */
+    private static final double REWRITE_RATIO = 0.25d;
+
+    private final Path directory;
+
+    private final Session session;
+
+    private final MailTransportPool transportPool;
+
+    private final int segmentSize;
+
+    private final int maxAttempts;
+
+    private final ScheduledExecutorService executor;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<Long, Entry> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Compacted segment files which could not be deleted yet.
+     */
+    private final List<Path> undeleted = new ArrayList<>();
+
+    private Segment active;
+
+    private volatile boolean closed;
+
+    /**
+     * Opens the outbox with default settings, and replays its pending entries.
+     * @param directory directory of the journal, created if needed.
+     * @param session session used to send and to parse journaled messages.
+     * @throws IOException if the journal can't be opened.
+     */
+    public MailOutbox(final Path directory, final Session session) throws IOException {
+        this(directory, session, null, DEFAULT_SEGMENT_SIZE, DEFAULT_DELIVERY_THREADS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Opens the outbox, trying each mail {@link #DEFAULT_MAX_ATTEMPTS} times, and replays its pending entries.
+     * @param directory directory of the journal, created if needed.
+     * @param session session used to send and to parse journaled messages.
+     * @param transportPool pool to send with, may be null.
+     * @param segmentSize size of a segment file.
+     * @param deliveryThreads number of threads sending the mails.
+     * @throws IOException if the journal can't be opened.
+     */
+    public MailOutbox(final Path directory, final Session session, final MailTransportPool transportPool, final int segmentSize,
+            final int deliveryThreads) throws IOException {
+        this(directory, session, transportPool, segmentSize, deliveryThreads, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Opens the outbox and replays its pending entries.
+     * @param directory directory of the journal, created if needed.
+     * @param session session used to send and to parse journaled messages.
+     * @param transportPool pool to send with, may be null.
+     * @param segmentSize size of a segment file.
+     * @param deliveryThreads number of threads sending the mails.
+     * @param maxAttempts number of delivery attempts of a mail before it is written to the {@link #DEAD_LETTER_DIRECTORY}.
+     * @throws IOException if the journal can't be opened.
+     */
+    public MailOutbox(final Path directory, final Session session, final MailTransportPool transportPool, final int segmentSize,
+            final int deliveryThreads, final int maxAttempts) throws IOException {
+        if (segmentSize <= HEADER_SIZE || deliveryThreads <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid segmentSize, deliveryThreads or maxAttempts");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.session = session;
+        this.transportPool = transportPool;
+        this.segmentSize = segmentSize;
+        this.maxAttempts = maxAttempts;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(deliveryThreads, r -> {
+            Thread thread = new Thread(r, "mail-outbox-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Entry> replayed = open();
+        if (!replayed.isEmpty()) {
+            LOGGER.info("Replaying {} pending mail(s) from {}", replayed.size(), directory);
+        }
+        for (Entry entry : replayed) {
+            schedule(entry, 0L);
+        }
+        executor.scheduleWithFixedDelay(this::compactQuietly, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Builds the message, journals it and schedules its delivery. The file appendables of the mail are released.
+     * @param mail the mail.
+     * @return the id of the entry, valid until this outbox is closed.
+     * @throws MessagingException if the message can't be built.
+     * @throws UnsupportedEncodingException if the message can't be built.
+     * @throws IOException if the message can't be journaled.
+     */
+    public long enqueue(final MailSender mail) throws MessagingException, UnsupportedEncodingException, IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            MimeMessage message = mail.createMessage();
+            message.saveChanges();
+            message.writeTo(bytes);
+        } finally {
+            // the journal holds the content from now on
+            mail.releaseFileBuffers();
+        }
+        return enqueue(bytes.toByteArray());
+    }
+
+    /**
+     * Journals an already encoded message and schedules its delivery.
+     * @param mime the MIME bytes of the message, including its Bcc header.
+     * @return the id of the entry, valid until this outbox is closed.
+     * @throws IOException if the message can't be journaled.
+     */
+    public long enqueue(final byte[] mime) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("MailOutbox is closed");
+            }
+            entry = append(mime, System.currentTimeMillis());
+        }
+        pending.put(entry.id, entry);
+        schedule(entry, 0L);
+        return entry.id;
+    }
+
+    /**
+     * @return the number of journaled mails not delivered yet.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @param id an entry id returned by {@link #enqueue(MailSender)}.
+     * @return true if the entry is still waiting for delivery.
+     */
+    public boolean isPending(final long id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * @return the directory where the undeliverable mails are written.
+     */
+    public Path getDeadLetterDirectory() {
+        return directory.resolve(DEAD_LETTER_DIRECTORY);
+    }
+
+    /**
+     * Deletes the sealed segments without pending entries and rewrites the ones with few pending entries. Runs periodically in the background.
+     * @return the number of compacted segments, deleted or left for a later deletion.
+     * @throws IOException if a segment can't be rewritten.
+     */
+    public synchronized int compact() throws IOException {
+        deleteUndeleted();
+        List<Segment> candidates = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && (segment.pendingBytes == 0 || segment.pendingBytes < segment.position * REWRITE_RATIO)) {
+                candidates.add(segment);
+            }
+        }
+        for (Segment segment : candidates) {
+            for (Entry entry : pending.values()) {
+                if (entry.segment == segment) {
+                    byte[] mime = segment.read(entry.offset);
+                    Entry moved = append(mime, segment.buffer.getLong(entry.offset + 8));
+                    // not replayed from this segment if it can't be deleted
+                    segment.buffer.putInt(entry.offset, STATUS_MOVED);
+                    // the entry keeps its id, only its location changes
+                    entry.segment = moved.segment;
+                    entry.offset = moved.offset;
+                }
+            }
+            segment.buffer.force();
+            segment.close();
+            segments.remove(segment.sequence);
+            undeleted.add(segment.path);
+        }
+        deleteUndeleted();
+        return candidates.size();
+    }
+
+    /**
+     * Stops the delivery threads, pending entries stay in the journal and are replayed by the next outbox opened on the directory.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            deleteUndeleted();
+            if (!undeleted.isEmpty()) {
+                LOGGER.warn("Compacted segment(s) {} still mapped, left to the compaction of the next outbox", undeleted);
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void deleteUndeleted() {
+        for (Iterator<Path> it = undeleted.iterator(); it.hasNext();) {
+            Path path = it.next();
+            try {
+                Files.deleteIfExists(path);
+                it.remove();
+            } catch (final IOException e) {
+                // typically on Windows, until the mapping is garbage collected
+                LOGGER.debug("Can't delete compacted segment {} yet: {}", path, e.toString());
+            }
+        }
+    }
+
+    private List<Entry> open() throws IOException {
+        List<Entry> replayed = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(sequence, new Segment(sequence, file, (int) Files.size(file)));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            replayed.addAll(segment.recover());
+        }
+        for (Entry entry : replayed) {
+            pending.put(entry.id, entry);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        return replayed;
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private Entry append(final byte[] mime, final long created) throws IOException {
+        int recordSize = HEADER_SIZE + mime.length;
+        // keep room for the end marker of the segment
+        if (active == null || active.position + recordSize + 4 > active.capacity) {
+            long sequence = segments.isEmpty() ? 0L : segments.lastKey() + 1;
+            Path file = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+            active = new Segment(sequence, file, Math.max(segmentSize, recordSize + 4));
+            segments.put(sequence, active);
+        }
+        int offset = active.position;
+        CRC32 crc = new CRC32();
+        crc.update(mime, 0, mime.length);
+
+        MappedByteBuffer buffer = active.buffer;
+        buffer.putInt(offset + 4, mime.length);
+        buffer.putLong(offset + 8, created);
+        buffer.putInt(offset + 16, (int) crc.getValue());
+        put(buffer, offset + HEADER_SIZE, mime);
+        buffer.putInt(offset, STATUS_PENDING);
+        buffer.force();
+
+        active.position += recordSize;
+        active.pendingBytes += recordSize;
+        return new Entry(ids.incrementAndGet(), active, offset);
+    }
+
+    private synchronized void mark(final Entry entry, final int status) {
+        if (pending.remove(entry.id) == null || entry.segment.buffer == null) {
+            return;
+        }
+        entry.segment.buffer.putInt(entry.offset, status);
+        entry.segment.pendingBytes -= HEADER_SIZE + entry.segment.buffer.getInt(entry.offset + 4);
+    }
+
+    private synchronized byte[] read(final Entry entry) {
+        return entry.segment.read(entry.offset);
+    }
+
+    private void schedule(final Entry entry, final long delayMillis) {
+        if (!closed) {
+            executor.schedule(() -> deliver(entry, delayMillis), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deliver(final Entry entry, final long previousDelay) {
+        if (!pending.containsKey(entry.id)) {
+            return;
+        }
+        entry.attempts++;
+        try {
+            MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(read(entry)));
+            Address[] recipients = entry.recipients != null ? entry.recipients : message.getAllRecipients();
+            if (recipients == null || recipients.length == 0) {
+                throw new SendFailedException("No recipient addresses");
+            }
+            // no saveChanges(), the journaled message is sent as is
+            if (transportPool != null) {
+                transportPool.send(session, message, recipients);
+            } else {
+                Transport transport = session.getTransport();
+                try {
+                    transport.connect();
+                    transport.sendMessage(message, recipients);
+                } finally {
+                    transport.close();
+                }
+            }
+            mark(entry, STATUS_DELIVERED);
+        } catch (final SendFailedException e) {
+            Address[] retryable = SmtpFailures.getRetryableRecipients(e);
+            if (SmtpFailures.isPermanent(e) || retryable.length == 0) {
+                // refused with a 5xx reply, or every address was refused: retrying won't help
+                LOGGER.error("Mail {} of the outbox refused by the server, giving up: {}", entry.id, e.getMessage());
+                deadLetter(entry);
+            } else {
+                // the recipients already sent to or refused for good are left out
+                entry.recipients = retryable;
+                retry(entry, previousDelay, e);
+            }
+        } catch (final MessagingException | RuntimeException e) {
+            retry(entry, previousDelay, e);
+        }
+    }
+
+    private void retry(final Entry entry, final long previousDelay, final Exception e) {
+        if (entry.attempts >= maxAttempts) {
+            LOGGER.error("Mail {} of the outbox not sent after {} attempts, giving up: {}", entry.id, entry.attempts, e.getMessage());
+            deadLetter(entry);
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_MILLIS, Math.max(INITIAL_RETRY_MILLIS, previousDelay * 2));
+        LOGGER.warn("Mail {} of the outbox not sent, retrying in {} ms: {}", entry.id, delay, e.getMessage());
+        schedule(entry, delay);
+    }
+
+    /**
+     * Writes the mail to the dead letter directory, then marks it as failed.
+     */
+    private void deadLetter(final Entry entry) {
+        byte[] mime;
+        synchronized (this) {
+            if (!pending.containsKey(entry.id) || entry.segment.buffer == null) {
+                return;
+            }
+            mime = entry.segment.read(entry.offset);
+        }
+        try {
+            Path deadLetters = Files.createDirectories(getDeadLetterDirectory());
+            Files.write(deadLetters.resolve(String.format("%d-%d.eml", System.currentTimeMillis(), entry.id)), mime);
+            mark(entry, STATUS_FAILED);
+        } catch (final IOException e) {
+            // left pending, replayed by the next outbox
+            LOGGER.error("Can't write mail {} of the outbox to {}: {}", entry.id, getDeadLetterDirectory(), e.getMessage(), e);
+        }
+    }
+
+    private static void put(final ByteBuffer buffer, final int offset, final byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private static void get(final ByteBuffer buffer, final int offset, final byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+    }
+
+    private void compactQuietly() {
+        try {
+            int deleted = compact();
+            if (deleted > 0) {
+                LOGGER.debug("Outbox compaction deleted {} segment(s)", deleted);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.error("Outbox compaction failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A journaled mail, its location may change on compaction.
+     */
+    private static final class Entry {
+
+        private final long id;
+
+        private int attempts;
+
+        /**
+         * The recipients left after a partial failure, null for all the recipients of the message; not journaled, a replay sends to all.
+         */
+        private Address[] recipients;
+
+        private Segment segment;
+
+        private int offset;
+
+        private Entry(final long id, final Segment segment, final int offset) {
+            this.id = id;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * One memory-mapped journal file.
+     */
+    private final class Segment {
+
+        private final long sequence;
+
+        private final Path path;
+
+        private final int capacity;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer buffer;
+
+        private int position;
+
+        private long pendingBytes;
+
+        private Segment(final long sequence, final Path path, final int capacity) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.capacity = capacity;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /**
+         * Finds the end of the records and the pending ones, a torn last record is ignored.
+         */
+        private List<Entry> recover() {
+            List<Entry> entries = new ArrayList<>();
+            int offset = 0;
+            while (offset + HEADER_SIZE <= capacity) {
+                int status = buffer.getInt(offset);
+                int length = buffer.getInt(offset + 4);
+                if (status == STATUS_END || length < 0 || offset + HEADER_SIZE + length > capacity) {
+                    break;
+                }
+                if (status == STATUS_PENDING) {
+                    byte[] mime = read(offset);
+                    CRC32 crc = new CRC32();
+                    crc.update(mime, 0, mime.length);
+                    if ((int) crc.getValue() != buffer.getInt(offset + 16)) {
+                        LOGGER.warn("Corrupted record at {} of {}, ignoring the rest of the segment", offset, path);
+                        break;
+                    }
+                    entries.add(new Entry(ids.incrementAndGet(), this, offset));
+                    pendingBytes += HEADER_SIZE + length;
+                }
+                offset += HEADER_SIZE + length;
+            }
+            position = offset;
+            LOGGER.debug("Segment {} recovered, {} pending mail(s)", sequence, entries.size());
+            return entries;
+        }
+
+        private byte[] read(final int offset) {
+            byte[] mime = new byte[buffer.getInt(offset + 4)];
+            get(buffer, offset + HEADER_SIZE, mime);
+            return mime;
+        }
+
+        private void close() {
+            buffer = null;
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOGGER.debug("Error closing segment {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
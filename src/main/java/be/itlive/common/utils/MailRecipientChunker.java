@@ -0,0 +1,189 @@
+package be.itlive.common.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Delivers a {@link MailSender} with a very large number of recipients in several SMTP transactions of at most <code>chunkSize</code>
+ * recipients, as relays reject or throttle transactions with thousands of RCPT TO.
+ * <p>
+ * The message is built and encoded once and only the envelope recipients are split: every chunk receives the same headers, so the To and Cc
+ * headers list all the recipients to all of them. The recipients of a large mailing are thus meant to be given as Bcc, which is not sent.
+ * The chunks are sent in parallel on the given {@link Executor}, and the partial failures are aggregated in one {@link MailDeliveryReport}.
+ * </p>
+ * <p>
+ * The settings of the mail are kept: the chunks go through its relayGroup if any, else over the given {@link MailTransportPool} or the
+ * transportPool of the mail. Its metrics record the building and encoding once, then each connection and transfer, and each chunk sent.
+ * Its deduplicator skips the whole mail if it was already sent; it is marked as sent as soon as one chunk is delivered, so a retry can't
+ * send it twice to the same recipients.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailDeliveryReport report = new MailRecipientChunker(500, pool, executor).send(newsletter);
+ * if (!report.isSuccess()) {
+ *     throw report.toException();
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailRecipientChunker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailRecipientChunker.class);
+
+    private final int chunkSize;
+
+    private final MailTransportPool transportPool;
+
+    private final Executor executor;
+
+    /**
+     * @param chunkSize maximum number of recipients per transaction.
+     * @param transportPool the pool to send with, null for the transportPool of the mails.
+     * @param executor the executor sending the chunks, null to send them one after the other in the calling thread.
+     */
+    public MailRecipientChunker(final int chunkSize, final MailTransportPool transportPool, final Executor executor) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.transportPool = transportPool;
+        this.executor = executor;
+    }
+
+    /**
+     * Sends the mail in chunks of recipients; its file appendables are released once it is encoded.
+     * @param mail the mail.
+     * @return the outcome per address, empty if the mail is skipped by its deduplicator.
+     * @throws MessagingException if the message can't be built.
+     * @throws UnsupportedEncodingException if the message can't be built.
+     */
+    public MailDeliveryReport send(final MailSender mail) throws MessagingException, UnsupportedEncodingException {
+        MailMetrics metrics = mail.getMetrics();
+        MailDeduplicator deduplicator = mail.getDeduplicator();
+        long start = System.nanoTime();
+        MailSendPhase phase = MailSendPhase.BUILD;
+        Address[] recipients;
+        byte[] encoded;
+        String digest = null;
+        try {
+            MimeMessage message = mail.createMessage();
+            long built = System.nanoTime();
+            metrics.recordPhase(MailSendPhase.BUILD, built - start);
+
+            phase = MailSendPhase.ENCODE;
+            message.saveChanges();
+            recipients = message.getAllRecipients();
+            if (recipients == null || recipients.length == 0) {
+                throw new SendFailedException("No recipient addresses");
+            }
+            if (deduplicator != null) {
+                digest = deduplicator.digest(message);
+                if (!deduplicator.tryAcquire(digest)) {
+                    LOGGER.info("Mail '{}' already sent, skipped", mail.getSubject());
+                    return new MailDeliveryReport();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out);
+            encoded = out.toByteArray();
+            metrics.recordPhase(MailSendPhase.ENCODE, System.nanoTime() - built);
+        } catch (final MessagingException | UnsupportedEncodingException | RuntimeException e) {
+            failed(mail, digest, phase, e);
+            throw e;
+        } catch (final IOException e) {
+            MessagingException error = new MessagingException("Error encoding the message", e);
+            failed(mail, digest, phase, error);
+            throw error;
+        } finally {
+            // the chunks are sent from the encoded bytes
+            mail.releaseFileBuffers();
+        }
+
+        MailDeliveryReport report = new MailDeliveryReport();
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < recipients.length; from += chunkSize) {
+            Address[] chunk = Arrays.copyOfRange(recipients, from, Math.min(recipients.length, from + chunkSize));
+            Runnable task = () -> sendChunk(mail, encoded, chunk, report);
+            if (executor == null) {
+                task.run();
+            } else {
+                chunks.add(CompletableFuture.runAsync(task, executor));
+            }
+        }
+        CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).join();
+        if (digest != null) {
+            if (report.getSent().isEmpty()) {
+                deduplicator.failed(digest);
+            } else {
+                deduplicator.sent(digest);
+            }
+        }
+        metrics.recordPhase(MailSendPhase.TOTAL, System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * @return the chunkSize
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    private static void failed(final MailSender mail, final String digest, final MailSendPhase phase, final Exception e) {
+        if (digest != null) {
+            mail.getDeduplicator().failed(digest);
+        }
+        mail.getMetrics().recordFailure(phase, e);
+    }
+
+    private void sendChunk(final MailSender mail, final byte[] encoded, final Address[] chunk, final MailDeliveryReport report) {
+        Session session = mail.getSession();
+        MailMetrics metrics = mail.getMetrics();
+        MailTransportPool pool = transportPool != null ? transportPool : mail.getTransportPool();
+        try {
+            // each chunk parses its own message sharing the encoded bytes, a message is not safe for concurrent writes
+            MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(encoded));
+            if (mail.getRelayGroup() != null) {
+                mail.getRelayGroup().send(message, chunk, metrics);
+            } else if (pool != null) {
+                pool.send(session, message, chunk, metrics);
+            } else {
+                MailTransportPool.sendOnNewConnection(session, message, chunk, metrics);
+            }
+            metrics.recordSent(encoded.length);
+            report.addSent(chunk);
+        } catch (final SendFailedException e) {
+            if (isEmpty(e.getValidSentAddresses()) && isEmpty(e.getValidUnsentAddresses()) && isEmpty(e.getInvalidAddresses())) {
+                report.addUnsent(chunk, e);
+            } else {
+                report.addFailure(e);
+            }
+        } catch (final MessagingException | RuntimeException e) {
+            report.addUnsent(chunk, e);
+        }
+    }
+
+    private static boolean isEmpty(final Address[] addresses) {
+        return addresses == null || addresses.length == 0;
+    }
+}
@@ -0,0 +1,317 @@
+package be.itlive.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.RelaySelectionStrategy;
+
+/**
+ * Spreads the mails over several SMTP relays, each one being a {@link Session}, and fails over to another relay when one is down.
+ * <p>
+ * The relay of each mail is chosen with a {@link RelaySelectionStrategy}. A relay failing <code>failuresBeforeEjection</code> times in a row
+ * is ejected for <code>ejectionMillis</code>, then re-admitted and ejected again at its first failure until it succeeds once. A send which
+ * fails because of the relay is retried on another relay, up to <code>maxAttempts</code> relays, and counts as a failure of the relay; this
+ * includes a {@link SendFailedException} refusing no address, such as a 421 or 451 reply to MAIL FROM or after DATA. Recipients refused by
+ * a relay (a {@link SendFailedException} with invalid addresses) are not retried. When all relays are ejected, the one re-admitted first is
+ * used.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailRelayGroup relays = new MailRelayGroup(RelaySelectionStrategy.LEAST_OUTSTANDING, 30000L, 3, 2);
+ * relays.addRelay(smtp1Session, 1);
+ * relays.addRelay(smtp2Session, 1);
+ * relays.setTransportPool(pool);
+ * ...
+ * mailSender.setRelayGroup(relays);
+ * mailSender.sendMail();
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailRelayGroup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailRelayGroup.class);
+
+    private final RelaySelectionStrategy strategy;
+
+    private final long ejectionMillis;
+
+    private final int failuresBeforeEjection;
+
+    private final int maxAttempts;
+
+    private final List<Relay> relays = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    private MailTransportPool transportPool;
+
+    /**
+     * @param strategy how the relay of each mail is chosen.
+     * @param ejectionMillis how long a failing relay is ejected.
+     * @param failuresBeforeEjection number of consecutive failures ejecting a relay.
+     * @param maxAttempts maximum number of relays a mail is tried on.
+     */
+    public MailRelayGroup(final RelaySelectionStrategy strategy, final long ejectionMillis, final int failuresBeforeEjection,
+            final int maxAttempts) {
+        if (strategy == null) {
+            throw new NullPointerException("strategy cannot be null");
+        }
+        if (ejectionMillis < 0 || failuresBeforeEjection <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid ejectionMillis (" + ejectionMillis + "), failuresBeforeEjection ("
+                    + failuresBeforeEjection + ") or maxAttempts (" + maxAttempts + ")");
+        }
+        this.strategy = strategy;
+        this.ejectionMillis = ejectionMillis;
+        this.failuresBeforeEjection = failuresBeforeEjection;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param session the session of the relay.
+     * @param weight the share of the mails of the relay with {@link RelaySelectionStrategy#WEIGHTED_ROUND_ROBIN}.
+     * @return the relay.
+     */
+    public Relay addRelay(final Session session, final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        Relay relay = new Relay(session, weight);
+        relays.add(relay);
+        return relay;
+    }
+
+    /**
+     * @return the relays, in the order they were added.
+     */
+    public List<Relay> getRelays() {
+        return Collections.unmodifiableList(relays);
+    }
+
+    /**
+     * @category Accessor
+     * @return the transportPool
+     */
+    public MailTransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    /**
+     * @category Accessor
+     * @param transportPool the pool of transports to send with, null to open a new connection per mail
+     */
+    public void setTransportPool(final MailTransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    /**
+     * Sends the message on a relay of the group, then on other relays while it fails because of the relay.
+     * @param message the message, already saved.
+     * @param addresses the recipients.
+     * @return the relay which sent the message.
+     * @throws SendFailedException if recipients were refused, or the error of the last relay tried.
+     * @throws MessagingException the error of the last relay tried, if it could not be sent.
+     */
+    public Relay send(final Message message, final Address[] addresses) throws MessagingException {
+        return send(message, addresses, null);
+    }
+
+    /**
+     * Sends the message as {@link #send(Message, Address[])} does, recording each connection and each transfer tried on the metrics of the
+     * sending, once, as a phase or as a failure.
+     * @param message the message, already saved.
+     * @param addresses the recipients.
+     * @param sendMetrics the metrics of the sending, null for the metrics of the transportPool if any.
+     * @return the relay which sent the message.
+     * @throws SendFailedException if recipients were refused, or the error of the last relay tried.
+     * @throws MessagingException the error of the last relay tried, if it could not be sent.
+     */
+    public Relay send(final Message message, final Address[] addresses, final MailMetrics sendMetrics) throws MessagingException {
+        if (relays.isEmpty()) {
+            throw new IllegalStateException("No relay in the group");
+        }
+        List<Relay> tried = new ArrayList<>(maxAttempts);
+        MessagingException lastError = null;
+        while (tried.size() < Math.min(maxAttempts, relays.size())) {
+            Relay relay = select(tried);
+            tried.add(relay);
+            relay.outstanding.incrementAndGet();
+            try {
+                sendOn(relay, message, addresses, sendMetrics);
+                relay.succeeded();
+                return relay;
+            } catch (final MessagingException e) {
+                if (e instanceof SendFailedException && isRefused((SendFailedException) e)) {
+                    // the relay answered, the recipients are refused wherever they are sent
+                    relay.succeeded();
+                    throw e;
+                }
+                relay.failed();
+                LOGGER.warn("Relay {} failed, {} relay(s) tried: {}", relay, tried.size(), e.getMessage());
+                lastError = e;
+            } finally {
+                relay.outstanding.decrementAndGet();
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * @param e a send failure.
+     * @return true if addresses were refused; false if the whole mail was, e.g. with a 4xx reply to MAIL FROM or after DATA.
+     */
+    static boolean isRefused(final SendFailedException e) {
+        Address[] invalid = e.getInvalidAddresses();
+        return invalid != null && invalid.length > 0;
+    }
+
+    private void sendOn(final Relay relay, final Message message, final Address[] addresses, final MailMetrics sendMetrics)
+            throws MessagingException {
+        if (transportPool != null) {
+            transportPool.send(relay.session, message, addresses, sendMetrics);
+        } else {
+            MailTransportPool.sendOnNewConnection(relay.session, message, addresses, sendMetrics == null ? MailMetrics.NOOP : sendMetrics);
+        }
+    }
+
+    /**
+     * @param excluded the relays already tried.
+     * @return the relay of the next attempt.
+     */
+    private Relay select(final List<Relay> excluded) {
+        long now = System.currentTimeMillis();
+        List<Relay> candidates = new ArrayList<>(relays.size());
+        Relay soonest = null;
+        for (Relay relay : relays) {
+            if (excluded.contains(relay)) {
+                continue;
+            }
+            if (relay.ejectedUntil <= now) {
+                candidates.add(relay);
+            } else if (soonest == null || relay.ejectedUntil < soonest.ejectedUntil) {
+                soonest = relay;
+            }
+        }
+        if (candidates.isEmpty()) {
+            return soonest;
+        }
+        if (strategy == RelaySelectionStrategy.WEIGHTED_ROUND_ROBIN) {
+            return selectWeighted(candidates);
+        }
+        // starts at a rotating index so the ties are spread over the relays
+        int start = Math.floorMod(nextStart.getAndIncrement(), candidates.size());
+        Relay least = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Relay relay = candidates.get((start + i) % candidates.size());
+            if (least == null || relay.outstanding.get() < least.outstanding.get()) {
+                least = relay;
+            }
+        }
+        return least;
+    }
+
+    /**
+     * Smooth weighted round robin: each candidate gains its weight, the richest is chosen and pays the total.
+     */
+    private synchronized Relay selectWeighted(final List<Relay> candidates) {
+        int total = 0;
+        Relay best = null;
+        for (Relay relay : candidates) {
+            relay.currentWeight += relay.weight;
+            total += relay.weight;
+            if (best == null || relay.currentWeight > best.currentWeight) {
+                best = relay;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    /**
+     * A relay of the group and its health.
+     */
+    public final class Relay {
+
+        private final Session session;
+
+        private final int weight;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private volatile long ejectedUntil;
+
+        /**
+         * Guarded by the group.
+         */
+        private int currentWeight;
+
+        private Relay(final Session session, final int weight) {
+            this.session = session;
+            this.weight = weight;
+        }
+
+        private void succeeded() {
+            failures.set(0);
+            ejectedUntil = 0L;
+        }
+
+        private void failed() {
+            if (failures.incrementAndGet() >= failuresBeforeEjection) {
+                ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+                // once re-admitted, the next failure ejects it again
+                failures.set(failuresBeforeEjection - 1);
+                LOGGER.warn("Relay {} ejected for {} ms", this, ejectionMillis);
+            }
+        }
+
+        /**
+         * @return the session
+         */
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * @return the weight
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the number of mails being sent on this relay
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return true if the relay is currently ejected
+         */
+        public boolean isEjected() {
+            return ejectedUntil > System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            String host = session.getProperty("mail.smtp.host");
+            String port = session.getProperty("mail.smtp.port");
+            return (host == null ? "localhost" : host) + ':' + (port == null ? "default" : port);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package be.itlive.common.utils;
+
+/**
+ * Outcome of the sending of one {@link MailSender}.
+ *
+ * @author vbiertho
+ */
+public class MailSendResult {
+
+    private final MailSender mail;
+
+    private final Exception error;
+
+    /**
+     * @category Constructor
+     * @param mail the mail.
+     * @param error the error which prevented the mail to be sent, null if sent.
+     */
+    public MailSendResult(final MailSender mail, final Exception error) {
+        this.mail = mail;
+        this.error = error;
+    }
+
+    /**
+     * @category Accessor
+     * @return the mail
+     */
+    public MailSender getMail() {
+        return mail;
+    }
+
+    /**
+     * @category Accessor
+     * @return the error, null if the mail was sent
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the mail was sent.
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "MailSendResult [subject=" + (mail == null ? null : mail.getSubject()) + ", success=" + isSuccess()
+                + (error == null ? "" : ", error=" + MailSender.getReason(error)) + "]";
+    }
+}
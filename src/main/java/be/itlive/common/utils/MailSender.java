@@ -2,36 +2,41 @@ package be.itlive.common.utils;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.BodyPart;
-import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Part;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Transformer;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import be.itlive.common.enums.MailSendPhase;
 import be.itlive.common.enums.MimeType;
 
 /**
@@ -43,6 +48,11 @@ public class MailSender {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(MailSender.class);
 
+	/**
+	 * Number of characters of a file appendable kept in memory by default.
+	 */
+	public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
 	private Session session;
 
 	/**
@@ -98,11 +108,66 @@ public class MailSender {
 	@Deprecated
 	private Map<String, StringBuilder> buffers;
 
+	/**
+	 * the buffers of the attachments written through getFileAppendable, spilled to temporary files when big.
+	 */
+	private final Map<String, SpillableBuffer> fileBuffers = new LinkedHashMap<>();
+
+	/**
+	 * the names of the file appendables released by a previous send and not written again since.
+	 */
+	private final Set<String> releasedFileBuffers = new LinkedHashSet<>();
+
+	/**
+	 * the number of characters of a file appendable kept in memory before spilling it to a temporary file.
+	 */
+	private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+	/**
+	 * the metrics recording the phases of the sending.
+	 */
+	private MailMetrics metrics = MailMetrics.NOOP;
+
+	/**
+	 * the shared configuration this mail was created from, its sender and replyTo are used when not set on the mail.
+	 */
+	private MailTemplate template;
+
 	/**
 	 * the MailAttachment list.
 	 */
 	private List<MailAttachment> mailAttachments;
 
+	/**
+	 * the pool of transports used to send, if null a new connection is opened per mail.
+	 */
+	private MailTransportPool transportPool;
+
+	/**
+	 * the relays to send with, in place of the session and transportPool, if not null.
+	 */
+	private MailRelayGroup relayGroup;
+
+	/**
+	 * skips the mails already sent, if not null.
+	 */
+	private MailDeduplicator deduplicator;
+
+	/**
+	 * the cache of encoded attachments, if null attachments are encoded for each mail.
+	 */
+	private MailAttachmentCache attachmentCache;
+
+	/**
+	 * the size above which attachments are zipped, negative to never zip them.
+	 */
+	private long zipThreshold = -1L;
+
+	/**
+	 * the compression level of the zipped attachments.
+	 */
+	private int zipLevel = Deflater.DEFAULT_COMPRESSION;
+
 	/**
 	 * @param inSession mail session
 	 * @param sender    sender
@@ -140,6 +205,24 @@ public class MailSender {
 		this.contentType = contentType == null ? MimeType.TEXT_PLAIN.getMimeType() + "; charset=\"UTF-8\"" : contentType;
 	}
 
+	/**
+	 * Creates a mail referencing the template, nothing of it is copied.
+	 * 
+	 * @param template the shared configuration
+	 * @param recep    the recipients
+	 * @see MailTemplate#newMail(String...)
+	 */
+	public MailSender(final MailTemplate template, final String... recep) {
+		super();
+		this.template = template;
+		session = template.getSession();
+		this.recep = recep;
+		this.contentType = template.getContentType();
+		this.transportPool = template.getTransportPool();
+		this.attachmentCache = template.getAttachmentCache();
+		this.metrics = template.getMetrics();
+	}
+
 	/**
 	 * Constructor by default.
 	 */
@@ -196,16 +279,229 @@ public class MailSender {
 	}
 
 	/**
+	 * @category Accessor
+	 * @return the transportPool
+	 */
+	public MailTransportPool getTransportPool() {
+		return transportPool;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param transportPool the pool of transports to send with, null to open a new connection per mail
+	 */
+	public void setTransportPool(final MailTransportPool transportPool) {
+		this.transportPool = transportPool;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the relayGroup
+	 */
+	public MailRelayGroup getRelayGroup() {
+		return relayGroup;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param relayGroup the relays to send with, balanced and failed over, null to send with the session of the mail
+	 */
+	public void setRelayGroup(final MailRelayGroup relayGroup) {
+		this.relayGroup = relayGroup;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the deduplicator
+	 */
+	public MailDeduplicator getDeduplicator() {
+		return deduplicator;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param deduplicator skips the mails already sent within its window, null to always send
+	 */
+	public void setDeduplicator(final MailDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the attachmentCache
+	 */
+	public MailAttachmentCache getAttachmentCache() {
+		return attachmentCache;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param attachmentCache the cache of encoded attachments, null to encode attachments for each mail
+	 */
+	public void setAttachmentCache(final MailAttachmentCache attachmentCache) {
+		this.attachmentCache = attachmentCache;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the zipThreshold
+	 */
+	public long getZipThreshold() {
+		return zipThreshold;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param zipThreshold the size in bytes above which attachments are sent zipped, negative to never zip them; the file appendables are
+	 *                     measured in characters, and the attachments whose size is unknown (streams, data sources) are never zipped
+	 */
+	public void setZipThreshold(final long zipThreshold) {
+		this.zipThreshold = zipThreshold;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the zipLevel
+	 */
+	public int getZipLevel() {
+		return zipLevel;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param zipLevel the compression level of the zipped attachments, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+	 */
+	public void setZipLevel(final int zipLevel) {
+		this.zipLevel = zipLevel;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the spillThreshold
+	 */
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param spillThreshold the number of characters of a file appendable kept in memory before spilling it to a temporary file
+	 */
+	public void setSpillThreshold(final int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * @category Accessor
+	 * @return the metrics
+	 */
+	public MailMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @category Accessor
+	 * @param metrics the metrics recording the phases of the sending, null for none
+	 */
+	public void setMetrics(final MailMetrics metrics) {
+		this.metrics = metrics == null ? MailMetrics.NOOP : metrics;
+	}
+
+	/**
+	 * Sends the mail, over a relay of the relayGroup if one is set, over a pooled transport if a transportPool is set. Whatever the outcome,
+	 * the file appendables are released and their temporary files deleted. If a deduplicator is set and the same mail was already sent
+	 * within its window, the mail is not sent.
+	 * 
 	 * @throws MessagingException           if problems of Messaging
 	 * @throws UnsupportedEncodingException if problems of UnsupportedEncoding
 	 */
 	public void sendMail() throws MessagingException, UnsupportedEncodingException {
-		Message msg = new MimeMessage(session);
+		long start = System.nanoTime();
+		MailSendPhase phase = MailSendPhase.BUILD;
+		String digest = null;
+		try {
+			MimeMessage msg = createMessage();
+			long built = System.nanoTime();
+			metrics.recordPhase(MailSendPhase.BUILD, built - start);
+
+			phase = MailSendPhase.ENCODE;
+			msg.saveChanges();
+			Address[] recipients = msg.getAllRecipients();
+			if (recipients == null || recipients.length == 0) {
+				throw new SendFailedException("No recipient addresses");
+			}
+			if (deduplicator != null) {
+				digest = deduplicator.digest(msg);
+				if (!deduplicator.tryAcquire(digest)) {
+					LOGGER.info("Mail '{}' already sent, skipped", subject);
+					return;
+				}
+			}
+			metrics.recordPhase(MailSendPhase.ENCODE, System.nanoTime() - built);
+
+			// the connections and transfers, failed ones included, are recorded where they are done
+			phase = null;
+			if (relayGroup != null) {
+				relayGroup.send(msg, recipients, metrics);
+			} else if (transportPool != null) {
+				transportPool.send(session, msg, recipients, metrics);
+			} else {
+				MailTransportPool.sendOnNewConnection(session, msg, recipients, metrics);
+			}
+			if (digest != null) {
+				deduplicator.sent(digest);
+			}
+			metrics.recordSent(getWrittenBytes(msg));
+			metrics.recordPhase(MailSendPhase.TOTAL, System.nanoTime() - start);
+		} catch (final MessagingException | UnsupportedEncodingException | RuntimeException e) {
+			if (digest != null) {
+				// not sent, a retry must not be skipped
+				deduplicator.failed(digest);
+			}
+			if (phase != null) {
+				metrics.recordFailure(phase, e);
+			}
+			throw e;
+		} finally {
+			releaseFileBuffers();
+		}
+	}
+
+	/**
+	 * Deletes the content of the file appendables and their temporary files. Called by {@link #sendMail()} whatever its outcome, and by the
+	 * classes building the message with {@link #createMessage()} once it is sent or failed; to be called by the other callers of
+	 * {@link #createMessage()}. A message can't be built again from a released file appendable until it is written again.
+	 */
+	public void releaseFileBuffers() {
+		for (Map.Entry<String, SpillableBuffer> entry : fileBuffers.entrySet()) {
+			try {
+				entry.getValue().close();
+			} catch (final IOException e) {
+				LOGGER.warn("Error deleting the buffer of attachment {}: {}", entry.getKey(), e.getMessage());
+			}
+		}
+		releasedFileBuffers.addAll(fileBuffers.keySet());
+		fileBuffers.clear();
+	}
+
+	/**
+	 * Builds the message without sending it.
+	 * 
+	 * @return the message
+	 * @throws MessagingException           if problems of Messaging
+	 * @throws UnsupportedEncodingException if problems of UnsupportedEncoding
+	 */
+	public MimeMessage createMessage() throws MessagingException, UnsupportedEncodingException {
+		MimeMessage msg = new CountingMimeMessage(session);
 
 		if (!isBlank(subject)) {
 			msg.setSubject(subject);
 		}
 
+		if (template != null) {
+			template.applyTo(msg);
+		}
+
 		if (!isBlank(sender)) {
 			if (!isBlank(senderName)) {
 				msg.setFrom(new InternetAddress(sender, getSenderName()));
@@ -214,43 +510,30 @@ public class MailSender {
 			}
 		}
 
-		if (recep != null) {
-			for (String r : recep) {
+		InternetAddressCache addressCache = InternetAddressCache.getDefault();
 
-				if (!isBlank(r)) {
-					msg.addRecipient(RecipientType.TO, new InternetAddress(r));
-				}
-			}
+		if (recep != null) {
+			addRecipients(msg, RecipientType.TO, addressCache.parseAll(recep));
 		}
 
 		if (replyTo != null) {
-			Collection<Address> replyToCollection = CollectionUtils.collect(Arrays.asList(replyTo), new Transformer<String, Address>() {
-				@Override
-				public Address transform(final String input) {
-					try {
-						return new InternetAddress(input);
-					} catch (final AddressException e) {
-						throw new IllegalArgumentException("Problems ReplyTo email address", e);
-					}
+			InternetAddress[] replyToAddresses = new InternetAddress[replyTo.length];
+			for (int i = 0; i < replyTo.length; i++) {
+				try {
+					replyToAddresses[i] = addressCache.parse(replyTo[i]);
+				} catch (final AddressException e) {
+					throw new IllegalArgumentException("Problems ReplyTo email address", e);
 				}
-			});
-			msg.setReplyTo(replyToCollection.toArray(new InternetAddress[replyTo.length]));
+			}
+			msg.setReplyTo(replyToAddresses);
 		}
 
 		if (cc != null) {
-			for (String r : cc) {
-				if (!isBlank(r)) {
-					msg.addRecipient(RecipientType.CC, new InternetAddress(r));
-				}
-			}
+			addRecipients(msg, RecipientType.CC, addressCache.parseAll(cc));
 		}
 
 		if (bcc != null) {
-			for (String r : bcc) {
-				if (!isBlank(r)) {
-					msg.addRecipient(RecipientType.BCC, new InternetAddress(r));
-				}
-			}
+			addRecipients(msg, RecipientType.BCC, addressCache.parseAll(bcc));
 		}
 
 		MimeMultipart multipart = new MimeMultipart();
@@ -261,16 +544,38 @@ public class MailSender {
 			for (BodyPart part : createAttachments()) {
 				multipart.addBodyPart(part);
 			}
-		} else if (null != mailAttachments && mailAttachments.size() > 0) {
+		} else {
 			addMailAttachments(multipart);
-		} else if (null != buffers && buffers.size() > 0 && null != mailAttachments && mailAttachments.size() > 0) {
-			// TODO: remove this when creation of attachment by buffers will be removed (wma)
-			throw new IllegalStateException("error when creating attachments.");
 		}
+		addFileBuffers(multipart);
 
 		msg.setContent(multipart);
 
-		Transport.send(msg);
+		return msg;
+	}
+
+	/**
+	 * Adds all the addresses at once, the header being formatted once instead of once per address.
+	 */
+	private static void addRecipients(final MimeMessage msg, final RecipientType type, final Address[] addresses) throws MessagingException {
+		if (addresses.length > 0) {
+			msg.addRecipients(type, addresses);
+		}
+	}
+
+	/**
+	 * Checks all the addresses of the mail (recipients, cc, bcc and replyTo) in one pass.
+	 * 
+	 * @return the invalid addresses with their error, empty if all are valid
+	 */
+	public Map<String, AddressException> validateAddresses() {
+		List<String> addresses = new ArrayList<>();
+		for (String[] list : new String[][] { recep, cc, bcc, replyTo }) {
+			if (list != null) {
+				addresses.addAll(Arrays.asList(list));
+			}
+		}
+		return InternetAddressCache.getDefault().validate(addresses);
 	}
 
 	/**
@@ -310,7 +615,40 @@ public class MailSender {
 	}
 
 	/**
-	 * Add mailAttachements if any to given multipart.
+	 * Adds the attachments written through {@link #getFileAppendable(String)}, streamed from memory or from their temporary file, zipped
+	 * while written if they have more characters than the zipThreshold.
+	 * 
+	 * @param multipart the multipart to add the attachments to
+	 * @throws MessagingException if problems of messaging
+	 */
+	private void addFileBuffers(final MimeMultipart multipart) throws MessagingException {
+		if (!releasedFileBuffers.isEmpty()) {
+			throw new IllegalStateException("The content of the file appendable(s) " + releasedFileBuffers
+					+ " was released by a previous send, write it again");
+		}
+		for (Map.Entry<String, SpillableBuffer> entry : fileBuffers.entrySet()) {
+			DataSource source;
+			try {
+				source = entry.getValue().getDataSource(entry.getKey(), MimeType.TEXT_PLAIN.getMimeType() + "; charset=\"UTF-8\"");
+			} catch (final IOException e) {
+				throw new MessagingException("Error reading the buffer of attachment " + entry.getKey(), e);
+			}
+			if (zipThreshold >= 0 && entry.getValue().length() > zipThreshold) {
+				multipart.addBodyPart(new MailAttachment(source).zipped(zipLevel).toBodyPart());
+				continue;
+			}
+			MimeBodyPart part = new MimeBodyPart();
+			part.setDataHandler(new DataHandler(source));
+			part.setDisposition(Part.ATTACHMENT);
+			part.setFileName(entry.getKey());
+			// avoids a first pass over the whole content to choose the encoding
+			part.setHeader("Content-Transfer-Encoding", "quoted-printable");
+			multipart.addBodyPart(part);
+		}
+	}
+
+	/**
+	 * Add mailAttachements if any to given multipart. The content of each attachment is streamed when the message is written.
 	 * 
 	 * @param multipart multipart the multipart to add eventual mailAttachements to
 	 * @throws MessagingException if problems of messaging
@@ -318,21 +656,36 @@ public class MailSender {
 	protected void addMailAttachments(final MimeMultipart multipart) throws MessagingException {
 		if (multipart != null && mailAttachments != null) {
 			for (MailAttachment mailAttachment : mailAttachments) {
-				try {
-					MimeBodyPart attachPart = new MimeBodyPart();
-					attachPart.attachFile(mailAttachment.getFileName());
-					multipart.addBodyPart(attachPart);
-				} catch (final IOException e) {
-					LOGGER.error(e.getLocalizedMessage(), e);
-				}
+				multipart.addBodyPart(createAttachment(mailAttachment));
 			}
 		}
 	}
 
 	/**
-	 * @return the sender
+	 * @param mailAttachment the attachment
+	 * @return the body part of the attachment, zipped while written if bigger than the zipThreshold, otherwise from the attachmentCache if one
+	 *         is set; an attachment whose size is unknown is not zipped, as zipping small or compressed content only makes it bigger
+	 * @throws MessagingException if problems of messaging
+	 */
+	protected MimeBodyPart createAttachment(final MailAttachment mailAttachment) throws MessagingException {
+		if (zipThreshold >= 0 && mailAttachment.getSize() > zipThreshold
+				&& !MimeType.APPLICATION_ZIP.getMimeType().equals(mailAttachment.getContentType())) {
+			// not cached, the cache would have to compress the content to hash it
+			return mailAttachment.zipped(zipLevel).toBodyPart();
+		}
+		if (attachmentCache != null) {
+			return attachmentCache.getBodyPart(mailAttachment);
+		}
+		return mailAttachment.toBodyPart();
+	}
+
+	/**
+	 * @return the sender, the one of the template if not set
 	 */
 	public String getSender() {
+		if (sender == null && template != null) {
+			return template.getSender();
+		}
 		return sender;
 	}
 
@@ -420,6 +773,13 @@ public class MailSender {
 		return session;
 	}
 
+	/**
+	 * @return the template this mail was created from, null if none
+	 */
+	public MailTemplate getTemplate() {
+		return template;
+	}
+
 	/**
 	 * @return main body appendable
 	 */
@@ -428,20 +788,33 @@ public class MailSender {
 	}
 
 	/**
+	 * The text written in the appendable is kept in memory up to the spillThreshold, then in a temporary file, and sent as a text attachment.
+	 * The content is released, and its temporary file deleted, once the mail is sent or failed (see {@link #releaseFileBuffers()}): to send
+	 * the mail again, write it again.
+	 * 
 	 * @param filename filename
-	 * @return attachment appendable
+	 * @return attachment appendable, the buffer set with {@link #setBuffers(Map)} if any for this filename
 	 */
 	public Appendable getFileAppendable(final String filename) {
-		if (filename != null) {
+		if (filename == null) {
+			return null;
+		}
+		if (buffers != null && buffers.containsKey(filename)) {
 			return buffers.get(filename);
 		}
-		return null;
+		return fileBuffers.computeIfAbsent(filename, name -> {
+			releasedFileBuffers.remove(name);
+			return new SpillableBuffer(spillThreshold, StandardCharsets.UTF_8);
+		});
 	}
 
 	/**
-	 * @return the senderName
+	 * @return the senderName, the one of the template if not set
 	 */
 	public String getSenderName() {
+		if (isBlank(senderName) && template != null) {
+			return template.getSenderName();
+		}
 		return senderName;
 	}
 
@@ -470,26 +843,90 @@ public class MailSender {
 
 	/**
 	 * @param exception the exception to get the stackTrace from
-	 * @return the strackTrace.
+	 * @return the strackTrace, html escaped with a &lt;br/&gt; at the end of each line.
+	 * @see HtmlRenderUtils#appendStackTrace(Appendable, Throwable) to write it directly into the message
 	 */
 	public static String getStackTrace(final Exception exception) {
-
-		StringWriter sw = new StringWriter();
-		PrintWriter pw = new PrintWriter(sw);
-
-		if (exception != null) {
-			exception.printStackTrace(pw);
+		StringBuilder sb = new StringBuilder();
+		try {
+			HtmlRenderUtils.appendStackTrace(sb, exception);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
 		}
-
-		return sw.toString().replace(System.getProperty("line.separator"), "<br/>");
+		return sb.toString();
 	}
 
 	/**
 	 * @param xml the xml
 	 * @return the xml formatted to be inserted in html mail.
+	 * @see HtmlRenderUtils#appendXml(Appendable, CharSequence) to write it directly into the message
 	 */
 	public static String getXml(final String xml) {
-		return StringUtils.replace(StringUtils.replace(xml, "<", "&lt;"), ">", "&gt;");
+		if (xml == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(xml.length() + xml.length() / 8);
+		try {
+			HtmlRenderUtils.appendXml(sb, xml);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param msg a message built by {@link #createMessage()}, then sent.
+	 * @return the number of bytes written to the transport, -1 if unknown.
+	 */
+	static long getWrittenBytes(final MimeMessage msg) {
+		return msg instanceof CountingMimeMessage ? ((CountingMimeMessage) msg).getWrittenBytes() : -1L;
+	}
+
+	/**
+	 * Message counting the bytes written to the transport, without any copy.
+	 */
+	private static final class CountingMimeMessage extends MimeMessage {
+
+		private long writtenBytes = -1L;
+
+		private CountingMimeMessage(final Session session) {
+			super(session);
+		}
+
+		@Override
+		public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+			CountingOutputStream counting = new CountingOutputStream(os);
+			super.writeTo(counting, ignoreList);
+			writtenBytes = counting.count;
+		}
+
+		private long getWrittenBytes() {
+			return writtenBytes;
+		}
+	}
+
+	/**
+	 * Counts the bytes written to the underlying stream.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		private CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
 	}
 
 }
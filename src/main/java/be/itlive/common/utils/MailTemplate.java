@@ -0,0 +1,280 @@
+package be.itlive.common.utils;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import be.itlive.common.enums.MimeType;
+
+/**
+ * Immutable configuration shared by many {@link MailSender}: session, sender, reply-to, content type and sending infrastructure.
+ * <p>
+ * A template is built once, its addresses being parsed and validated at that time, and can then be shared by all threads. Each mail is a
+ * lightweight {@link MailSender} created by {@link #newMail(String...)}, which references the template instead of copying its configuration.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * private static final MailTemplate NOTIFICATIONS = MailTemplate.builder(session)
+ *         .sender("noreply@itlive.be", "ITLive")
+ *         .replyTo("support@itlive.be")
+ *         .contentType(MimeType.TEXT_HTML.getMimeType() + "; charset=\"UTF-8\"")
+ *         .transportPool(pool)
+ *         .build();
+ * ...
+ * MailSender mail = NOTIFICATIONS.newMail(customer.getEmail());
+ * mail.setSubject("Your order");
+ * mail.getMessageAppendable().append(html);
+ * mail.sendMail();
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public final class MailTemplate {
+
+    private final Session session;
+
+    private final String sender;
+
+    private final String senderName;
+
+    private final InternetAddress from;
+
+    private final String[] replyTo;
+
+    private final InternetAddress[] replyToAddresses;
+
+    private final String contentType;
+
+    private final MailTransportPool transportPool;
+
+    private final MailAttachmentCache attachmentCache;
+
+    private final MailMetrics metrics;
+
+    private MailTemplate(final Builder builder) {
+        session = builder.session;
+        sender = builder.sender;
+        senderName = builder.senderName;
+        replyTo = builder.replyTo;
+        contentType = builder.contentType == null ? MimeType.TEXT_PLAIN.getMimeType() + "; charset=\"UTF-8\"" : builder.contentType;
+        transportPool = builder.transportPool;
+        attachmentCache = builder.attachmentCache;
+        metrics = builder.metrics;
+        try {
+            if (isBlank(sender)) {
+                from = null;
+            } else if (isBlank(senderName)) {
+                from = new InternetAddress(sender);
+            } else {
+                from = new InternetAddress(sender, senderName);
+                // encodes the personal name now, the messages then only read the shared address
+                from.toString();
+            }
+        } catch (final AddressException | UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Problems sender email address", e);
+        }
+        try {
+            replyToAddresses = replyTo == null ? null : InternetAddressCache.getDefault().parseAll(replyTo);
+        } catch (final AddressException e) {
+            throw new IllegalArgumentException("Problems ReplyTo email address", e);
+        }
+    }
+
+    /**
+     * @param session the session of the mails.
+     * @return a builder of template.
+     */
+    public static Builder builder(final Session session) {
+        return new Builder(session);
+    }
+
+    /**
+     * @param recep the recipients.
+     * @return a new mail using this template.
+     */
+    public MailSender newMail(final String... recep) {
+        return new MailSender(this, recep);
+    }
+
+    /**
+     * Sets the from and reply-to headers, from the addresses parsed once.
+     * @param msg the message.
+     * @throws MessagingException if problems of messaging.
+     */
+    void applyTo(final MimeMessage msg) throws MessagingException {
+        if (from != null) {
+            msg.setFrom(from);
+        }
+        if (replyToAddresses != null) {
+            msg.setReplyTo(replyToAddresses);
+        }
+    }
+
+    /**
+     * @return the session
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the sender
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return the senderName
+     */
+    public String getSenderName() {
+        return senderName;
+    }
+
+    /**
+     * @return a copy of the replyTo addresses, null if none
+     */
+    public String[] getReplyTo() {
+        return replyTo == null ? null : replyTo.clone();
+    }
+
+    /**
+     * @return the contentType
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the transportPool
+     */
+    public MailTransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    /**
+     * @return the attachmentCache
+     */
+    public MailAttachmentCache getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    /**
+     * @return the metrics
+     */
+    public MailMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "MailTemplate [sender=" + sender + ", replyTo=" + Arrays.toString(replyTo) + ", contentType=" + contentType + "]";
+    }
+
+    /**
+     * Builder of {@link MailTemplate}, not thread safe.
+     */
+    public static final class Builder {
+
+        private final Session session;
+
+        private String sender;
+
+        private String senderName = "";
+
+        private String[] replyTo;
+
+        private String contentType;
+
+        private MailTransportPool transportPool;
+
+        private MailAttachmentCache attachmentCache;
+
+        private MailMetrics metrics = MailMetrics.NOOP;
+
+        private Builder(final Session session) {
+            this.session = session;
+        }
+
+        /**
+         * @param inSender the sender address.
+         * @return this builder.
+         */
+        public Builder sender(final String inSender) {
+            this.sender = inSender;
+            return this;
+        }
+
+        /**
+         * @param inSender the sender address.
+         * @param inSenderName the name of the sender.
+         * @return this builder.
+         */
+        public Builder sender(final String inSender, final String inSenderName) {
+            this.sender = inSender;
+            this.senderName = inSenderName;
+            return this;
+        }
+
+        /**
+         * @param inReplyTo the replyTo addresses.
+         * @return this builder.
+         */
+        public Builder replyTo(final String... inReplyTo) {
+            this.replyTo = inReplyTo == null ? null : inReplyTo.clone();
+            return this;
+        }
+
+        /**
+         * @param inContentType the content type of the body, "text/plain" if null.
+         * @return this builder.
+         */
+        public Builder contentType(final String inContentType) {
+            this.contentType = inContentType;
+            return this;
+        }
+
+        /**
+         * @param inTransportPool the pool of transports the mails are sent with, a new connection per mail if null.
+         * @return this builder.
+         */
+        public Builder transportPool(final MailTransportPool inTransportPool) {
+            this.transportPool = inTransportPool;
+            return this;
+        }
+
+        /**
+         * @param inAttachmentCache the cache of encoded attachments of the mails.
+         * @return this builder.
+         */
+        public Builder attachmentCache(final MailAttachmentCache inAttachmentCache) {
+            this.attachmentCache = inAttachmentCache;
+            return this;
+        }
+
+        /**
+         * @param inMetrics the metrics recording the sending of the mails, none if null.
+         * @return this builder.
+         */
+        public Builder metrics(final MailMetrics inMetrics) {
+            this.metrics = inMetrics == null ? MailMetrics.NOOP : inMetrics;
+            return this;
+        }
+
+        /**
+         * @return the template.
+         * @throws IllegalArgumentException if the sender or a replyTo address is not valid.
+         */
+        public MailTemplate build() {
+            return new MailTemplate(this);
+        }
+    }
+}
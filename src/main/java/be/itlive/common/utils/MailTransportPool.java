@@ -0,0 +1,448 @@
+package be.itlive.common.utils;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Pool of connected {@link Transport}, one bounded pool per {@link Session}.
+ * <p>
+ * A borrowed transport stays connected when released, so successive sends reuse the same SMTP connection instead of paying the
+ * connect/authenticate/quit handshake of {@link Transport#send(Message)} for every mail. Idle transports are closed after
+ * <code>maxIdleMillis</code>, transports idle for more than <code>validationIntervalMillis</code> are checked with
+ * {@link Transport#isConnected()} (a NOOP command for SMTP) before being reused, and a send failing on a reused connection is retried once on a
+ * fresh one.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * MailTransportPool pool = new MailTransportPool();
+ * mailSender.setTransportPool(pool);
+ * mailSender.sendMail();
+ * ...
+ * pool.close();
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class MailTransportPool implements Closeable {
+
+    /**
+     * Default maximum number of transports per session.
+     */
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    /**
+     * Default time after which an idle transport is closed.
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 60000L;
+
+    /**
+     * Default idle time after which a transport is checked before being reused.
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 5000L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailTransportPool.class);
+
+    private final int maxSize;
+
+    private final long maxIdleMillis;
+
+    private final long validationIntervalMillis;
+
+    private final ConcurrentMap<Session, SessionPool> pools = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    private volatile MailMetrics metrics = MailMetrics.NOOP;
+
+    /**
+     * Pool with {@link #DEFAULT_MAX_SIZE} transports per session, closed after {@link #DEFAULT_MAX_IDLE_MILLIS} of inactivity.
+     */
+    public MailTransportPool() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * @param maxSize maximum number of transports per session, borrowers block when reached.
+     * @param maxIdleMillis time after which an idle transport is closed.
+     */
+    public MailTransportPool(final int maxSize, final long maxIdleMillis) {
+        this(maxSize, maxIdleMillis, DEFAULT_VALIDATION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param maxSize maximum number of transports per session, borrowers block when reached.
+     * @param maxIdleMillis time after which an idle transport is closed.
+     * @param validationIntervalMillis idle time after which a transport is checked with {@link Transport#isConnected()} before being reused.
+     */
+    public MailTransportPool(final int maxSize, final long maxIdleMillis, final long validationIntervalMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        if (maxIdleMillis < 0 || validationIntervalMillis < 0) {
+            throw new IllegalArgumentException("maxIdleMillis and validationIntervalMillis cannot be negative");
+        }
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * Sends the message to all its recipients, as {@link Transport#send(Message)} does, over a pooled transport.
+     * @param session the session of the message.
+     * @param message the message to send.
+     * @throws MessagingException if the message can't be sent.
+     */
+    public void send(final Session session, final Message message) throws MessagingException {
+        message.saveChanges();
+        Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        send(session, message, recipients);
+    }
+
+    /**
+     * Sends an already saved message to the given addresses over a pooled transport.
+     * @param session the session of the message.
+     * @param message the message to send, {@link Message#saveChanges()} must already have been called.
+     * @param addresses the envelope recipients.
+     * @throws MessagingException if the message can't be sent.
+     */
+    public void send(final Session session, final Message message, final Address[] addresses) throws MessagingException {
+        send(session, message, addresses, null);
+    }
+
+    /**
+     * Sends an already saved message to the given addresses over a pooled transport, recording the connections opened and the transfers on
+     * the metrics of the sending. Each connection and each transfer tried is recorded once, as a phase or as a failure.
+     * @param session the session of the message.
+     * @param message the message to send, {@link Message#saveChanges()} must already have been called.
+     * @param addresses the envelope recipients.
+     * @param sendMetrics the metrics of the sending, null for the metrics of the pool.
+     * @throws MessagingException if the message can't be sent.
+     */
+    public void send(final Session session, final Message message, final Address[] addresses, final MailMetrics sendMetrics)
+            throws MessagingException {
+        MailMetrics used = sendMetrics == null ? metrics : sendMetrics;
+        PooledTransport pooled = acquire(session, false, used);
+        try {
+            sendMessage(pooled.transport, message, addresses, used);
+        } catch (final MessagingException e) {
+            giveBack(session, pooled.transport, e);
+            if (!pooled.reused || !SmtpFailures.isConnectionFailure(e)) {
+                throw e;
+            }
+            LOGGER.debug("Send failed on a reused transport, retrying on a new connection: {}", e.getMessage());
+            pooled = acquire(session, true, used);
+            try {
+                sendMessage(pooled.transport, message, addresses, used);
+            } catch (final MessagingException e2) {
+                giveBack(session, pooled.transport, e2);
+                throw e2;
+            } catch (final RuntimeException e2) {
+                invalidate(session, pooled.transport);
+                throw e2;
+            }
+        } catch (final RuntimeException e) {
+            invalidate(session, pooled.transport);
+            throw e;
+        }
+        release(session, pooled.transport);
+    }
+
+    /**
+     * Borrows a connected transport, blocking while <code>maxSize</code> transports of the session are in use. It must be given back with
+     * {@link #release(Session, Transport)} or {@link #invalidate(Session, Transport)}.
+     * @param session the session.
+     * @return a connected transport.
+     * @throws MessagingException if no connection can be opened.
+     */
+    public Transport borrow(final Session session) throws MessagingException {
+        return borrow(session, null);
+    }
+
+    /**
+     * Borrows a connected transport as {@link #borrow(Session)} does, recording the connection opened if any on the metrics of the sending.
+     * @param session the session.
+     * @param sendMetrics the metrics of the sending, null for the metrics of the pool.
+     * @return a connected transport.
+     * @throws MessagingException if no connection can be opened.
+     */
+    public Transport borrow(final Session session, final MailMetrics sendMetrics) throws MessagingException {
+        return acquire(session, false, sendMetrics == null ? metrics : sendMetrics).transport;
+    }
+
+    /**
+     * Gives back a borrowed transport, still connected, for reuse.
+     * @param session the session used to borrow it.
+     * @param transport the transport.
+     */
+    public void release(final Session session, final Transport transport) {
+        SessionPool pool = pools.get(session);
+        if (pool == null || closed) {
+            closeQuietly(transport);
+        } else {
+            pool.idle.offerFirst(new IdleTransport(transport, System.currentTimeMillis()));
+            evictIdle(pool, System.currentTimeMillis());
+        }
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Gives back a borrowed transport which must not be reused, it is closed.
+     * @param session the session used to borrow it.
+     * @param transport the transport.
+     */
+    public void invalidate(final Session session, final Transport transport) {
+        closeQuietly(transport);
+        SessionPool pool = pools.get(session);
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Gives back a transport whose send failed. It is reused only if recipients alone were refused and it is still connected: after any
+     * other failure (e.g. a 421 reply or an error after the data), the connection is dead or in an unknown SMTP state.
+     */
+    private void giveBack(final Session session, final Transport transport, final MessagingException failure) {
+        if (SmtpFailures.isRecipientRefusal(failure) && transport.isConnected()) {
+            release(session, transport);
+        } else {
+            invalidate(session, transport);
+        }
+    }
+
+    /**
+     * Closes the transports idle for more than <code>maxIdleMillis</code>. Done lazily on release, may also be scheduled.
+     * @return the number of closed transports.
+     */
+    public int evictIdle() {
+        int evicted = 0;
+        long now = System.currentTimeMillis();
+        for (SessionPool pool : pools.values()) {
+            evicted += evictIdle(pool, now);
+        }
+        return evicted;
+    }
+
+    /**
+     * @param session the session.
+     * @return the number of idle transports pooled for the session.
+     */
+    public int getIdleCount(final Session session) {
+        SessionPool pool = pools.get(session);
+        return pool == null ? 0 : pool.idle.size();
+    }
+
+    /**
+     * @return the metrics
+     */
+    public MailMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics the metrics recording the connections and transfers of the sends given no metrics of their own, null for none.
+     */
+    public void setMetrics(final MailMetrics metrics) {
+        this.metrics = metrics == null ? MailMetrics.NOOP : metrics;
+    }
+
+    /**
+     * @return the maxSize
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Closes all idle transports, transports still borrowed are closed when given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SessionPool pool : pools.values()) {
+            IdleTransport idle;
+            while ((idle = pool.idle.pollFirst()) != null) {
+                closeQuietly(idle.transport);
+            }
+        }
+    }
+
+    /**
+     * Sends a message over a new connection, closed afterwards, recording the connection and the transfer as {@link #send(Session, Message,
+     * Address[], MailMetrics)} does.
+     * @param session the session of the message.
+     * @param message the message to send, already saved.
+     * @param addresses the envelope recipients.
+     * @param sendMetrics the metrics of the sending.
+     * @throws MessagingException if the message can't be sent.
+     */
+    static void sendOnNewConnection(final Session session, final Message message, final Address[] addresses, final MailMetrics sendMetrics)
+            throws MessagingException {
+        Transport transport = session.getTransport(addresses[0]);
+        try {
+            connect(transport, sendMetrics);
+            sendMessage(transport, message, addresses, sendMetrics);
+        } finally {
+            transport.close();
+        }
+    }
+
+    private PooledTransport acquire(final Session session, final boolean fresh, final MailMetrics sendMetrics) throws MessagingException {
+        if (closed) {
+            IllegalStateException e = new IllegalStateException("MailTransportPool is closed");
+            sendMetrics.recordFailure(MailSendPhase.CONNECT, e);
+            throw e;
+        }
+        SessionPool pool = pools.computeIfAbsent(session, s -> new SessionPool(maxSize));
+        try {
+            pool.permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            MessagingException error = new MessagingException("Interrupted while waiting for a transport", e);
+            sendMetrics.recordFailure(MailSendPhase.CONNECT, error);
+            throw error;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            IdleTransport idle;
+            while (!fresh && (idle = pool.idle.pollFirst()) != null) {
+                long idleTime = now - idle.since;
+                if (idleTime > maxIdleMillis) {
+                    closeQuietly(idle.transport);
+                } else if (idleTime <= validationIntervalMillis || idle.transport.isConnected()) {
+                    return new PooledTransport(idle.transport, true);
+                } else {
+                    closeQuietly(idle.transport);
+                }
+            }
+            Transport transport = session.getTransport();
+            connect(transport, sendMetrics);
+            return new PooledTransport(transport, false);
+        } catch (final MessagingException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects the transport, recording the connection or its failure.
+     */
+    static void connect(final Transport transport, final MailMetrics sendMetrics) throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            transport.connect();
+        } catch (final MessagingException | RuntimeException e) {
+            sendMetrics.recordFailure(MailSendPhase.CONNECT, e);
+            throw e;
+        }
+        sendMetrics.recordPhase(MailSendPhase.CONNECT, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the message over the connected transport, recording the transfer or its failure.
+     */
+    static void sendMessage(final Transport transport, final Message message, final Address[] addresses,
+            final MailMetrics sendMetrics) throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            transport.sendMessage(message, addresses);
+        } catch (final MessagingException | RuntimeException e) {
+            sendMetrics.recordFailure(MailSendPhase.TRANSFER, e);
+            throw e;
+        }
+        sendMetrics.recordPhase(MailSendPhase.TRANSFER, System.nanoTime() - start);
+    }
+
+    private int evictIdle(final SessionPool pool, final long now) {
+        int evicted = 0;
+        Iterator<IdleTransport> it = pool.idle.descendingIterator();
+        while (it.hasNext()) {
+            IdleTransport idle = it.next();
+            if (now - idle.since <= maxIdleMillis) {
+                break;
+            }
+            if (pool.idle.removeLastOccurrence(idle)) {
+                closeQuietly(idle.transport);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private static void closeQuietly(final Transport transport) {
+        try {
+            transport.close();
+        } catch (final MessagingException e) {
+            LOGGER.debug("Error closing transport: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Transports of one session.
+     */
+    private static final class SessionPool {
+
+        private final Semaphore permits;
+
+        /**
+         * Most recently released first.
+         */
+        private final ConcurrentLinkedDeque<IdleTransport> idle = new ConcurrentLinkedDeque<>();
+
+        private SessionPool(final int maxSize) {
+            permits = new Semaphore(maxSize, true);
+        }
+    }
+
+    /**
+     * A transport waiting in the pool.
+     */
+    private static final class IdleTransport {
+
+        private final Transport transport;
+
+        private final long since;
+
+        private IdleTransport(final Transport transport, final long since) {
+            this.transport = transport;
+            this.since = since;
+        }
+    }
+
+    /**
+     * A transport handed out by the pool.
+     */
+    private static final class PooledTransport {
+
+        private final Transport transport;
+
+        private final boolean reused;
+
+        private PooledTransport(final Transport transport, final boolean reused) {
+            this.transport = transport;
+            this.reused = reused;
+        }
+    }
+}
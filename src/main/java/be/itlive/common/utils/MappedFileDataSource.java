@@ -0,0 +1,115 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+/**
+ * {@link DataSource} reading a file through a memory mapping, so its content is streamed from the page cache instead of being copied into
+ * the heap. Files bigger than 2GB, which can't be mapped at once, are read with a plain stream.
+ *
+ * @author vbiertho
+ */
+public class MappedFileDataSource implements DataSource {
+
+    private final Path path;
+
+    private final String name;
+
+    private final String contentType;
+
+    /**
+     * @category Constructor
+     * @param path the file.
+     * @param name the name of the content, the file name if null.
+     * @param contentType the content type.
+     */
+    public MappedFileDataSource(final Path path, final String name, final String contentType) {
+        this.path = path;
+        this.name = name == null ? path.getFileName().toString() : name;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return Files.newInputStream(path);
+            }
+            // the mapping stays valid after the channel is closed
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("MappedFileDataSource is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * {@link InputStream} over a {@link ByteBuffer}.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            int count = (int) Math.max(0L, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
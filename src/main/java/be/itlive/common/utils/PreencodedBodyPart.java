@@ -0,0 +1,75 @@
+package be.itlive.common.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A body part encoded once (headers and transfer-encoded content) and kept as bytes.
+ * <p>
+ * {@link #toBodyPart()} gives a new {@link MimeBodyPart} sharing those bytes: it is written as is, without decoding nor encoding its content
+ * again, so the same attachment can be put in many messages at the cost of a copy of its encoded bytes to the output.
+ * </p>
+ *
+ * @author vbiertho
+ */
+public final class PreencodedBodyPart {
+
+    private final byte[] encoded;
+
+    private PreencodedBodyPart(final byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * Encodes a body part, choosing its transfer encoding as a message would.
+     * @param part the part, it must not be modified afterwards.
+     * @return the encoded part.
+     * @throws MessagingException if the part can't be encoded.
+     */
+    public static PreencodedBodyPart encode(final MimeBodyPart part) throws MessagingException {
+        // saveChanges() is the public way to have the headers (Content-Type, Content-Transfer-Encoding) of a part computed
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            part.writeTo(out);
+        } catch (final IOException e) {
+            throw new MessagingException("Error encoding body part", e);
+        }
+        return new PreencodedBodyPart(out.toByteArray());
+    }
+
+    /**
+     * @param encoded bytes of a part, as written by {@link MimeBodyPart#writeTo(java.io.OutputStream)}, not copied.
+     * @return the encoded part.
+     */
+    public static PreencodedBodyPart wrap(final byte[] encoded) {
+        return new PreencodedBodyPart(encoded);
+    }
+
+    /**
+     * @return a new part sharing the encoded bytes.
+     * @throws MessagingException if the bytes are not a valid part.
+     */
+    public MimeBodyPart toBodyPart() throws MessagingException {
+        return new MimeBodyPart(new SharedByteArrayInputStream(encoded));
+    }
+
+    /**
+     * @return the size of the encoded part in bytes.
+     */
+    public int getEncodedSize() {
+        return encoded.length;
+    }
+}
@@ -1,8 +1,6 @@
 package be.itlive.common.utils;
 
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
@@ -10,20 +8,15 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
-import java.net.JarURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
 
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
@@ -50,36 +43,27 @@ public final class ReflectionUtils {
     /**
      * Returns an empty list if none are found.
      * @param c class
-     * @return field of class and superclass
+     * @return field of class and superclass, unmodifiable and cached in the {@link ClassFieldModel} of the class
      */
-    public static List<Field> collectFields(Class<?> c) {
-        final List<Field> fields = new LinkedList<>();
-        do {
-            fields.addAll(Arrays.asList(c.getDeclaredFields()));
-            c = c.getSuperclass();
-        } while (c != null);
-
-        return fields;
+    public static List<Field> collectFields(final Class<?> c) {
+        return ClassFieldModel.of(c).getFields();
     }
 
     /**
      * Return list of all field name in given class, excluding given names.
      * @param c a class.
      * @param nameToExclude name to exclude.
-     * @return set of fieldName.
+     * @return set of fieldName, unmodifiable.
      */
     public static Set<String> collectFieldsdName(final Class<?> c, final String... nameToExclude) {
-        final Set<String> fields = new HashSet<>();
-        List<Field> collectedFields = collectFields(c);
-        List<String> toExclude = Arrays.asList(nameToExclude);
-        for (Field field : collectedFields) {
-            String fieldName = field.getName();
-            if (!toExclude.contains(fieldName)) {
-                fields.add(fieldName);
-            }
+        Set<String> names = ClassFieldModel.of(c).getFieldNames();
+        if (nameToExclude.length == 0) {
+            return names;
         }
+        final Set<String> fields = new HashSet<>(names);
+        fields.removeAll(Arrays.asList(nameToExclude));
 
-        return fields;
+        return Collections.unmodifiableSet(fields);
     }
 
     /**
@@ -89,19 +73,7 @@ public final class ReflectionUtils {
      * @return List<Field>
      */
     public static List<Field> collectFieldsByAnnotation(final Class<?> c, final Class<? extends Annotation>... annotations) {
-        List<Field> fields = new ArrayList<>();
-        for (Class<?> clazz = c; clazz != Object.class; clazz = clazz.getSuperclass()) {
-            for (Field field : clazz.getDeclaredFields()) {
-                for (Class<? extends Annotation> annotation : annotations) {
-                    if (field.isAnnotationPresent(annotation)) {
-                        fields.add(field);
-                        break;
-                    }
-                }
-            }
-        }
-
-        return fields;
+        return new ArrayList<>(ClassFieldModel.of(c).getAnnotatedFields(annotations));
     }
 
     /**
@@ -112,15 +84,8 @@ public final class ReflectionUtils {
      */
     public static Map<String, Field> collectFieldsByAnnotationAsMap(final Class<?> c, final Class<? extends Annotation>... annotations) {
         final Map<String, Field> fields = new HashMap<>();
-        for (Class<?> clazz = c; clazz != Object.class; clazz = clazz.getSuperclass()) {
-            for (Field field : clazz.getDeclaredFields()) {
-                for (Class<? extends Annotation> annotation : annotations) {
-                    if (field.isAnnotationPresent(annotation)) {
-                        fields.put(field.getName(), field);
-                        break;
-                    }
-                }
-            }
+        for (Field field : ClassFieldModel.of(c).getAnnotatedFields(annotations)) {
+            fields.put(field.getName(), field);
         }
 
         return fields;
@@ -129,18 +94,10 @@ public final class ReflectionUtils {
     /**
      * Build a map of fields where the key is the field name. Returns an empty Map if none are found
      * @param c Class
-     * @return Map<fileName, Field>.
+     * @return Map<fileName, Field>, unmodifiable and cached in the {@link ClassFieldModel} of the class.
      */
-    public static Map<String, Field> collectFieldsAsMap(Class<?> c) {
-        final Map<String, Field> fields = new HashMap<>();
-        do {
-            for (Field f : c.getDeclaredFields()) {
-                fields.put(f.getName(), f);
-            }
-            c = c.getSuperclass();
-        } while (c != null);
-
-        return fields;
+    public static Map<String, Field> collectFieldsAsMap(final Class<?> c) {
+        return ClassFieldModel.of(c).getFieldsByName();
     }
 
     /**
@@ -150,21 +107,11 @@ public final class ReflectionUtils {
      * @param modifersToExclude See {@link java.lang.reflect.Modifier}
      * @return field of class and superclass
      */
-    public static List<Field> collectFields(Class<?> c, final int... modifersToExclude) {
-        final List<Field> fields = new LinkedList<>();
-        do {
-            fields.addAll(Arrays.asList(c.getDeclaredFields()));
-            c = c.getSuperclass();
-        } while (c != null);
-
-        Iterator<Field> it = fields.iterator();
-        allField: while (it.hasNext()) {
-            Field f = it.next();
-            for (int modifiers : modifersToExclude) {
-                if ((f.getModifiers() & modifiers) == modifiers) {
-                    it.remove();
-                    continue allField;
-                }
+    public static List<Field> collectFields(final Class<?> c, final int... modifersToExclude) {
+        final List<Field> fields = new ArrayList<>();
+        for (Field f : ClassFieldModel.of(c).getFields()) {
+            if (!hasAnyModifiers(f, modifersToExclude)) {
+                fields.add(f);
             }
         }
 
@@ -178,21 +125,28 @@ public final class ReflectionUtils {
      * @return Map<fileName, Field>.
      */
     public static Map<String, Field> collectFieldsAsMap(final Class<?> c, final int... modifersToExclude) {
-        final Map<String, Field> fields = collectFieldsAsMap(c);
-        Iterator<Map.Entry<String, Field>> it = fields.entrySet().iterator();
-        allField: while (it.hasNext()) {
-            Map.Entry<String, Field> entry = it.next();
-            for (int modifiers : modifersToExclude) {
-                if ((entry.getValue().getModifiers() & modifiers) == modifiers) {
-                    it.remove();
-                    continue allField;
-                }
+        final Map<String, Field> fields = new HashMap<>();
+        for (Map.Entry<String, Field> entry : ClassFieldModel.of(c).getFieldsByName().entrySet()) {
+            if (!hasAnyModifiers(entry.getValue(), modifersToExclude)) {
+                fields.put(entry.getKey(), entry.getValue());
             }
         }
 
         return fields;
     }
 
+    /**
+     * @return true if the field has all the modifiers of one of the given combinations.
+     */
+    private static boolean hasAnyModifiers(final Field f, final int... modifersToExclude) {
+        for (int modifiers : modifersToExclude) {
+            if ((f.getModifiers() & modifiers) == modifiers) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * ex :collectFields(C.class, Modifier.STATIC + Modifier.PRIVATE,Modifier.TRANSIENT) will ignore all private static.
      * and all transient field {
@@ -200,29 +154,21 @@ public final class ReflectionUtils {
      * @param fieldType fieldType
      * @return field of class and superclass
      */
-    public static List<Field> collectFields(Class<?> c, final Class<?>... fieldType) {
-        final List<Field> fields = new LinkedList<>();
-        do {
-            fields.addAll(Arrays.asList(c.getDeclaredFields()));
-            c = c.getSuperclass();
-        } while (c != null);
-
-        Iterator<Field> it = fields.iterator();
-        allField: while (it.hasNext()) {
-            Field f = it.next();
+    public static List<Field> collectFields(final Class<?> c, final Class<?>... fieldType) {
+        final List<Field> fields = new ArrayList<>();
+        allField: for (Field f : ClassFieldModel.of(c).getFields()) {
             for (Class<?> clazz : fieldType) {
                 if (clazz.isInterface()) {
                     if (!clazz.isAssignableFrom(f.getType())) {
-                        it.remove();
                         continue allField;
                     }
                 } else {
                     if (!f.getType().equals(clazz)) {
-                        it.remove();
                         continue allField;
                     }
                 }
             }
+            fields.add(f);
         }
 
         return fields;
@@ -264,100 +210,69 @@ public final class ReflectionUtils {
 
     /**
      * Get a list of classes present in specified package. Find every package in the current classLoader (included in
-     * Jar file).
+     * Jar file), with a {@link ClassPathScanner}. See {@link #getIndexedClasses(String, boolean)} to read the class index written at build
+     * time instead of scanning.
      * @param pckgname the fully-qualified package name
      * @param recurse if <code>true</code>, recurse into sub-packages
-     * @return a List of classes
+     * @return a List of classes, initialized
      * @throws ClassNotFoundException if a class problem occurs
      * @throws ServiceException when something critical append (initiate a rollback).
      */
     public static List<Class<? extends Object>> getClasses(final String pckgname, final boolean recurse)
             throws ClassNotFoundException, ServiceException {
-        ArrayList<Class<? extends Object>> classes = new ArrayList<>();
-        // Get a File object for the package
-        File directory = null;
-        URL resource = null;
+        ClassLoader cld = Thread.currentThread().getContextClassLoader();
+        if (cld == null) {
+            throw new ClassNotFoundException("Can't get class loader.");
+        }
         String path = pckgname.replace('.', '/');
-        try {
-            ClassLoader cld = Thread.currentThread().getContextClassLoader();
-            if (cld == null) {
-                throw new ClassNotFoundException("Can't get class loader.");
-            }
-
-            resource = cld.getResource(path);
-            if (resource == null) {
-                throw new ClassNotFoundException("No resource for " + path);
-            }
-
-        } catch (final NullPointerException x) {
-            throw new ClassNotFoundException(pckgname + " (" + directory + ") does not appear to be a valid package");
+        if (cld.getResource(path) == null) {
+            throw new ClassNotFoundException("No resource for " + path);
         }
 
-        List<String> subPackages = null;
+        ClassPathScanner scanner = new ClassPathScanner(cld, true);
+        Set<String> classNames;
+        try {
+            classNames = scanner.findClassNames(pckgname, recurse);
+        } catch (final IOException x) {
+            throw new ServiceException(x);
+        }
+        List<Class<? extends Object>> classes = new ArrayList<>(classNames.size());
+        for (String className : classNames) {
+            classes.add(scanner.loadClass(className));
+        }
+        return classes;
+    }
 
-        // if (recurse) {
-        subPackages = new ArrayList<>();
-        // }
-        if (resource.getProtocol().equals("jar")) {
-            // JarURLConnection jar = (JarURLConnection)resource.openConnection();
-            JarInputStream jarFile = null;
-            try {
-                JarURLConnection jar = (JarURLConnection) resource.openConnection();
-                jarFile = new JarInputStream(new FileInputStream(new File(jar.getJarFile().getName())));
-                JarEntry jarEntry;
-                while ((jarEntry = jarFile.getNextJarEntry()) != null) {
-                    if (jarEntry.getName().startsWith(path)) {
-                        if (jarEntry.getName().endsWith(".class")) {
-
-                            String fullClassName = jarEntry.getName().replaceAll("/", "\\.");
-                            Class<? extends Object> c = Class.forName(fullClassName.substring(0, fullClassName.length() - 6));
-                            classes.add(c);
-
-                        } else if (jarEntry.isDirectory()) {
-                            String packageName = jarEntry.getName().substring(0, jarEntry.getName().length() - 1).replaceAll("/", "\\.");
-                            if (!packageName.equals(pckgname)) {
-                                subPackages.add(jarEntry.getName());
-                            }
-                        }
-                    }
-                }
-            } catch (final Exception x) {
-                throw new ServiceException(x);
-            } finally {
-                if (jarFile != null) {
-                    try {
-                        jarFile.close();
-                    } catch (final IOException e) {
-                        throw new ServiceException(e);
-                    }
-                }
-            }
-        } else {
-            directory = new File(resource.getFile());
-            if (directory.exists()) {
-                // Get the list of the files contained in the package
-                File[] files = directory.listFiles();
-                for (int i = 0; i < files.length; i++) {
-
-                    String filename = files[i].getName();
-                    // we are only interested in .class files
-                    if (filename.endsWith(".class")) {
-                        // removes the .class extension
-                        classes.add(Class.forName(pckgname + '.' + filename.substring(0, filename.length() - ".class".length())));
-                    } else if (recurse && files[i].isDirectory()) {
-                        subPackages.add(pckgname + '.' + filename);
-                    }
-                }
-            } else {
-                throw new ClassNotFoundException(pckgname + " does not appear to be a valid package");
-            }
+    /**
+     * Get a list of the named classes present in specified package, read from the class index written at build time by the
+     * {@link ClassIndexProcessor}: only the roots of the package without an index, or with a stale one, are scanned (see
+     * {@link ClassIndex}). Unlike {@link #getClasses(String, boolean)}, the anonymous and local classes are left out.
+     * @param pckgname the fully-qualified package name
+     * @param recurse if <code>true</code>, recurse into sub-packages
+     * @return a List of classes, initialized
+     * @throws ClassNotFoundException if a class problem occurs
+     * @throws ServiceException when something critical append (initiate a rollback).
+     */
+    public static List<Class<? extends Object>> getIndexedClasses(final String pckgname, final boolean recurse)
+            throws ClassNotFoundException, ServiceException {
+        ClassLoader cld = Thread.currentThread().getContextClassLoader();
+        if (cld == null) {
+            throw new ClassNotFoundException("Can't get class loader.");
+        }
+        String path = pckgname.replace('.', '/');
+        if (cld.getResource(path) == null) {
+            throw new ClassNotFoundException("No resource for " + path);
+        }
 
-            if (recurse) {
-                for (String pckg : subPackages) {
-                    List<Class<? extends Object>> subClasses = getClasses(pckg, true);
-                    classes.addAll(subClasses);
-                }
-            }
+        Set<String> classNames;
+        try {
+            classNames = new ClassIndex(cld).findClassNames(pckgname, recurse);
+        } catch (final IOException x) {
+            throw new ServiceException(x);
+        }
+        List<Class<? extends Object>> classes = new ArrayList<>(classNames.size());
+        for (String className : classNames) {
+            classes.add(Class.forName(className, true, cld));
         }
         return classes;
     }
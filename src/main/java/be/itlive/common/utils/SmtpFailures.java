@@ -0,0 +1,93 @@
+package be.itlive.common.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Classifies the send failures of the SMTP transport by their reply code.
+ * <p>
+ * A refused recipient (RCPT) is reported in a plain {@link SendFailedException}, with a {@link SMTPAddressFailedException} per refused
+ * address, the transport having reset the transaction. A failed MAIL FROM, DATA or end of data is reported in a
+ * {@link SMTPSendFailedException} holding the reply code, 2xx when the mail was sent to part of the recipients only
+ * (<code>mail.smtp.sendpartial</code>). Any other {@link MessagingException} is an I/O failure or an unknown state.
+ * </p>
+ *
+ * @author vbiertho
+ */
+final class SmtpFailures {
+
+    private SmtpFailures() {
+    }
+
+    /**
+     * @param e the failure.
+     * @return the reply code of the failed command, -1 if none.
+     */
+    static int getReturnCode(final Exception e) {
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        }
+        return -1;
+    }
+
+    /**
+     * @param e the failure.
+     * @return true if the message was refused with a 5xx reply, sending it again fails again.
+     */
+    static boolean isPermanent(final Exception e) {
+        return getReturnCode(e) >= 500;
+    }
+
+    /**
+     * @param e the failure.
+     * @return true if the connection failed (I/O error or 421 service closing) and not the message: it can be sent on a new connection.
+     */
+    static boolean isConnectionFailure(final Exception e) {
+        return !(e instanceof SendFailedException) || getReturnCode(e) == 421;
+    }
+
+    /**
+     * @param e the failure.
+     * @return true if only recipients were refused and the SMTP transaction ended normally, the connection being left in a known state.
+     */
+    static boolean isRecipientRefusal(final Exception e) {
+        if (!(e instanceof SendFailedException)) {
+            return false;
+        }
+        if (e instanceof SMTPSendFailedException) {
+            int code = getReturnCode(e);
+            return code >= 200 && code < 300;
+        }
+        return true;
+    }
+
+    /**
+     * @param e the failure.
+     * @return the recipients worth sending to again: the valid ones not sent to and the ones refused with a transient 4xx reply.
+     */
+    static Address[] getRetryableRecipients(final SendFailedException e) {
+        List<Address> recipients = new ArrayList<>();
+        if (e.getValidUnsentAddresses() != null) {
+            recipients.addAll(Arrays.asList(e.getValidUnsentAddresses()));
+        }
+        for (Exception next = e.getNextException(); next instanceof MessagingException; next = ((MessagingException) next)
+                .getNextException()) {
+            int code = getReturnCode(next);
+            if (next instanceof SMTPAddressFailedException && code >= 400 && code < 500) {
+                recipients.add(((SMTPAddressFailedException) next).getAddress());
+            }
+        }
+        return recipients.toArray(new Address[recipients.size()]);
+    }
+}
@@ -0,0 +1,202 @@
+package be.itlive.common.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.activation.DataSource;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * {@link Appendable} text buffer kept in memory up to a threshold, then spilled to a temporary file, so big generated attachments (reports,
+ * CSV exports) do not have to fit in the heap.
+ * <p>
+ * The content is read back as a {@link DataSource} streaming the encoded text, from memory or from the file. {@link #close()} deletes the
+ * temporary file.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * try (SpillableBuffer buffer = new SpillableBuffer(1024 * 1024, StandardCharsets.UTF_8)) {
+ *     for (Row row : rows) {
+ *         buffer.append(row.toCsv()).append('\n');
+ *     }
+ *     attachments.add(new MailAttachment(buffer.getDataSource("export.csv", "text/csv; charset=UTF-8")));
+ *     mailSender.sendMail();
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class SpillableBuffer implements Appendable, Closeable {
+
+    private static final int ENCODING_CHUNK_SIZE = 8192;
+
+    private final int threshold;
+
+    private final Charset charset;
+
+    private StringBuilder memory = new StringBuilder();
+
+    private Path file;
+
+    private Writer writer;
+
+    private long length;
+
+    /**
+     * @category Constructor
+     * @param threshold number of characters kept in memory before spilling to a file.
+     * @param charset the charset of the text once read back or spilled.
+     */
+    public SpillableBuffer(final int threshold, final Charset charset) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+        this.charset = charset;
+    }
+
+    @Override
+    public SpillableBuffer append(final CharSequence csq) throws IOException {
+        CharSequence text = csq == null ? "null" : csq;
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public SpillableBuffer append(final CharSequence csq, final int start, final int end) throws IOException {
+        CharSequence text = csq == null ? "null" : csq;
+        if (writer == null && memory.length() + end - start > threshold) {
+            spill();
+        }
+        if (writer == null) {
+            memory.append(text, start, end);
+        } else {
+            writer.append(text, start, end);
+        }
+        length += end - start;
+        return this;
+    }
+
+    @Override
+    public SpillableBuffer append(final char c) throws IOException {
+        if (writer == null && memory.length() + 1 > threshold) {
+            spill();
+        }
+        if (writer == null) {
+            memory.append(c);
+        } else {
+            writer.append(c);
+        }
+        length++;
+        return this;
+    }
+
+    /**
+     * @return the number of characters written, known without encoding them; the size in bytes is the same for ASCII text.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the content was spilled to a temporary file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @param name the name of the content.
+     * @param contentType the content type.
+     * @return the content written so far, streamed from memory or from the file.
+     * @throws IOException if the spilled content can't be flushed.
+     */
+    public DataSource getDataSource(final String name, final String contentType) throws IOException {
+        if (writer == null) {
+            ByteArrayDataSource source = new ByteArrayDataSource(encodeMemory(), contentType);
+            source.setName(name);
+            return source;
+        }
+        writer.flush();
+        return new MappedFileDataSource(file, name, contentType);
+    }
+
+    /**
+     * Deletes the temporary file, if any, and empties the buffer.
+     * @throws IOException if the file can't be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        memory = new StringBuilder();
+        length = 0;
+        if (writer != null) {
+            try {
+                writer.close();
+            } finally {
+                writer = null;
+                Files.deleteIfExists(file);
+                file = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes the text kept in memory without copying it to a String: a first pass counts the bytes, so the text is encoded into an array
+     * of the exact size. Malformed and unmappable characters are replaced, as {@link String#getBytes(Charset)} does.
+     */
+    private byte[] encodeMemory() throws CharacterCodingException {
+        ByteBuffer scratch = ByteBuffer.allocate(ENCODING_CHUNK_SIZE);
+        CharsetEncoder encoder = newEncoder();
+        CharBuffer chars = CharBuffer.wrap(memory);
+        long length = 0;
+        boolean done;
+        do {
+            done = encode(encoder, chars, scratch);
+            length += scratch.position();
+            scratch.clear();
+        } while (!done);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Buffer too large to be kept in memory: " + length + " bytes");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        encode(newEncoder(), CharBuffer.wrap(memory), bytes);
+        return bytes.array();
+    }
+
+    private CharsetEncoder newEncoder() {
+        return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return true once all the characters are encoded and the encoder is flushed, false if <code>out</code> is full.
+     */
+    private static boolean encode(final CharsetEncoder encoder, final CharBuffer chars, final ByteBuffer out)
+            throws CharacterCodingException {
+        CoderResult result = encoder.encode(chars, out, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(out);
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        return result.isUnderflow();
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("mail-buffer-", ".tmp");
+        writer = Files.newBufferedWriter(file, charset);
+        writer.append(memory);
+        // the memory is released, only the file holds the content from now on
+        memory = new StringBuilder(0);
+    }
+}
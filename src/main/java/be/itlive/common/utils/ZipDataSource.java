@@ -0,0 +1,168 @@
+package be.itlive.common.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.DataSource;
+
+import be.itlive.common.enums.MimeType;
+
+/**
+ * {@link DataSource} compressing another one in a zip archive of one entry, while it is read.
+ * <p>
+ * The content is deflated chunk by chunk as the stream is read, so neither the content nor the archive is ever held whole in the heap. The
+ * entry is named after the source and the archive after the entry, with a <code>.zip</code> extension.
+ * </p>
+ *
+ * @author vbiertho
+ */
+public class ZipDataSource implements DataSource {
+
+    /**
+     * Size of the chunks read from the source.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final String DEFAULT_ENTRY_NAME = "attachment";
+
+    private final DataSource source;
+
+    private final int level;
+
+    /**
+     * @category Constructor
+     * @param source the content to compress.
+     * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+     *            {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public ZipDataSource(final DataSource source, final int level) {
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.source = source;
+        this.level = level;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new ZippingInputStream(source.getInputStream(), getEntryName(), level);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("ZipDataSource is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return MimeType.APPLICATION_ZIP.getMimeType();
+    }
+
+    @Override
+    public String getName() {
+        return getEntryName() + ".zip";
+    }
+
+    /**
+     * @return the content compressed by this data source.
+     */
+    public DataSource getSource() {
+        return source;
+    }
+
+    /**
+     * @return the name of the compressed entry.
+     */
+    public String getEntryName() {
+        return source.getName() == null ? DEFAULT_ENTRY_NAME : source.getName();
+    }
+
+    /**
+     * Pulls the content through a {@link ZipOutputStream} writing in a buffer drained by the reads.
+     */
+    private static final class ZippingInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final DrainableBuffer buffer = new DrainableBuffer();
+
+        private final ZipOutputStream zip;
+
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        private boolean finished;
+
+        private ZippingInputStream(final InputStream in, final String entryName, final int level) throws IOException {
+            this.in = in;
+            this.zip = new ZipOutputStream(buffer);
+            zip.setLevel(level);
+            zip.putNextEntry(new ZipEntry(entryName));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (buffer.available() == 0 && !finished) {
+                int read = in.read(chunk);
+                if (read < 0) {
+                    zip.closeEntry();
+                    zip.finish();
+                    finished = true;
+                } else {
+                    zip.write(chunk, 0, read);
+                }
+            }
+            return buffer.drain(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                // releases the native deflater
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * A buffer filled by the {@link ZipOutputStream} and emptied by the reads, it only grows to the output of one chunk.
+     */
+    private static final class DrainableBuffer extends ByteArrayOutputStream {
+
+        private int position;
+
+        private int available() {
+            return count - position;
+        }
+
+        private int drain(final byte[] b, final int off, final int len) {
+            int available = available();
+            if (available == 0) {
+                return -1;
+            }
+            int drained = Math.min(len, available);
+            System.arraycopy(buf, position, b, off, drained);
+            position += drained;
+            if (position == count) {
+                reset();
+                position = 0;
+            }
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+import be.itlive.common.enums.BackpressurePolicy;
+
+/**
+ * Test class for AsyncMailSender.
+ *
+ * @author vbiertho
+ */
+public class AsyncMailSenderTest {
+
+    @Test
+    public void testSubmitCompletesFuture() throws Exception {
+        AsyncMailSender async = new AsyncMailSender(10, 2, BackpressurePolicy.BLOCK);
+        StubMail mail = new StubMail(null, null);
+
+        assertSame(mail, async.submit(mail).get(5, TimeUnit.SECONDS));
+        assertEquals(1, mail.sent.get());
+        async.close();
+    }
+
+    @Test
+    public void testSubmitFailureCompletesExceptionally() throws Exception {
+        AsyncMailSender async = new AsyncMailSender(10, 1, BackpressurePolicy.BLOCK);
+        StubMail mail = new StubMail(null, new MessagingException("relay down"));
+
+        try {
+            async.submit(mail).get(5, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+        async.close();
+    }
+
+    @Test
+    public void testErrorKeepsTheWorker() throws Exception {
+        AsyncMailSender async = new AsyncMailSender(10, 1, BackpressurePolicy.BLOCK);
+        MailSender broken = new MailSender(null, "from@itlive.be", "to@itlive.be") {
+            @Override
+            public void sendMail() {
+                throw new NoClassDefFoundError("com/sun/mail/smtp/SMTPTransport");
+            }
+        };
+
+        try {
+            async.submit(broken).get(5, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoClassDefFoundError);
+        }
+        // the only worker is still alive
+        StubMail mail = new StubMail(null, null);
+        assertSame(mail, async.submit(mail).get(5, TimeUnit.SECONDS));
+        async.close();
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AsyncMailSender async = new AsyncMailSender(1, 1, BackpressurePolicy.REJECT);
+        StubMail blocking = new StubMail(latch, null);
+        async.submit(blocking);
+        blocking.started.await(5, TimeUnit.SECONDS);
+        async.submit(new StubMail(null, null));
+
+        try {
+            async.submit(new StubMail(null, null));
+            fail("Expected a RejectedExecutionException");
+        } catch (final RejectedExecutionException e) {
+        }
+        latch.countDown();
+        async.close();
+    }
+
+    @Test
+    public void testDropOldestWhenFull() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AsyncMailSender async = new AsyncMailSender(1, 1, BackpressurePolicy.DROP_OLDEST);
+        StubMail blocking = new StubMail(latch, null);
+        async.submit(blocking);
+        blocking.started.await(5, TimeUnit.SECONDS);
+        CompletableFuture<MailSender> dropped = async.submit(new StubMail(null, null));
+        StubMail kept = new StubMail(null, null);
+        CompletableFuture<MailSender> last = async.submit(kept);
+
+        assertTrue(dropped.isCompletedExceptionally());
+        latch.countDown();
+        assertSame(kept, last.get(5, TimeUnit.SECONDS));
+        async.close();
+    }
+
+    @Test
+    public void testShutdownDrainsQueue() throws Exception {
+        AsyncMailSender async = new AsyncMailSender(100, 2, BackpressurePolicy.BLOCK);
+        StubMail[] mails = new StubMail[50];
+        for (int i = 0; i < mails.length; i++) {
+            mails[i] = new StubMail(null, null);
+            async.submit(mails[i]);
+        }
+        async.shutdown();
+
+        assertTrue(async.awaitTermination(5, TimeUnit.SECONDS));
+        for (StubMail mail : mails) {
+            assertEquals(1, mail.sent.get());
+        }
+        try {
+            async.submit(new StubMail(null, null));
+            fail("Expected a RejectedExecutionException");
+        } catch (final RejectedExecutionException e) {
+        }
+    }
+
+    /**
+     * MailSender which does not connect to any server.
+     */
+    private static final class StubMail extends MailSender {
+
+        private final CountDownLatch latch;
+
+        private final MessagingException error;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final AtomicInteger sent = new AtomicInteger();
+
+        private StubMail(final CountDownLatch latch, final MessagingException error) {
+            this.latch = latch;
+            this.error = error;
+        }
+
+        @Override
+        public void sendMail() throws MessagingException {
+            started.countDown();
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            sent.incrementAndGet();
+        }
+    }
+}
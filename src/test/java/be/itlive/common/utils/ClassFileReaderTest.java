@@ -0,0 +1,136 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Test class for ClassFileReader and its use by ClassPathScanner.
+ *
+ * @author vbiertho
+ */
+public class ClassFileReaderTest {
+
+    private static volatile boolean initialized;
+
+    /**
+     * Kept in the class file only.
+     */
+    @Retention(RetentionPolicy.CLASS)
+    @interface Indexed {
+    }
+
+    /**
+     * Visible at runtime, with values to skip.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Entity {
+        String name() default "";
+
+        RetentionPolicy policy() default RetentionPolicy.RUNTIME;
+
+        Class<?>[] types() default {};
+
+        Retention nested() default @Retention(RetentionPolicy.SOURCE);
+    }
+
+    /**
+     * A base class.
+     */
+    abstract static class BaseEntity implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected long id = 42L;
+
+        protected double ratio = 0.5d;
+    }
+
+    /**
+     * The annotated class, recording its initialization.
+     */
+    @Indexed
+    @Entity(name = "customer", policy = RetentionPolicy.CLASS, types = { String.class, Long.class },
+            nested = @Retention(RetentionPolicy.RUNTIME))
+    static class Customer extends BaseEntity implements Comparable<Customer>, Runnable {
+
+        private static final long serialVersionUID = 1L;
+
+        static {
+            initialized = true;
+        }
+
+        private final String name = "name";
+
+        @Override
+        public int compareTo(final Customer o) {
+            return name.compareTo(o.name);
+        }
+
+        @Override
+        public void run() {
+            Runnable r = () -> System.out.println(name);
+            r.run();
+        }
+    }
+
+    private static ClassFileReader read(final String className) throws IOException {
+        try (InputStream in = ClassFileReaderTest.class.getClassLoader().getResourceAsStream(className.replace('.', '/') + ".class")) {
+            return ClassFileReader.read(in);
+        }
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        ClassFileReader classFile = read(ClassFileReaderTest.class.getName() + "$Customer");
+
+        assertEquals(ClassFileReaderTest.class.getName() + "$Customer", classFile.getClassName());
+        assertEquals(BaseEntity.class.getName(), classFile.getSuperClassName());
+        assertEquals(Arrays.asList(Comparable.class.getName(), Runnable.class.getName()), classFile.getInterfaceNames());
+        assertEquals(new HashSet<>(Arrays.asList(Indexed.class.getName(), Entity.class.getName())),
+                new HashSet<>(classFile.getAnnotationNames()));
+        assertTrue(classFile.hasAnnotation(Entity.class));
+        assertFalse(classFile.isInterface());
+        assertFalse(classFile.isAbstract());
+        assertFalse(initialized);
+    }
+
+    @Test
+    public void testReadKinds() throws Exception {
+        assertTrue(read(BaseEntity.class.getName()).isAbstract());
+        assertTrue(read(Entity.class.getName()).isAnnotation());
+        assertTrue(read(RetentionPolicy.class.getName()).isEnum());
+        assertNull(read(Object.class.getName()).getSuperClassName());
+        assertEquals(Collections.emptyList(), read(Object.class.getName()).getAnnotationNames());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadNotAClass() throws Exception {
+        ClassFileReader.read(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+    }
+
+    @Test
+    public void testScannerFilter() throws Exception {
+        ClassPathScanner scanner = new ClassPathScanner(getClass().getClassLoader(), false);
+        String customer = ClassFileReaderTest.class.getName() + "$Customer";
+
+        assertEquals(Collections.singleton(customer),
+                scanner.findClassNames("be.itlive.common.utils", false, classFile -> classFile.hasAnnotation(Entity.class)));
+        assertTrue(scanner.isSubtypeOf(scanner.readClassFile(customer), Serializable.class.getName()));
+        assertFalse(scanner.isSubtypeOf(scanner.readClassFile(customer), Cloneable.class.getName()));
+        assertFalse(initialized);
+    }
+}
@@ -0,0 +1,263 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for ClassIndex and ClassIndexProcessor.
+ *
+ * @author vbiertho
+ */
+public class ClassIndexTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("class-index");
+        Files.createDirectories(root.resolve("x/y/z"));
+        for (String file : Arrays.asList("x/y/A.class", "x/y/B.class", "x/y/z/D.class")) {
+            Files.createFile(root.resolve(file));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private void writeIndex(final String location, final long generated, final String... names) throws IOException {
+        Path file = root.resolve(location);
+        Files.createDirectories(file.getParent());
+        StringBuilder content = new StringBuilder(ClassIndex.GENERATED_PREFIX + generated + "\n");
+        for (String name : names) {
+            content.append(name).append('\n');
+        }
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static TreeSet<String> set(final String... names) {
+        return new TreeSet<>(Arrays.asList(names));
+    }
+
+    private Path writeJar() throws IOException {
+        Path jar = root.resolve("classes.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar)); Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(file -> !file.equals(root) && !file.equals(jar))::iterator) {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                JarEntry entry = new JarEntry(Files.isDirectory(file) ? name + '/' : name);
+                entry.setTime(Files.getLastModifiedTime(file).toMillis());
+                out.putNextEntry(entry);
+                if (Files.isRegularFile(file)) {
+                    out.write(Files.readAllBytes(file));
+                }
+            }
+        }
+        return jar;
+    }
+
+    @Test
+    public void testReadsIndexOfJar() throws Exception {
+        long now = System.currentTimeMillis();
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y", now, "x.y.A", "x.y.B");
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y.z", now, "x.y.z.D");
+        writeIndex(ClassIndex.PACKAGE_LIST_LOCATION, now, "x.y", "x.y.z");
+        writeIndex(ClassIndex.ANNOTATIONS_LOCATION + Deprecated.class.getName(), now, "x.y.B", "x.y.z.D");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { writeJar().toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("x.y.A", "x.y.B"), index.findClassNames("x.y", false));
+            assertEquals(set("x.y.A", "x.y.B", "x.y.z.D"), index.findClassNames("x.y", true));
+            // the class files are empty, so the annotations come from the index
+            assertEquals(set("x.y.B"), index.findAnnotatedClassNames("x.y", false, Deprecated.class));
+            assertEquals(set("x.y.B", "x.y.z.D"), index.findAnnotatedClassNames("x.y", true, Deprecated.class));
+            assertEquals(Collections.emptySet(), index.findAnnotatedClassNames("x.y", true, FunctionalInterface.class));
+            assertEquals(5, index.getIndexedRootCount());
+            assertEquals(0, index.getScannedRootCount());
+        }
+    }
+
+    @Test
+    public void testScansStaleIndexOfJar() throws Exception {
+        // the classes were compiled again two hours after the index
+        long generated = System.currentTimeMillis() - 7200000L;
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y", generated, "x.y.A", "x.y.B");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { writeJar().toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("x.y.A", "x.y.B"), index.findClassNames("x.y", false));
+            assertEquals(1, index.getScannedRootCount());
+        }
+    }
+
+    @Test
+    public void testReadsIndexMatchingDirectory() throws Exception {
+        long now = System.currentTimeMillis();
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y", now, "x.y.A", "x.y.B");
+        writeIndex(ClassIndex.ANNOTATIONS_LOCATION + Deprecated.class.getName(), now, "x.y.B");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { root.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            // the class files are empty, so the annotations come from the index
+            assertEquals(set("x.y.B"), index.findAnnotatedClassNames("x.y", false, Deprecated.class));
+            assertEquals(1, index.getIndexedRootCount());
+        }
+    }
+
+    @Test
+    public void testScansWithoutIndex() throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { root.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("x.y.A", "x.y.B", "x.y.z.D"), index.findClassNames("x.y", true));
+            assertEquals(1, index.getScannedRootCount());
+        }
+    }
+
+    @Test
+    public void testScansStaleIndex() throws Exception {
+        long now = System.currentTimeMillis();
+        // a class of the index was deleted
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y", now, "x.y.A", "x.y.B", "x.y.C");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { root.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("x.y.A", "x.y.B"), index.findClassNames("x.y", false));
+            assertEquals(1, index.getScannedRootCount());
+        }
+
+        // a class file was compiled again after the index
+        writeIndex(ClassIndex.PACKAGES_LOCATION + "x.y", now, "x.y.A", "x.y.B");
+        Files.setLastModifiedTime(root.resolve("x/y/A.class"), FileTime.fromMillis(now + 2 * ClassIndex.COMPILATION_WINDOW_MILLIS));
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { root.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("x.y.A", "x.y.B"), index.findClassNames("x.y", false));
+            assertEquals(1, index.getScannedRootCount());
+        }
+    }
+
+    @Test
+    public void testIsNamed() {
+        assertTrue(ClassIndex.isNamed("p.A"));
+        assertTrue(ClassIndex.isNamed("p.A$Inner"));
+        assertFalse(ClassIndex.isNamed("p.A$1"));
+        assertFalse(ClassIndex.isNamed("p.A$1Local"));
+        assertFalse(ClassIndex.isNamed("p.A$Inner$2"));
+    }
+
+    private boolean compile(final Path classes, final String... sourceFiles) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            List<File> files = new ArrayList<>();
+            for (String sourceFile : sourceFiles) {
+                files.add(root.resolve("src").resolve(sourceFile).toFile());
+            }
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, Arrays.asList("-d", classes.toString(), "-cp",
+                    classes.toString()), null, fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Collections.singletonList(new ClassIndexProcessor()));
+            return task.call();
+        }
+    }
+
+    private void writeSource(final String sourceFile, final String content) throws IOException {
+        Path file = root.resolve("src").resolve(sourceFile);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testProcessorWritesIndex() throws Exception {
+        // a JRE has no compiler
+        assumeNotNull(ToolProvider.getSystemJavaCompiler());
+        writeSource("p/q/Entity.java", "package p.q; @Deprecated public class Entity { public static class Inner {}"
+                + " Object anonymous = new Object() {}; void m() { class Local {} } }");
+        writeSource("p/q/Other.java", "package p.q; @SuppressWarnings(\"all\") public class Other {}");
+        Path classes = Files.createDirectories(root.resolve("classes"));
+        assertTrue(compile(classes, "p/q/Entity.java", "p/q/Other.java"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("p.q.Entity", "p.q.Entity$Inner", "p.q.Other"), index.findClassNames("p", true));
+            assertEquals(set("p.q.Entity"), index.findAnnotatedClassNames("p.q", false, Deprecated.class));
+            assertEquals(Collections.emptySet(), index.findAnnotatedClassNames("p.q", false, SuppressWarnings.class));
+            assertEquals(3, index.getIndexedRootCount());
+            // the anonymous and local classes are left out, but not by the scanner
+            assertEquals(set("p.q.Entity", "p.q.Entity$1", "p.q.Entity$1Local", "p.q.Entity$Inner", "p.q.Other"),
+                    new ClassPathScanner(loader, false).findClassNames("p.q", false));
+        }
+
+        // the same classes without the index
+        try (Stream<Path> files = Files.walk(classes.resolve("META-INF"))) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("p.q.Entity", "p.q.Entity$Inner", "p.q.Other"), index.findClassNames("p", true));
+            assertEquals(set("p.q.Entity"), index.findAnnotatedClassNames("p.q", false, Deprecated.class));
+            assertEquals(0, index.getIndexedRootCount());
+        }
+    }
+
+    @Test
+    public void testProcessorMergesIncrementalCompilation() throws Exception {
+        assumeNotNull(ToolProvider.getSystemJavaCompiler());
+        writeSource("p/A.java", "package p; @Deprecated public class A {}");
+        writeSource("p/B.java", "package p; public class B {}");
+        Path classes = Files.createDirectories(root.resolve("classes"));
+        assertTrue(compile(classes, "p/A.java", "p/B.java"));
+
+        // B only, annotated now
+        writeSource("p/B.java", "package p; @Deprecated public class B {}");
+        assertTrue(compile(classes, "p/B.java"));
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classes.toUri().toURL() }, null)) {
+            ClassIndex index = new ClassIndex(loader);
+
+            assertEquals(set("p.A", "p.B"), index.findClassNames("p", false));
+            assertEquals(set("p.A", "p.B"), index.findAnnotatedClassNames("p", false, Deprecated.class));
+            assertEquals(2, index.getIndexedRootCount());
+        }
+
+        // A deleted
+        Files.delete(classes.resolve("p/A.class"));
+        assertTrue(compile(classes, "p/B.java"));
+        List<String> indexed = Files.readAllLines(classes.resolve(ClassIndex.PACKAGES_LOCATION + "p"), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("p.B"), indexed.subList(1, indexed.size()));
+    }
+}
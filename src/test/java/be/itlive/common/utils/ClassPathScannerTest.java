@@ -0,0 +1,144 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import be.itlive.common.enums.MimeType;
+
+/**
+ * Test class for ClassPathScanner.
+ *
+ * @author vbiertho
+ */
+public class ClassPathScannerTest {
+
+    private static volatile boolean initialized;
+
+    /**
+     * Records its initialization.
+     */
+    static class Initialized {
+        static {
+            initialized = true;
+        }
+    }
+
+    private final ClassPathScanner scanner = new ClassPathScanner(getClass().getClassLoader(), false);
+
+    @Test
+    public void testFindClassNamesInSeveralRoots() throws Exception {
+        Set<String> names = scanner.findClassNames("be.itlive.common.enums", false);
+
+        // main and test classes are two roots of the same package
+        assertTrue(names.contains(MimeType.class.getName()));
+        assertTrue(names.contains("be.itlive.common.enums.MimeTypeTest"));
+        assertFalse(scanner.findClassNames("be.itlive.common", false).contains(MimeType.class.getName()));
+        assertTrue(scanner.findClassNames("be.itlive.common", true).contains(MimeType.class.getName()));
+        assertTrue(scanner.findClassNames("be.itlive.unknown", true).isEmpty());
+    }
+
+    @Test
+    public void testFindClassNamesInJar() throws Exception {
+        Path jar = Files.createTempFile("scanner", ".jar");
+        try {
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+                for (String entry : Arrays.asList("a/", "a/b/", "a/b/c/", "a/bc/", "a/b/One.class", "a/b/One$Inner.class", "a/b/package-info.class", "a/b/c/Two.class",
+                        "a/b/readme.txt", "a/bc/Three.class")) {
+                    out.putNextEntry(new JarEntry(entry));
+                    out.closeEntry();
+                }
+            }
+            try (URLClassLoader loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+                ClassPathScanner jarScanner = new ClassPathScanner(loader, false);
+
+                assertEquals(new TreeSet<>(Arrays.asList("a.b.One", "a.b.One$Inner")), jarScanner.findClassNames("a.b", false));
+                assertEquals(new TreeSet<>(Arrays.asList("a.b.One", "a.b.One$Inner", "a.b.c.Two")), jarScanner.findClassNames("a.b", true));
+            }
+        } finally {
+            Files.deleteIfExists(jar);
+        }
+    }
+
+    @Test
+    public void testFilterReadsClassFilesOfTheRoot() throws Exception {
+        Path jar = Files.createTempFile("scanner", ".jar");
+        try {
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+                out.putNextEntry(new JarEntry("a/"));
+                out.putNextEntry(new JarEntry("a/Enum.class"));
+                out.write(classFile(MimeType.class));
+                out.putNextEntry(new JarEntry("a/Other.class"));
+                out.write(classFile(Initialized.class));
+                out.closeEntry();
+            }
+            URL root = new URL("jar:" + jar.toUri() + "!/a/");
+            // the class files are only reachable through the scanned root, not looked up again in the class loader
+            ClassLoader loader = new ClassLoader(null) {
+                @Override
+                public Enumeration<URL> getResources(final String name) {
+                    return Collections.enumeration(Collections.singletonList(root));
+                }
+
+                @Override
+                public URL getResource(final String name) {
+                    return null;
+                }
+            };
+            ClassPathScanner jarScanner = new ClassPathScanner(loader, false);
+
+            assertEquals(new TreeSet<>(Arrays.asList("a.Enum")),
+                    jarScanner.findClassNames("a", false, classFile -> "java.lang.Enum".equals(classFile.getSuperClassName())));
+        } finally {
+            Files.deleteIfExists(jar);
+        }
+    }
+
+    private static byte[] classFile(final Class<?> type) throws Exception {
+        try (InputStream in = type.getResourceAsStream(type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testFindClassesWithoutInitializing() throws Exception {
+        try (Stream<Class<?>> classes = scanner.findClasses("be.itlive.common.utils", false)) {
+            List<Class<?>> found = classes.filter(c -> c.getSimpleName().equals("Initialized")).collect(Collectors.toList());
+
+            assertEquals(Arrays.asList(Initialized.class.getName()), found.stream().map(Class::getName).collect(Collectors.toList()));
+        }
+        assertFalse(initialized);
+    }
+
+    @Test
+    public void testGetClassesDelegates() throws Exception {
+        List<Class<? extends Object>> classes = ReflectionUtils.getClasses("be.itlive.common.enums", false);
+
+        assertTrue(classes.contains(MimeType.class));
+    }
+}
@@ -0,0 +1,95 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import be.itlive.common.exceptions.AlreadyMailedException;
+import be.itlive.common.exceptions.ServiceException;
+
+/**
+ * Test class for ErrorMailAggregator.
+ *
+ * @author vbiertho
+ */
+public class ErrorMailAggregatorTest {
+
+    private final StubAggregator aggregator = new StubAggregator();
+
+    @After
+    public void tearDown() {
+        aggregator.close();
+    }
+
+    @Test
+    public void testFirstOccurrenceMailedThenDigested() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            aggregator.record(failure("timeout " + i));
+        }
+        aggregator.flush();
+        aggregator.close();
+
+        assertEquals(2, aggregator.subjects.size());
+        assertTrue(aggregator.subjects.contains("[Test] timeout 0"));
+        assertTrue(aggregator.subjects.contains("[Test] Digest: 99 error(s) of 1 kind(s)"));
+    }
+
+    @Test
+    public void testDistinctFingerprints() {
+        assertTrue(aggregator.record(failure("a")));
+        assertTrue(aggregator.record(new IllegalStateException("b")));
+        assertFalse(aggregator.record(failure("c")));
+
+        assertEquals(2, aggregator.getFingerprintCount());
+        assertEquals(2L, aggregator.getWindowCount(failure("d")));
+    }
+
+    @Test
+    public void testNoDigestWithoutRepeats() {
+        aggregator.record(failure("a"));
+        aggregator.close();
+
+        assertEquals(1, aggregator.subjects.size());
+    }
+
+    @Test
+    public void testHandleWrapsOnce() {
+        ServiceException exception = failure("a");
+        AlreadyMailedException mailed = aggregator.handle(exception);
+
+        assertSame(exception, mailed.getCause());
+        assertSame(mailed, aggregator.handle(mailed));
+        assertNotSame(mailed, aggregator.handle(exception));
+    }
+
+    private static ServiceException failure(final String message) {
+        // same throw site and only the top frame in the fingerprint, so the same fingerprint whatever the message
+        return new ServiceException(message);
+    }
+
+    /**
+     * Records the sent subjects instead of sending.
+     */
+    private static final class StubAggregator extends ErrorMailAggregator {
+
+        private final List<String> subjects = new CopyOnWriteArrayList<>();
+
+        private StubAggregator() {
+            super(null, null, null, "[Test] ", TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1), 1);
+        }
+
+        @Override
+        protected void send(final String subject, final String body) {
+            subjects.add(subject);
+        }
+    }
+}
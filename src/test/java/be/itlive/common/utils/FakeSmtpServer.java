@@ -0,0 +1,322 @@
+package be.itlive.common.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Session;
+
+/**
+ * In-process SMTP server listening on the loopback interface, to send mails through the real SMTP transport in tests and benchmarks.
+ * <p>
+ * It accepts every mail and only counts them, unless a latency is set (slept before each reply to a command, and after the data of each mail)
+ * or a failure rate (every n-th mail is refused with a transient 451 error), or refused recipients (550 error), or a reply refusing the data
+ * of every mail. Each connection is served by its own thread.
+ * </p>
+ * Example of use :
+ *
+ * <pre>
+ * try (FakeSmtpServer server = new FakeSmtpServer()) {
+ *     MailSender mail = new MailSender(server.newSession(), "noreply@itlive.be", "john@itlive.be");
+ *     mail.sendMail();
+ *     assertEquals(1, server.getReceivedCount());
+ * }
+ * </pre>
+ *
+ * @author vbiertho
+ */
+public class FakeSmtpServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-smtp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Socket> clients = new ArrayList<>();
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final AtomicInteger refused = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    private volatile long commandLatencyMillis;
+
+    private volatile long dataLatencyMillis;
+
+    private volatile int failEvery;
+
+    private volatile String lastMessage;
+
+    private volatile String dataReply;
+
+    private final AtomicInteger dataReplies = new AtomicInteger();
+
+    private final Set<String> refusedRecipients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts the server on a free port.
+     * @throws IOException if the port can't be opened.
+     */
+    public FakeSmtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    /**
+     * @return a session sending to this server.
+     */
+    public Session newSession() {
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", "smtp");
+        props.setProperty("mail.smtp.host", serverSocket.getInetAddress().getHostAddress());
+        props.setProperty("mail.smtp.port", String.valueOf(getPort()));
+        props.setProperty("mail.smtp.connectiontimeout", "5000");
+        props.setProperty("mail.smtp.timeout", "5000");
+        return Session.getInstance(props);
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param millis slept before replying to each command.
+     */
+    public void setCommandLatencyMillis(final long millis) {
+        this.commandLatencyMillis = millis;
+    }
+
+    /**
+     * @param millis slept after receiving the data of each mail, before accepting it.
+     */
+    public void setDataLatencyMillis(final long millis) {
+        this.dataLatencyMillis = millis;
+    }
+
+    /**
+     * @param n every n-th mail is refused with a 451 error, 0 to accept all.
+     */
+    public void setFailEvery(final int n) {
+        this.failEvery = n;
+    }
+
+    /**
+     * @param reply the reply refusing the data of every mail, such as "554 Rejected", a "421" reply also closing the connection; null to
+     *            accept them.
+     */
+    public void setDataReply(final String reply) {
+        setDataReply(reply, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param reply the reply refusing the data of the next mails, a "421" reply also closing the connection.
+     * @param count the number of mails refused, the next ones are accepted.
+     */
+    public void setDataReply(final String reply, final int count) {
+        dataReplies.set(count);
+        this.dataReply = reply;
+    }
+
+    /**
+     * @param address a recipient refused with a 550 error.
+     */
+    public void refuseRecipient(final String address) {
+        refusedRecipients.add(address);
+    }
+
+    /**
+     * @return the number of mails accepted.
+     */
+    public int getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of mails refused.
+     */
+    public int getRefusedCount() {
+        return refused.get();
+    }
+
+    /**
+     * @return the number of connections opened since the start.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return the number of bytes of the accepted mails.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return the raw content of the last accepted mail, null if none.
+     */
+    public String getLastMessage() {
+        return lastMessage;
+    }
+
+    /**
+     * Closes the open connections, as a server timing out idle clients would; new connections are still accepted.
+     * @throws IOException if a connection can't be closed.
+     */
+    public void dropConnections() throws IOException {
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Stops listening and closes the open connections.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                connections.incrementAndGet();
+                executor.execute(() -> serve(client));
+            } catch (final IOException e) {
+                // closed
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket client) {
+        try (Socket socket = client;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 localhost fake SMTP ready");
+            String line;
+            while ((line = in.readLine()) != null) {
+                pause(commandLatencyMillis);
+                String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                switch (command) {
+                    case "EHLO":
+                        reply(out, "250-localhost\r\n250-8BITMIME\r\n250 SIZE 104857600");
+                        break;
+                    case "RCPT":
+                        reply(out, refusedRecipients.stream().anyMatch(line::contains) ? "550 Mailbox unavailable" : "250 OK");
+                        break;
+                    case "HELO":
+                    case "MAIL":
+                    case "RSET":
+                    case "NOOP":
+                        reply(out, "250 OK");
+                        break;
+                    case "DATA":
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        if (!readData(in, out)) {
+                            return;
+                        }
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Bye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (final SocketException e) {
+            // closed by the client or by close()
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            synchronized (clients) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    /**
+     * @return false if the connection must be closed.
+     */
+    private boolean readData(final BufferedReader in, final Writer out) throws IOException {
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !".".equals(line)) {
+            // removes the dot stuffing
+            data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+        }
+        pause(dataLatencyMillis);
+        String reply = dataReply;
+        int n = failEvery;
+        if (reply != null && dataReplies.getAndDecrement() > 0) {
+            refused.incrementAndGet();
+            reply(out, reply);
+            return !reply.startsWith("421");
+        } else if (n > 0 && (received.get() + refused.get() + 1) % n == 0) {
+            refused.incrementAndGet();
+            reply(out, "451 Requested action aborted: local error in processing");
+        } else {
+            receivedBytes.addAndGet(data.length());
+            lastMessage = data.toString();
+            received.incrementAndGet();
+            reply(out, "250 OK queued");
+        }
+        return true;
+    }
+
+    private static void reply(final Writer out, final String reply) throws IOException {
+        out.write(reply);
+        out.write("\r\n");
+        out.flush();
+    }
+
+    private static void pause(final long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for HtmlRenderUtils.
+ *
+ * @author vbiertho
+ */
+public class HtmlRenderUtilsTest {
+
+    @Test
+    public void testAppendXml() throws Exception {
+        StringBuilder sb = new StringBuilder("xml: ");
+        HtmlRenderUtils.appendXml(sb, "<a href=\"x\">b & c</a>");
+
+        assertEquals("xml: &lt;a href=&quot;x&quot;&gt;b &amp; c&lt;/a&gt;", sb.toString());
+        assertEquals("plain", MailSender.getXml("plain"));
+    }
+
+    @Test
+    public void testStackTraceWithCause() throws Exception {
+        Exception exception = new IllegalStateException("outer <tag>", new IllegalArgumentException("inner"));
+        String html = MailSender.getStackTrace(exception);
+
+        assertTrue(html.startsWith("java.lang.IllegalStateException: outer &lt;tag&gt;<br/>\tat "));
+        assertTrue(html.contains("<br/>Caused by: java.lang.IllegalArgumentException: inner<br/>"));
+        assertTrue(html.contains(" more<br/>"));
+        assertFalse(html.contains("\n"));
+    }
+
+    @Test
+    public void testCauseDepthCap() throws Exception {
+        Exception exception = new Exception("1", new Exception("2", new Exception("3", new Exception("4"))));
+        StringBuilder sb = new StringBuilder();
+        HtmlRenderUtils.appendStackTrace(sb, exception, 1);
+
+        assertTrue(sb.toString().contains("Caused by: java.lang.Exception: 2"));
+        assertFalse(sb.toString().contains("java.lang.Exception: 3"));
+        assertTrue(sb.toString().contains("... 2 more cause(s)<br/>"));
+    }
+
+    @Test
+    public void testRepeatedAndFoldedFrames() throws Exception {
+        Exception exception = new Exception("recursion");
+        StackTraceElement a = new StackTraceElement("com.acme.A", "a", "A.java", 1);
+        StackTraceElement b = new StackTraceElement("com.acme.B", "b", "B.java", 2);
+        StackTraceElement proxy = new StackTraceElement("sun.reflect.Proxy", "invoke", null, -1);
+        exception.setStackTrace(new StackTraceElement[] { a, b, a, b, a, b, a, b, proxy, proxy, proxy });
+        StringBuilder sb = new StringBuilder();
+        HtmlRenderUtils.appendStackTrace(sb, exception, Integer.MAX_VALUE, "sun.reflect.");
+
+        assertEquals("java.lang.Exception: recursion<br/>\tat com.acme.A.a(A.java:1)<br/>\tat com.acme.B.b(B.java:2)<br/>"
+                + "\t... 2 frame(s) repeated 3 time(s)<br/>\t... 3 folded frames<br/>", sb.toString());
+    }
+}
@@ -0,0 +1,120 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+/**
+ * Test class for InternetAddressCache.
+ *
+ * @author vbiertho
+ */
+public class InternetAddressCacheTest {
+
+    @Test
+    public void testParsedOnce() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(10);
+        InternetAddress first = cache.parse("John <john@itlive.be>");
+        InternetAddress second = cache.parse("John <john@itlive.be>");
+
+        assertEquals(1, cache.size());
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        // each call gets its own copy
+        assertNotSame(first, second);
+        assertEquals(first, second);
+        first.setPersonal("Jane");
+        assertEquals("John", cache.parse("John <john@itlive.be>").getPersonal());
+    }
+
+    @Test
+    public void testInvalidAddressNotCached() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(10);
+        try {
+            cache.parse("john@");
+            fail("The address has no domain");
+        } catch (final AddressException e) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testParseAllSkipsBlank() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(10);
+        InternetAddress[] addresses = cache.parseAll("john@itlive.be", "", " ", null, "jane@itlive.be");
+
+        assertArrayEquals(new InternetAddress[] {new InternetAddress("john@itlive.be"), new InternetAddress("jane@itlive.be") }, addresses);
+    }
+
+    @Test
+    public void testValidateReportsEveryInvalidAddress() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(10);
+        Map<String, AddressException> invalid = cache.validate(Arrays.asList("john@itlive.be", "john@", "", "jane@@itlive.be", "john@",
+                null));
+
+        assertEquals(new ArrayList<>(Arrays.asList("john@", "jane@@itlive.be")), new ArrayList<>(invalid.keySet()));
+        assertEquals(1, cache.size());
+        assertTrue(cache.validate(Arrays.asList("john@itlive.be", " ")).isEmpty());
+        assertEquals(1L, cache.getHitCount());
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(2);
+        cache.parse("a@itlive.be");
+        cache.parse("a@itlive.be");
+        cache.parse("b@itlive.be");
+        cache.parse("c@itlive.be");
+
+        assertEquals(2, cache.size());
+        // used since it was cached, a got a second chance: b or c was evicted
+        cache.parse("a@itlive.be");
+        assertEquals(2L, cache.getHitCount());
+        assertEquals(3L, cache.getMissCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrentParsing() throws Exception {
+        InternetAddressCache cache = new InternetAddressCache(50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        String address = "user" + (i % 200) + "@itlive.be";
+                        assertEquals(address, cache.parse(address).getAddress());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(cache.size() <= 50);
+        assertEquals(16000L, cache.getHitCount() + cache.getMissCount());
+    }
+}
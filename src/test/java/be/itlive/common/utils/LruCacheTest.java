@@ -0,0 +1,56 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Test class for LruCache.
+ *
+ * @author vbiertho
+ */
+public class LruCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(3L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictsByWeight() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        cache.put("a", "12345");
+        cache.put("b", "1234");
+        cache.put("c", "123");
+
+        assertNull(cache.get("a"));
+        assertEquals(7L, cache.getWeight());
+        assertFalse(cache.put("d", "12345678901"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() throws Exception {
+        LruCache<String, String> cache = new LruCache<>(10, String::length);
+        cache.put("a", "12345");
+        cache.put("a", "12");
+
+        assertEquals(2L, cache.getWeight());
+        assertEquals("12", cache.remove("a"));
+        assertEquals(0L, cache.getWeight());
+        assertNull(cache.remove("a"));
+    }
+}
@@ -0,0 +1,51 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Test class for MailAttachmentCache.
+ *
+ * @author vbiertho
+ */
+public class MailAttachmentCacheTest {
+
+    @Test
+    public void testCachesEncodedPart() throws Exception {
+        MailAttachmentCache cache = new MailAttachmentCache(1024);
+        MailAttachment attachment = new MailAttachment("policy.txt", "text/plain", "policy".getBytes(StandardCharsets.UTF_8));
+        cache.getBodyPart(attachment);
+        cache.getBodyPart(new MailAttachment("policy.txt", "text/plain", "policy".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(1, cache.size());
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(0L, cache.getBypassCount());
+    }
+
+    @Test
+    public void testBypassesLargeAttachment() throws Exception {
+        MailAttachmentCache cache = new MailAttachmentCache(1024);
+        // 800 bytes are 1068 in base64
+        cache.getBodyPart(new MailAttachment("large.bin", "application/octet-stream", new byte[800]));
+
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getMissCount());
+        assertEquals(1L, cache.getBypassCount());
+    }
+
+    @Test
+    public void testBypassesUnknownSize() throws Exception {
+        MailAttachmentCache cache = new MailAttachmentCache(1024);
+        MailAttachment attachment = new MailAttachment("export.csv", "text/csv", () -> new ByteArrayInputStream(new byte[10]));
+        cache.getBodyPart(attachment);
+
+        assertEquals(-1L, attachment.getSize());
+        assertEquals(0, cache.size());
+        assertEquals(1L, cache.getBypassCount());
+    }
+}
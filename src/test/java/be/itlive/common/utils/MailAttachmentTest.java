@@ -0,0 +1,168 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for MailAttachment and MappedFileDataSource.
+ *
+ * @author vbiertho
+ */
+public class MailAttachmentTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("attachment", ".pdf");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int n;
+            while ((n = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        byte[] content = "a;b;c\n".getBytes(StandardCharsets.UTF_8);
+        MailAttachment attachment = new MailAttachment("export.csv", "text/csv", content);
+
+        assertEquals(6L, attachment.getSize());
+        assertArrayEquals(content, read(attachment.getDataSource().getInputStream()));
+        assertEquals("export.csv", attachment.getDataSource().getName());
+    }
+
+    @Test
+    public void testFileStreamedFromMapping() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Files.write(file, content);
+        MailAttachment attachment = new MailAttachment(null, "application/pdf", file);
+
+        assertEquals(10000L, attachment.getSize());
+        assertEquals(file.getFileName().toString(), attachment.getFileName());
+        MappedFileDataSource source = (MappedFileDataSource) attachment.getDataSource();
+        assertEquals(file, source.getPath());
+        assertEquals("application/pdf", source.getContentType());
+        // read twice, each stream has its own position
+        assertArrayEquals(content, read(source.getInputStream()));
+        assertArrayEquals(content, read(source.getInputStream()));
+
+        MimeBodyPart part = attachment.toBodyPart();
+        assertEquals("base64", part.getEncoding());
+        assertArrayEquals(content, read(part.getInputStream()));
+    }
+
+    @Test
+    public void testMappedStreamSkipAndAvailable() throws Exception {
+        Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+        try (InputStream in = new MappedFileDataSource(file, "digits.txt", "text/plain").getInputStream()) {
+            assertEquals(10, in.available());
+            assertEquals('0', in.read());
+            assertEquals(4L, in.skip(4L));
+            assertEquals('5', in.read());
+            assertEquals(4L, in.skip(100L));
+            assertEquals(0, in.available());
+            assertEquals(-1, in.read());
+            assertEquals(-1, in.read(new byte[4], 0, 4));
+        }
+    }
+
+    @Test
+    public void testEmptyAndMissingFile() throws Exception {
+        MailAttachment attachment = new MailAttachment("empty.pdf", "application/pdf", file);
+        assertEquals(0L, attachment.getSize());
+        assertEquals(0, read(attachment.getDataSource().getInputStream()).length);
+
+        Files.delete(file);
+        assertEquals(-1L, attachment.getSize());
+    }
+
+    @Test
+    public void testSupplierCalledForEachRead() throws Exception {
+        byte[] content = "a;b;c\n".getBytes(StandardCharsets.UTF_8);
+        AtomicInteger calls = new AtomicInteger();
+        MailAttachment attachment = new MailAttachment("export.csv", "text/csv", () -> {
+            calls.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        });
+
+        assertEquals(-1L, attachment.getSize());
+        assertEquals(0, calls.get());
+        assertEquals("export.csv", attachment.getDataSource().getName());
+        assertEquals("text/csv", attachment.getDataSource().getContentType());
+        assertArrayEquals(content, read(attachment.getDataSource().getInputStream()));
+        MimeBodyPart part = attachment.toBodyPart();
+        assertArrayEquals(content, read(part.getInputStream()));
+        assertEquals(2, calls.get());
+        assertEquals("export.csv", part.getFileName());
+    }
+
+    private static Object roundTrip(final Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return in.readObject();
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        byte[] content = "a;b;c\n".getBytes(StandardCharsets.UTF_8);
+        MailAttachment bytes = (MailAttachment) roundTrip(new MailAttachment("export.csv", "text/csv", content));
+        assertArrayEquals(content, read(bytes.getDataSource().getInputStream()));
+        Files.write(file, content);
+        MailAttachment mapped = (MailAttachment) roundTrip(new MailAttachment(null, "text/csv", file));
+        assertArrayEquals(content, read(mapped.getDataSource().getInputStream()));
+
+        try {
+            roundTrip(new MailAttachment("export.csv", "text/csv", () -> new ByteArrayInputStream(content)));
+            fail("Expected a NotSerializableException");
+        } catch (final NotSerializableException e) {
+            // not read back from a file named export.csv
+        }
+    }
+
+    @Test
+    public void testZippedSizeUnknown() throws Exception {
+        MailAttachment zipped = new MailAttachment("export.csv", "text/csv", new byte[100]).zipped(1);
+
+        assertEquals(-1L, zipped.getSize());
+        assertEquals("export.csv.zip", zipped.getFileName());
+    }
+}
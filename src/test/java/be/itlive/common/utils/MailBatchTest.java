@@ -0,0 +1,170 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.itlive.common.enums.MailSendPhase;
+import be.itlive.common.enums.RelaySelectionStrategy;
+
+/**
+ * Test class for MailBatch, MailBatchReport and MailSendResult, sending to a {@link FakeSmtpServer}.
+ *
+ * @author vbiertho
+ */
+public class MailBatchTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private MailSender newMail(final String recipient) {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", recipient);
+        mail.setSubject("Report for " + recipient);
+        mail.getMessage().append("Hello");
+        return mail;
+    }
+
+    @Test
+    public void testSendsOverOneConnection() throws Exception {
+        List<MailSender> mails = Arrays.asList(newMail("john@itlive.be"), newMail("jane@itlive.be"), newMail("jack@itlive.be"));
+        MailBatchReport report = new MailBatch().sendAll(mails);
+
+        assertTrue(report.isSuccess());
+        assertEquals(3, report.getSuccessCount());
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(1, server.getConnectionCount());
+        for (int i = 0; i < mails.size(); i++) {
+            assertSame(mails.get(i), report.getResults().get(i).getMail());
+            assertNull(report.getResults().get(i).getError());
+        }
+    }
+
+    @Test
+    public void testPartialFailure() throws Exception {
+        server.refuseRecipient("jane@itlive.be");
+        MailSender refused = newMail("jane@itlive.be");
+        MailSender noRecipient = new MailSender(session, "noreply@itlive.be", "");
+        noRecipient.setSubject("Nobody");
+        MailBatchReport report = new MailBatch().sendAll(Arrays.asList(newMail("john@itlive.be"), refused, noRecipient,
+                newMail("jack@itlive.be")));
+
+        assertFalse(report.isSuccess());
+        assertEquals(4, report.getResults().size());
+        assertEquals(2, report.getSuccessCount());
+        assertEquals(2, report.getFailures().size());
+        MailSendResult failure = report.getFailures().get(0);
+        assertSame(refused, failure.getMail());
+        assertFalse(failure.isSuccess());
+        assertTrue(failure.getError() instanceof SendFailedException);
+        assertTrue(failure.toString().contains("subject=Report for jane@itlive.be, success=false"));
+        assertEquals("No recipient addresses", report.getFailures().get(1).getError().getMessage());
+        assertEquals("MailBatchReport [total=4, failures=2]", report.toString());
+        // the refused recipient does not break the connection
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testReconnectsAfterBrokenConnection() throws Exception {
+        MailTransportPool pool = new MailTransportPool();
+        try {
+            pool.send(session, newMail("john@itlive.be").createMessage());
+            // the pooled connection is reused without validation, then fails
+            server.dropConnections();
+            Thread.sleep(50L);
+            MailBatchReport report = new MailBatch(pool).sendAll(Arrays.asList(newMail("jane@itlive.be"), newMail("jack@itlive.be")));
+
+            // jane is sent again on a new connection
+            assertTrue(report.isSuccess());
+        } finally {
+            pool.close();
+        }
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testReconnectsAfterServiceClosing() throws Exception {
+        server.setDataReply("421 Service closing", 1);
+        try (MailTransportPool pool = new MailTransportPool()) {
+            MailBatchReport report = new MailBatch(pool).sendAll(Arrays.asList(newMail("john@itlive.be"), newMail("jane@itlive.be"),
+                    newMail("jack@itlive.be")));
+
+            assertTrue(report.isSuccess());
+            assertEquals(1, pool.getIdleCount(session));
+        }
+        assertEquals(1, server.getRefusedCount());
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionDroppedAfterFailedData() throws Exception {
+        server.setDataReply("554 Message rejected", 1);
+        MailBatchReport report = new MailBatch().sendAll(Arrays.asList(newMail("john@itlive.be"), newMail("jane@itlive.be")));
+
+        // not sent again, the next mail goes on a new connection
+        assertEquals(1, report.getSuccessCount());
+        assertEquals(1, server.getRefusedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testKeepsMetricsAndDeduplicator() throws Exception {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        MailDeduplicator deduplicator = new MailDeduplicator(60000L, 100);
+        List<MailSender> mails = Arrays.asList(newMail("john@itlive.be"), newMail("john@itlive.be"), newMail("jane@itlive.be"));
+        for (MailSender mail : mails) {
+            mail.setMetrics(metrics);
+            mail.setDeduplicator(deduplicator);
+        }
+        MailBatchReport report = new MailBatch().sendAll(mails);
+
+        assertTrue(report.isSuccess());
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(3L, metrics.getCount(MailSendPhase.BUILD));
+        assertEquals(2L, metrics.getCount(MailSendPhase.ENCODE));
+        assertEquals(1L, metrics.getCount(MailSendPhase.CONNECT));
+        assertEquals(2L, metrics.getCount(MailSendPhase.TRANSFER));
+        assertEquals(2L, metrics.getCount(MailSendPhase.TOTAL));
+        assertEquals(2L, metrics.getSentCount());
+        assertTrue(metrics.getSentBytes() > 0L);
+    }
+
+    @Test
+    public void testRelayGroupMailSentAlone() throws Exception {
+        MailRelayGroup relayGroup = new MailRelayGroup(RelaySelectionStrategy.WEIGHTED_ROUND_ROBIN, 1000L, 1, 1);
+        relayGroup.addRelay(session, 1);
+        MailSender relayed = newMail("jane@itlive.be");
+        relayed.setRelayGroup(relayGroup);
+        MailBatchReport report = new MailBatch().sendAll(Arrays.asList(newMail("john@itlive.be"), relayed, newMail("jack@itlive.be")));
+
+        assertTrue(report.isSuccess());
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+}
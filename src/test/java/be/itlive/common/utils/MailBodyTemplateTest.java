@@ -0,0 +1,112 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test class for MailBodyTemplate.
+ *
+ * @author vbiertho
+ */
+public class MailBodyTemplateTest {
+
+    @Test
+    public void testRenderMap() throws Exception {
+        MailBodyTemplate template = MailBodyTemplate.compile("<p>Dear ${name},</p><p>${ amount } EUR</p>");
+        Map<String, Object> model = new HashMap<>();
+        model.put("name", "John");
+        model.put("amount", 12);
+
+        assertEquals(2, template.getPlaceholderCount());
+        assertEquals("<p>Dear John,</p><p>12 EUR</p>", template.render(model));
+    }
+
+    @Test
+    public void testRenderMapNestedPath() throws Exception {
+        Map<String, Object> model = new HashMap<>();
+        model.put("person", new Person("Jane", new Person("John", null)));
+
+        assertEquals("Jane, manager John", MailBodyTemplate.compile("${person.name}, manager ${person.manager.name}").render(model));
+    }
+
+    @Test
+    public void testRenderBean() throws Exception {
+        StringBuilder out = new StringBuilder("Hello ");
+
+        MailBodyTemplate.compile("${name}${manager.name}!").render(out, new Person("Jane", null));
+
+        assertEquals("Hello Jane!", out.toString());
+    }
+
+    @Test
+    public void testValuesEscapedUnlessRaw() throws Exception {
+        MailBodyTemplate template = MailBodyTemplate.compile("<p>${name}</p>");
+        Map<String, Object> model = new HashMap<>();
+        model.put("name", "<b>Tom & \"Jerry\"</b>");
+
+        assertEquals("<p>&lt;b&gt;Tom &amp; &quot;Jerry&quot;&lt;/b&gt;</p>", template.render(model));
+        assertEquals("<p><b>Tom & \"Jerry\"</b></p>", template.renderRaw(model));
+        StringBuilder out = new StringBuilder();
+        template.renderRaw(out, new Person("<i>Jane</i>", null));
+        assertEquals("<p><i>Jane</i></p>", out.toString());
+        assertEquals("<p>&lt;i&gt;Jane&lt;/i&gt;</p>", template.render(new Person("<i>Jane</i>", null)));
+    }
+
+    @Test
+    public void testRenderWithoutPlaceholder() throws Exception {
+        assertEquals("$ 10 {}", MailBodyTemplate.compile("$ 10 {}").render(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void testCompileInvalid() throws Exception {
+        try {
+            MailBodyTemplate.compile("Dear ${name");
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+        }
+        try {
+            MailBodyTemplate.compile("Dear ${name + 1}");
+            fail("Expected an IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        MailBodyTemplate template = MailBodyTemplate.register("test", "${a}");
+
+        assertSame(template, MailBodyTemplate.get("test"));
+        MailBodyTemplate.clearCache();
+        assertNull(MailBodyTemplate.get("test"));
+    }
+
+    /**
+     * Bean used as model.
+     */
+    public static class Person {
+
+        private final String name;
+
+        private final Person manager;
+
+        public Person(final String name, final Person manager) {
+            this.name = name;
+            this.manager = manager;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Person getManager() {
+            return manager;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+import javax.mail.Session;
+
+import org.junit.Test;
+
+/**
+ * Test class for MailDeduplicator.
+ *
+ * @author vbiertho
+ */
+public class MailDeduplicatorTest {
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private final MailDeduplicator deduplicator = new MailDeduplicator(60000L, 100);
+
+    private MailSender newMail(final String subject) {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be");
+        mail.setSubject(subject);
+        mail.getMessage().append("Hello");
+        byte[] report = "report content".getBytes(StandardCharsets.UTF_8);
+        mail.setMailAttachments(Arrays.asList(new MailAttachment("report.txt", "text/plain", report),
+                new MailAttachment("report.csv", "text/csv", report).zipped(Deflater.BEST_SPEED)));
+        return mail;
+    }
+
+    @Test
+    public void testDigestIsStableAcrossBuilds() throws Exception {
+        String first = deduplicator.digest(newMail("Report").createMessage());
+        Thread.sleep(1100L);
+        String second = deduplicator.digest(newMail("Report").createMessage());
+
+        assertEquals(first, second);
+        assertEquals(64, first.length());
+    }
+
+    @Test
+    public void testDigestDependsOnContent() throws Exception {
+        MailSender other = newMail("Report");
+        other.getMessage().append(" again");
+
+        String digest = deduplicator.digest(newMail("Report").createMessage());
+
+        assertNotEquals(digest, deduplicator.digest(newMail("Other report").createMessage()));
+        assertNotEquals(digest, deduplicator.digest(other.createMessage()));
+    }
+
+    @Test
+    public void testAcquireSentFailed() {
+        assertTrue(deduplicator.tryAcquire("a"));
+        assertFalse(deduplicator.tryAcquire("a"));
+        deduplicator.failed("a");
+        assertTrue(deduplicator.tryAcquire("a"));
+        deduplicator.sent("a");
+        deduplicator.failed("a");
+
+        assertFalse(deduplicator.tryAcquire("a"));
+        assertEquals(2L, deduplicator.getHitCount());
+        assertEquals(2L, deduplicator.getMissCount());
+        assertEquals(1, deduplicator.size());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        MailDeduplicator small = new MailDeduplicator(60000L, 2);
+        for (String digest : new String[] { "a", "b", "c" }) {
+            small.tryAcquire(digest);
+            small.sent(digest);
+        }
+
+        assertEquals(2, small.size());
+        assertTrue(small.tryAcquire("a"));
+        assertFalse(small.tryAcquire("c"));
+    }
+
+    @Test
+    public void testReloadFromFile() throws Exception {
+        Path file = Files.createTempFile("mail-dedup", ".log");
+        try {
+            MailDeduplicator persisted = new MailDeduplicator(60000L, 100, file);
+            persisted.tryAcquire("a");
+            persisted.sent("a");
+            persisted.tryAcquire("b");
+            persisted.close();
+
+            MailDeduplicator reloaded = new MailDeduplicator(60000L, 100, file);
+            try {
+                assertFalse(reloaded.tryAcquire("a"));
+                assertTrue(reloaded.tryAcquire("b"));
+            } finally {
+                reloaded.close();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
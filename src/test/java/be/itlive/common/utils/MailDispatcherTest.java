@@ -0,0 +1,152 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.junit.Test;
+
+/**
+ * Test class for MailDispatcher.
+ *
+ * @author vbiertho
+ */
+public class MailDispatcherTest {
+
+    @Test
+    public void testConcurrencyCappedPerHost() throws Exception {
+        Session relayA = session("relay-a");
+        Session relayB = session("relay-b");
+        AtomicInteger inFlightA = new AtomicInteger();
+        AtomicInteger maxA = new AtomicInteger();
+        AtomicInteger maxB = new AtomicInteger();
+        AtomicInteger inFlightB = new AtomicInteger();
+        List<CompletableFuture<MailSender>> futures = new ArrayList<>();
+
+        try (MailDispatcher dispatcher = new MailDispatcher(3, 16)) {
+            for (int i = 0; i < 40; i++) {
+                futures.add(dispatcher.dispatch(new StubMail(relayA, inFlightA, maxA, null)));
+                futures.add(dispatcher.dispatch(new StubMail(relayB, inFlightB, maxB, null)));
+            }
+            for (CompletableFuture<MailSender> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(0, dispatcher.getInFlight(relayA));
+        }
+        assertTrue(maxA.get() <= 3);
+        assertTrue(maxB.get() <= 3);
+    }
+
+    @Test
+    public void testSlowHostDoesNotHoldTheThreads() throws Exception {
+        Session slow = session("relay-slow");
+        List<CompletableFuture<MailSender>> futures = new ArrayList<>();
+
+        try (MailDispatcher dispatcher = new MailDispatcher(1, 2)) {
+            for (int i = 0; i < 20; i++) {
+                futures.add(dispatcher.dispatch(new StubMail(slow, new AtomicInteger(), new AtomicInteger(), null, 50L)));
+            }
+            long start = System.nanoTime();
+            dispatcher.dispatch(new StubMail(session("relay-fast"), new AtomicInteger(), new AtomicInteger(), null, 5L))
+                    .get(10, TimeUnit.SECONDS);
+            // the queued mails of the slow server wait without a thread, the second thread sends the other mail at once
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500L));
+            for (CompletableFuture<MailSender> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void testFailureCompletesExceptionally() throws Exception {
+        try (MailDispatcher dispatcher = new MailDispatcher(1)) {
+            dispatcher.dispatch(new StubMail(session("relay"), new AtomicInteger(), new AtomicInteger(), new MessagingException("refused")))
+                    .get(5, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+    }
+
+    @Test
+    public void testErrorDoesNotLoseTheSlot() throws Exception {
+        Session relay = session("relay");
+        try (MailDispatcher dispatcher = new MailDispatcher(1, 2)) {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    dispatcher.dispatch(new MailSender(relay, "from@itlive.be", "to@itlive.be") {
+                        @Override
+                        public void sendMail() {
+                            throw new NoClassDefFoundError("com/sun/mail/smtp/SMTPTransport");
+                        }
+                    }).get(5, TimeUnit.SECONDS);
+                    fail("Expected an ExecutionException");
+                } catch (final ExecutionException e) {
+                    assertTrue(e.getCause() instanceof NoClassDefFoundError);
+                }
+            }
+            // the slot of the server was given back
+            dispatcher.dispatch(new StubMail(relay, new AtomicInteger(), new AtomicInteger(), null)).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Session session(final String host) {
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", host);
+        return Session.getInstance(properties);
+    }
+
+    /**
+     * MailSender which does not connect to any server and tracks the concurrent sendings to its host.
+     */
+    private static final class StubMail extends MailSender {
+
+        private final AtomicInteger inFlight;
+
+        private final AtomicInteger max;
+
+        private final MessagingException error;
+
+        private final long delay;
+
+        private StubMail(final Session session, final AtomicInteger inFlight, final AtomicInteger max, final MessagingException error) {
+            this(session, inFlight, max, error, 5L);
+        }
+
+        private StubMail(final Session session, final AtomicInteger inFlight, final AtomicInteger max, final MessagingException error,
+                final long delay) {
+            super(session, "from@itlive.be", "to@itlive.be");
+            this.inFlight = inFlight;
+            this.max = max;
+            this.error = error;
+            this.delay = delay;
+        }
+
+        @Override
+        public void sendMail() throws MessagingException {
+            int current = inFlight.incrementAndGet();
+            max.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(delay);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the building and encoding of a mail with one attachment, given as a {@link MailAttachment} or as a buffer of
+ * {@link MailSender#setBuffers(java.util.Map)}, without sending it.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark</code>, or <code>-Djmh.includes=MailEncodingBenchmark</code> to only run this one.
+ * </p>
+ *
+ * @author vbiertho
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailEncodingBenchmark {
+
+    /**
+     * Size of the attachment, in bytes.
+     */
+    @Param({ "1024", "65536", "1048576" })
+    private int size;
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private byte[] binary;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42L);
+        binary = new byte[size];
+        random.nextBytes(binary);
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("line ").append(random.nextInt()).append(";some;csv;values\n");
+        }
+        sb.setLength(size);
+        text = sb.toString();
+    }
+
+    private MailSender newMail() {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be");
+        mail.setSubject("Benchmark");
+        mail.getMessage().append("Hello");
+        return mail;
+    }
+
+    private static long encode(final MailSender mail) throws MessagingException, IOException {
+        MimeMessage msg = mail.createMessage();
+        msg.saveChanges();
+        CountingOutputStream out = new CountingOutputStream();
+        msg.writeTo(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long binaryAttachment() throws MessagingException, IOException {
+        MailSender mail = newMail();
+        mail.setMailAttachments(Collections.singletonList(new MailAttachment("data.bin", "application/octet-stream", binary)));
+        return encode(mail);
+    }
+
+    @Benchmark
+    public long textAttachment() throws MessagingException, IOException {
+        MailSender mail = newMail();
+        mail.setMailAttachments(Collections.singletonList(new MailAttachment("data.csv", "text/csv", text.getBytes(StandardCharsets.UTF_8))));
+        return encode(mail);
+    }
+
+    @Benchmark
+    public long textBuffer() throws MessagingException, IOException {
+        MailSender mail = newMail();
+        mail.setBuffers(Collections.singletonMap("data.csv", new StringBuilder(text)));
+        return encode(mail);
+    }
+
+    @Benchmark
+    public long textFileAppendable() throws MessagingException, IOException {
+        MailSender mail = newMail();
+        mail.getFileAppendable("data.csv").append(text);
+        try {
+            return encode(mail);
+        } finally {
+            mail.releaseFileBuffers();
+        }
+    }
+
+    /**
+     * Counts the encoded bytes, so the encoding is not optimized away.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
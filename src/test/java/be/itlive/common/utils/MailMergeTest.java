@@ -0,0 +1,144 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.itlive.common.enums.MimeType;
+
+/**
+ * Test class for MailMerge and PreencodedBodyPart.
+ *
+ * @author vbiertho
+ */
+public class MailMergeTest {
+
+    private static final String HTML = MimeType.TEXT_HTML.getMimeType() + "; charset=\"UTF-8\"";
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private MailMerge newMerge() throws Exception {
+        MailMerge merge = new MailMerge(session, "hr@itlive.be", HTML);
+        merge.setSubjectTemplate(MailBodyTemplate.compile("Your payslip, ${name}"));
+        merge.setBodyTemplate(MailBodyTemplate.compile("<p>Dear ${name},</p>"));
+        merge.addSharedHtml("<p>Best regards</p>");
+        merge.addAttachment(new MailAttachment("policy.pdf", "application/pdf", new byte[] {1, 2, 3 }));
+        return merge;
+    }
+
+    private static byte[] write(final MimeBodyPart part) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRenderedPerRecipient() throws Exception {
+        MailMerge merge = newMerge();
+        MailSender john = merge.newMail("john@itlive.be", Collections.singletonMap("name", "John"));
+        MailSender jane = merge.newMail("jane@itlive.be", Collections.singletonMap("name", "Jane"));
+
+        MimeMessage message = john.createMessage();
+        assertEquals("Your payslip, John", message.getSubject());
+        assertEquals("Your payslip, Jane", jane.createMessage().getSubject());
+        MimeMultipart multipart = (MimeMultipart) message.getContent();
+        // the body with the shared HTML, then the attachment
+        assertEquals(2, multipart.getCount());
+        MimeMultipart body = (MimeMultipart) multipart.getBodyPart(0).getContent();
+        assertEquals(2, body.getCount());
+        assertEquals("<p>Dear John,</p>", body.getBodyPart(0).getContent());
+        assertEquals(Part.INLINE, body.getBodyPart(0).getDisposition());
+        assertEquals("<p>Best regards</p>", body.getBodyPart(1).getContent());
+        assertEquals(Part.INLINE, body.getBodyPart(1).getDisposition());
+        assertEquals("policy.pdf", multipart.getBodyPart(1).getFileName());
+
+        // built again, the shared HTML is not added twice
+        body = (MimeMultipart) ((MimeMultipart) john.createMessage().getContent()).getBodyPart(0).getContent();
+        assertEquals(2, body.getCount());
+        assertEquals("<p>Dear John,</p>", body.getBodyPart(0).getContent());
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        Map<String, Object> models = new LinkedHashMap<>();
+        models.put("john@itlive.be", Collections.singletonMap("name", "John"));
+        models.put("jane@itlive.be", Collections.singletonMap("name", "Jane"));
+        MailBatchReport report = newMerge().send(models, null);
+
+        assertTrue(report.isSuccess());
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(1, server.getConnectionCount());
+        assertTrue(server.getLastMessage().contains("Dear Jane"));
+    }
+
+    @Test
+    public void testValuesEscapedInHtmlBodyOnly() throws Exception {
+        MailSender html = newMerge().newMail("john@itlive.be", Collections.singletonMap("name", "Tom & <Jerry>"));
+        MimeMessage message = html.createMessage();
+        assertEquals("Your payslip, Tom & <Jerry>", message.getSubject());
+        MimeMultipart body = (MimeMultipart) ((MimeMultipart) message.getContent()).getBodyPart(0).getContent();
+        assertEquals("<p>Dear Tom &amp; &lt;Jerry&gt;,</p>", body.getBodyPart(0).getContent());
+
+        MailMerge text = new MailMerge(session, "hr@itlive.be", null);
+        text.setBodyTemplate(MailBodyTemplate.compile("Dear ${name},"));
+        message = text.newMail("john@itlive.be", Collections.singletonMap("name", "Tom & <Jerry>")).createMessage();
+        assertEquals("Dear Tom & <Jerry>,", ((MimeMultipart) message.getContent()).getBodyPart(0).getContent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSharedHtmlNeedsHtmlBody() throws Exception {
+        new MailMerge(session, "hr@itlive.be", null).addSharedHtml("<p>Best regards</p>");
+    }
+
+    @Test
+    public void testPreencodedPartWrittenAsNormalPart() throws Exception {
+        byte[] binary = new byte[5000];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) (i * 31);
+        }
+        MailAttachment[] attachments = {new MailAttachment("policy.pdf", "application/pdf", binary),
+                new MailAttachment("export.csv", "text/csv; charset=UTF-8", "a;b;c\n1;2;3\n".getBytes(StandardCharsets.UTF_8)) };
+        for (MailAttachment attachment : attachments) {
+            // the headers of a normal part are computed when its message is saved
+            MimeBodyPart normal = attachment.toBodyPart();
+            MimeMessage message = new MimeMessage(session);
+            message.setContent(new MimeMultipart(normal));
+            message.saveChanges();
+
+            PreencodedBodyPart preencoded = PreencodedBodyPart.encode(attachment.toBodyPart());
+            byte[] expected = write(normal);
+            assertEquals(expected.length, preencoded.getEncodedSize());
+            assertArrayEquals(expected, write(preencoded.toBodyPart()));
+            assertArrayEquals(expected, write(PreencodedBodyPart.wrap(expected).toBodyPart()));
+        }
+    }
+}
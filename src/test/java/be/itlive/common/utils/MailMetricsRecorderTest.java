@@ -0,0 +1,75 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Test class for MailMetricsRecorder.
+ *
+ * @author vbiertho
+ */
+public class MailMetricsRecorderTest {
+
+    @Test
+    public void testCounters() {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        metrics.recordSent(1000L);
+        metrics.recordSent(-1L);
+        metrics.recordFailure(MailSendPhase.CONNECT, new MessagingException("down"));
+        metrics.recordFailure(MailSendPhase.TRANSFER, new MessagingException("down"));
+        metrics.recordFailure(MailSendPhase.TRANSFER, new SendFailedException("refused"));
+        metrics.recordQueueDepth(7);
+
+        assertEquals(2L, metrics.getSentCount());
+        assertEquals(1000L, metrics.getSentBytes());
+        assertEquals(3L, metrics.getFailureCount());
+        assertEquals(Long.valueOf(2L), metrics.getFailures().get("javax.mail.MessagingException"));
+        assertEquals(1L, metrics.getFailureCount(MailSendPhase.CONNECT));
+        assertEquals(2L, metrics.getFailureCount(MailSendPhase.TRANSFER));
+        assertEquals(Long.valueOf(0L), metrics.getPhaseFailures().get("BUILD"));
+        assertEquals(7, metrics.getQueueDepth());
+
+        metrics.reset();
+        assertEquals(0L, metrics.getSentCount());
+        assertTrue(metrics.getFailures().isEmpty());
+        assertEquals(0L, metrics.getFailureCount(MailSendPhase.TRANSFER));
+    }
+
+    @Test
+    public void testHistogram() {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        for (int i = 0; i < 99; i++) {
+            metrics.recordPhase(MailSendPhase.TRANSFER, 3000000L);
+        }
+        metrics.recordPhase(MailSendPhase.TRANSFER, 900000000L);
+
+        assertEquals(100L, metrics.getCount(MailSendPhase.TRANSFER));
+        assertEquals(0L, metrics.getCount(MailSendPhase.BUILD));
+        assertEquals(11.97d, metrics.getMeanMillis().get("TRANSFER"), 0.001d);
+        // 3ms falls in the bucket up to 2^12 µs, 900ms in the one up to 2^20 µs
+        assertEquals(4.096d, metrics.getPercentile99Millis().get("TRANSFER"), 0.001d);
+        assertEquals(1048.576d, metrics.percentileMillis("TRANSFER", 100d), 0.001d);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        ObjectName name = metrics.register("test");
+        try {
+            metrics.recordSent(10L);
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SentCount"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+}
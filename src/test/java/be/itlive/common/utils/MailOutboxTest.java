@@ -0,0 +1,245 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for MailOutbox, sending to a {@link FakeSmtpServer}.
+ *
+ * @author vbiertho
+ */
+public class MailOutboxTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+        directory = Files.createTempDirectory("outbox");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private MailSender newMail(final String subject) {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be");
+        mail.setSubject(subject);
+        mail.getMessage().append("Hello");
+        return mail;
+    }
+
+    private MailOutbox newOutbox(final int segmentSize, final int maxAttempts) throws IOException {
+        return new MailOutbox(directory, session, null, segmentSize, 1, maxAttempts);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out");
+            }
+            Thread.sleep(20L);
+        }
+    }
+
+    @Test
+    public void testEnqueueAndDeliver() throws Exception {
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 3)) {
+            long id = outbox.enqueue(newMail("Report"));
+            await(() -> !outbox.isPending(id));
+        }
+
+        assertEquals(1, server.getReceivedCount());
+        assertTrue(server.getLastMessage().contains("Subject: Report"));
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        server.setFailEvery(1);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 100)) {
+            outbox.enqueue(newMail("First"));
+            outbox.enqueue(newMail("Second"));
+            await(() -> server.getRefusedCount() >= 2);
+        }
+
+        server.setFailEvery(0);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 100)) {
+            await(() -> outbox.getPendingCount() == 0);
+        }
+        assertEquals(2, server.getReceivedCount());
+    }
+
+    @Test
+    public void testCorruptedTailSkipped() throws Exception {
+        server.setFailEvery(1);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 100)) {
+            outbox.enqueue(newMail("First"));
+            outbox.enqueue(newMail("Second"));
+            outbox.enqueue(newMail("Third"));
+        }
+        // flips a byte of the second mail, and truncates the third one
+        Path segment = segmentFiles().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            channel.read(header, 0L);
+            int second = 20 + header.getInt(4);
+            header.clear();
+            channel.read(header, second);
+            int third = second + 20 + header.getInt(4);
+            ByteBuffer mime = ByteBuffer.allocate(1);
+            channel.read(mime, second + 30L);
+            mime.put(0, (byte) (mime.get(0) ^ 0xFF));
+            mime.rewind();
+            channel.write(mime, second + 30L);
+            channel.truncate(third + 24L);
+        }
+
+        server.setFailEvery(0);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 100)) {
+            assertEquals(1, outbox.getPendingCount());
+            await(() -> outbox.getPendingCount() == 0);
+        }
+        assertEquals(1, server.getReceivedCount());
+        assertTrue(server.getLastMessage().contains("Subject: First"));
+    }
+
+    @Test
+    public void testCompactionDeletesDeliveredSegments() throws Exception {
+        // one mail per segment
+        try (MailOutbox outbox = newOutbox(64, 3)) {
+            for (int i = 0; i < 3; i++) {
+                outbox.enqueue(newMail("Mail " + i));
+            }
+            await(() -> outbox.getPendingCount() == 0);
+            assertEquals(3, segmentFiles().size());
+
+            assertEquals(2, outbox.compact());
+            assertEquals(1, segmentFiles().size());
+        }
+    }
+
+    @Test
+    public void testCompactionMovesPendingEntries() throws Exception {
+        try (MailOutbox outbox = newOutbox(16 * 1024, 100)) {
+            for (int i = 0; i < 4; i++) {
+                outbox.enqueue(newMail("Delivered " + i));
+            }
+            await(() -> outbox.getPendingCount() == 0);
+            server.setFailEvery(1);
+            outbox.enqueue(newMail("Pending"));
+            // seals the first segment
+            MailSender large = newMail("Large");
+            for (int i = 0; i < 200; i++) {
+                large.getMessage().append("\n").append(String.format("%069d", i));
+            }
+            outbox.enqueue(large);
+            assertEquals(2, segmentFiles().size());
+
+            assertEquals(1, outbox.compact());
+            assertEquals(1, segmentFiles().size());
+            assertEquals(2, outbox.getPendingCount());
+        }
+
+        // the moved mail is replayed once
+        try (MailOutbox outbox = newOutbox(16 * 1024, 100)) {
+            assertEquals(2, outbox.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testFailedSendRetried() throws Exception {
+        server.setFailEvery(1);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 3)) {
+            long id = outbox.enqueue(newMail("Retried"));
+            await(() -> server.getRefusedCount() == 1);
+            assertTrue(outbox.isPending(id));
+
+            server.setFailEvery(0);
+            await(() -> !outbox.isPending(id));
+        }
+        assertEquals(1, server.getReceivedCount());
+        assertFalse(Files.exists(directory.resolve(MailOutbox.DEAD_LETTER_DIRECTORY)));
+    }
+
+    @Test
+    public void testPermanentFailureNotRetried() throws Exception {
+        server.setDataReply("554 Message rejected");
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 3)) {
+            long id = outbox.enqueue(newMail("Rejected"));
+            await(() -> !outbox.isPending(id));
+
+            assertEquals(1, server.getRefusedCount());
+            assertTrue(Files.exists(outbox.getDeadLetterDirectory()));
+        }
+    }
+
+    @Test
+    public void testRetriedToUnsentRecipientsOnly() throws Exception {
+        server.refuseRecipient("gone@itlive.be");
+        MailSender mail = newMail("Partial");
+        mail.setCc("gone@itlive.be");
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 3)) {
+            long id = outbox.enqueue(mail);
+            // the refused recipient fails the first attempt, the second one leaves it out
+            await(() -> !outbox.isPending(id));
+        }
+        assertEquals(1, server.getReceivedCount());
+        assertFalse(Files.exists(directory.resolve(MailOutbox.DEAD_LETTER_DIRECTORY)));
+    }
+
+    @Test
+    public void testDeadLetterAfterMaxAttempts() throws Exception {
+        server.setFailEvery(1);
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 2)) {
+            long id = outbox.enqueue(newMail("Undeliverable"));
+            await(() -> !outbox.isPending(id));
+
+            assertEquals(2, server.getRefusedCount());
+            try (Stream<Path> files = Files.list(outbox.getDeadLetterDirectory())) {
+                List<Path> deadLetters = files.collect(Collectors.toList());
+                assertEquals(1, deadLetters.size());
+                assertTrue(new String(Files.readAllBytes(deadLetters.get(0)), "UTF-8").contains("Subject: Undeliverable"));
+            }
+        }
+
+        // not replayed
+        try (MailOutbox outbox = newOutbox(MailOutbox.DEFAULT_SEGMENT_SIZE, 2)) {
+            assertEquals(0, outbox.getPendingCount());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Test class for MailRecipientChunker and MailDeliveryReport, sending to a {@link FakeSmtpServer}.
+ *
+ * @author vbiertho
+ */
+public class MailRecipientChunkerTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    /**
+     * @return a newsletter to user0@itlive.be ... user(count - 1)@itlive.be, in Bcc.
+     */
+    private MailSender newNewsletter(final int count) {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "newsletter@itlive.be");
+        String[] bcc = new String[count];
+        for (int i = 0; i < count; i++) {
+            bcc[i] = "user" + i + "@itlive.be";
+        }
+        mail.setBcc(bcc);
+        mail.setSubject("Newsletter");
+        mail.getMessage().append("Hello");
+        return mail;
+    }
+
+    @Test
+    public void testOneTransactionPerChunk() throws Exception {
+        MailDeliveryReport report = new MailRecipientChunker(3, null, null).send(newNewsletter(6));
+
+        assertTrue(report.isSuccess());
+        assertNull(report.toException());
+        // the To address and 6 Bcc in chunks of 3
+        assertEquals(7, report.getSent().size());
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(3, server.getConnectionCount());
+        assertFalse(server.getLastMessage().contains("Bcc:"));
+        assertTrue(server.getLastMessage().contains("To: newsletter@itlive.be"));
+    }
+
+    @Test
+    public void testChunksSentInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (MailTransportPool pool = new MailTransportPool()) {
+            MailDeliveryReport report = new MailRecipientChunker(10, pool, executor).send(newNewsletter(99));
+
+            assertTrue(report.isSuccess());
+            assertEquals(100, report.getSent().size());
+            assertEquals(10, server.getReceivedCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedChunk() throws Exception {
+        server.refuseRecipient("user4@itlive.be");
+        MailDeliveryReport report = new MailRecipientChunker(3, null, null).send(newNewsletter(8));
+
+        assertFalse(report.isSuccess());
+        // the chunk user2, user3, user4 is not delivered, the others are
+        assertEquals(6, report.getSent().size());
+        assertEquals(2, report.getUnsent().size());
+        assertEquals(1, report.getInvalid().size());
+        assertEquals(new InternetAddress("user4@itlive.be"), report.getInvalid().get(0));
+        assertEquals(1, report.getErrors().size());
+        assertEquals("MailDeliveryReport [sent=6, unsent=2, invalid=1, errors=1]", report.toString());
+        SendFailedException e = report.toException();
+        assertEquals(6, e.getValidSentAddresses().length);
+        assertEquals(1, e.getInvalidAddresses().length);
+        assertEquals(2, server.getReceivedCount());
+    }
+
+    @Test
+    public void testKeepsMetricsAndDeduplicator() throws Exception {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        MailDeduplicator deduplicator = new MailDeduplicator(60000L, 100);
+        MailRecipientChunker chunker = new MailRecipientChunker(2, null, null);
+        for (int i = 0; i < 2; i++) {
+            MailSender mail = newNewsletter(3);
+            mail.setMetrics(metrics);
+            mail.setDeduplicator(deduplicator);
+            chunker.send(mail);
+        }
+
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(2L, metrics.getCount(MailSendPhase.BUILD));
+        assertEquals(1L, metrics.getCount(MailSendPhase.ENCODE));
+        assertEquals(2L, metrics.getCount(MailSendPhase.CONNECT));
+        assertEquals(2L, metrics.getCount(MailSendPhase.TRANSFER));
+        assertEquals(1L, metrics.getCount(MailSendPhase.TOTAL));
+        assertEquals(2L, metrics.getSentCount());
+        assertEquals(1L, deduplicator.getHitCount());
+    }
+}
@@ -0,0 +1,164 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import be.itlive.common.enums.RelaySelectionStrategy;
+
+/**
+ * Test class for MailRelayGroup.
+ *
+ * @author vbiertho
+ */
+public class MailRelayGroupTest {
+
+    private static final Map<String, AtomicInteger> SENT = new ConcurrentHashMap<>();
+
+    private final Address[] recipients = new Address[1];
+
+    private MimeMessage message;
+
+    @Before
+    public void setUp() throws Exception {
+        SENT.clear();
+        recipients[0] = new InternetAddress("to@itlive.be");
+        message = new MimeMessage(relay("builder", false));
+        message.setText("Hello");
+        message.saveChanges();
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        MailRelayGroup group = new MailRelayGroup(RelaySelectionStrategy.WEIGHTED_ROUND_ROBIN, 1000L, 1, 1);
+        group.addRelay(relay("a", false), 3);
+        group.addRelay(relay("b", false), 1);
+        for (int i = 0; i < 40; i++) {
+            group.send(message, recipients);
+        }
+
+        assertEquals(30, SENT.get("a").get());
+        assertEquals(10, SENT.get("b").get());
+    }
+
+    @Test
+    public void testFailoverAndEjection() throws Exception {
+        MailRelayGroup group = new MailRelayGroup(RelaySelectionStrategy.LEAST_OUTSTANDING, 60000L, 2, 2);
+        MailRelayGroup.Relay down = group.addRelay(relay("down", true), 1);
+        MailRelayGroup.Relay up = group.addRelay(relay("up", false), 1);
+        for (int i = 0; i < 10; i++) {
+            assertSame(up, group.send(message, recipients));
+        }
+
+        assertEquals(10, SENT.get("up").get());
+        assertTrue(down.isEjected());
+        assertFalse(up.isEjected());
+    }
+
+    @Test
+    public void testAllRelaysDown() throws Exception {
+        MailRelayGroup group = new MailRelayGroup(RelaySelectionStrategy.LEAST_OUTSTANDING, 60000L, 1, 3);
+        group.addRelay(relay("down1", true), 1);
+        group.addRelay(relay("down2", true), 1);
+        try {
+            group.send(message, recipients);
+            fail("Expected a MessagingException");
+        } catch (final MessagingException e) {
+            assertTrue(e.getMessage().startsWith("Connection refused"));
+        }
+    }
+
+    @Test
+    public void testFailoverOnTransientReplyAfterData() throws Exception {
+        try (FakeSmtpServer failing = new FakeSmtpServer(); FakeSmtpServer server = new FakeSmtpServer()) {
+            failing.setFailEvery(1);
+            message.setFrom(new InternetAddress("noreply@itlive.be"));
+            MailRelayGroup group = new MailRelayGroup(RelaySelectionStrategy.LEAST_OUTSTANDING, 60000L, 1, 2);
+            // the first relay added is tried first
+            MailRelayGroup.Relay down = group.addRelay(failing.newSession(), 1);
+            MailRelayGroup.Relay up = group.addRelay(server.newSession(), 1);
+
+            assertSame(up, group.send(message, recipients));
+            assertEquals(1, failing.getRefusedCount());
+            assertEquals(1, server.getReceivedCount());
+            assertTrue(down.isEjected());
+        }
+    }
+
+    @Test
+    public void testRefusedRecipientNotRetried() throws Exception {
+        try (FakeSmtpServer refusing = new FakeSmtpServer(); FakeSmtpServer server = new FakeSmtpServer()) {
+            refusing.refuseRecipient("to@itlive.be");
+            message.setFrom(new InternetAddress("noreply@itlive.be"));
+            MailRelayGroup group = new MailRelayGroup(RelaySelectionStrategy.LEAST_OUTSTANDING, 60000L, 1, 2);
+            MailRelayGroup.Relay first = group.addRelay(refusing.newSession(), 1);
+            group.addRelay(server.newSession(), 1);
+            try {
+                group.send(message, recipients);
+                fail("Expected a SendFailedException");
+            } catch (final SendFailedException e) {
+                assertEquals(1, e.getInvalidAddresses().length);
+            }
+
+            assertEquals(0, server.getReceivedCount());
+            assertFalse(first.isEjected());
+        }
+    }
+
+    private static Session relay(final String host, final boolean down) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", host);
+        properties.setProperty("test.down", String.valueOf(down));
+        Session session = Session.getInstance(properties);
+        session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", StubTransport.class.getName(), "test", "1"));
+        return session;
+    }
+
+    /**
+     * Transport counting the messages sent to its host, or refusing connections if the session is down.
+     */
+    public static final class StubTransport extends Transport {
+
+        /**
+         * @param session the session.
+         * @param urlname the url name.
+         */
+        public StubTransport(final Session session, final URLName urlname) {
+            super(session, urlname);
+        }
+
+        @Override
+        protected boolean protocolConnect(final String host, final int port, final String user, final String password) throws MessagingException {
+            if (Boolean.parseBoolean(session.getProperty("test.down"))) {
+                throw new MessagingException("Connection refused: " + host);
+            }
+            return true;
+        }
+
+        @Override
+        public void sendMessage(final Message msg, final Address[] addresses) {
+            SENT.computeIfAbsent(session.getProperty("mail.smtp.host"), k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+}
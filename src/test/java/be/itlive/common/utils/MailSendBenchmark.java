@@ -0,0 +1,84 @@
+package be.itlive.common.utils;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link MailSender#sendMail()} to a {@link FakeSmtpServer}, with a new connection per mail or a {@link MailTransportPool}.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark</code>, or <code>-Djmh.includes=MailSendBenchmark</code> to only run this one.
+ * </p>
+ *
+ * @author vbiertho
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailSendBenchmark {
+
+    /**
+     * Latency of the server per SMTP command, in milliseconds.
+     */
+    @Param({ "0", "1" })
+    private long latency;
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    private MailTransportPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FakeSmtpServer();
+        server.setCommandLatencyMillis(latency);
+        session = server.newSession();
+        pool = new MailTransportPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    private MailSender newMail() {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be");
+        mail.setSubject("Benchmark");
+        mail.getMessage().append("Hello, this mail is sent by the benchmark.");
+        return mail;
+    }
+
+    @Benchmark
+    public void sendMailNewConnection() throws MessagingException, UnsupportedEncodingException {
+        newMail().sendMail();
+    }
+
+    @Benchmark
+    public void sendMailPooled() throws MessagingException, UnsupportedEncodingException {
+        MailSender mail = newMail();
+        mail.setTransportPool(pool);
+        mail.sendMail();
+    }
+}
@@ -0,0 +1,281 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.itlive.common.enums.MailSendPhase;
+import be.itlive.common.enums.RelaySelectionStrategy;
+
+/**
+ * Test class for MailSender, sending to a {@link FakeSmtpServer}.
+ *
+ * @author vbiertho
+ */
+public class MailSenderTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private MailSender newMail() {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be");
+        mail.setSubject("Report");
+        mail.getMessage().append("Hello");
+        return mail;
+    }
+
+    @Test
+    public void testSendMail() throws Exception {
+        MailSender mail = newMail();
+        mail.setMailAttachments(Collections.singletonList(new MailAttachment("report.txt", "text/plain",
+                "report content".getBytes(StandardCharsets.UTF_8))));
+        mail.sendMail();
+
+        assertEquals(1, server.getReceivedCount());
+        assertTrue(server.getLastMessage().contains("Subject: Report"));
+        assertTrue(server.getLastMessage().contains("report content"));
+    }
+
+    @Test
+    public void testSendMailWithTransportPool() throws Exception {
+        try (MailTransportPool pool = new MailTransportPool()) {
+            for (int i = 0; i < 5; i++) {
+                MailSender mail = newMail();
+                mail.setTransportPool(pool);
+                mail.sendMail();
+            }
+        }
+
+        assertEquals(5, server.getReceivedCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testSendMailRefused() throws Exception {
+        MailMetricsRecorder metrics = new MailMetricsRecorder();
+        server.setFailEvery(1);
+        MailSender mail = newMail();
+        mail.setMetrics(metrics);
+        try {
+            mail.sendMail();
+            fail("The mail was refused");
+        } catch (final MessagingException e) {
+            assertEquals(1, server.getRefusedCount());
+            assertEquals(0, server.getReceivedCount());
+            assertEquals(1L, metrics.getFailureCount());
+        }
+    }
+
+    @Test
+    public void testSendMailOnceWithDeduplicator() throws Exception {
+        MailDeduplicator deduplicator = new MailDeduplicator(60000L, 100);
+        for (int i = 0; i < 3; i++) {
+            MailSender mail = newMail();
+            mail.setDeduplicator(deduplicator);
+            mail.sendMail();
+        }
+
+        assertEquals(1, server.getReceivedCount());
+        assertEquals(2L, deduplicator.getHitCount());
+    }
+
+    @Test
+    public void testFileAppendableReleasedOnFailure() throws Exception {
+        server.setFailEvery(1);
+        MailSender mail = newMail();
+        mail.setSpillThreshold(4);
+        mail.getFileAppendable("export.csv").append("a;b;c\n1;2;3\n");
+        try {
+            mail.sendMail();
+            fail("The mail was refused");
+        } catch (final MessagingException e) {
+            // the temporary file is deleted all the same
+        }
+        try {
+            mail.sendMail();
+            fail("The released file appendable was not written again");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage().contains("export.csv"));
+        }
+
+        server.setFailEvery(0);
+        mail.getFileAppendable("export.csv").append("a;b;c\n");
+        mail.sendMail();
+        assertEquals(1, server.getReceivedCount());
+        assertTrue(server.getLastMessage().contains("a;b;c"));
+    }
+
+    @Test
+    public void testBatchReleasesFileAppendables() throws Exception {
+        MailSender mail = newMail();
+        mail.setSpillThreshold(4);
+        SpillableBuffer buffer = (SpillableBuffer) mail.getFileAppendable("export.csv");
+        buffer.append("a;b;c\n1;2;3\n");
+        assertTrue(buffer.isSpilled());
+        new MailBatch().sendAll(Collections.singletonList(mail));
+
+        assertEquals(1, server.getReceivedCount());
+        assertFalse(buffer.isSpilled());
+    }
+
+    @Test
+    public void testPhasesRecordedOnce() throws Exception {
+        MailTransportPool pool = new MailTransportPool();
+        PhaseLog poolMetrics = new PhaseLog();
+        pool.setMetrics(poolMetrics);
+        MailRelayGroup relayGroup = new MailRelayGroup(RelaySelectionStrategy.WEIGHTED_ROUND_ROBIN, 1000L, 1, 1);
+        relayGroup.addRelay(session, 1);
+        relayGroup.setTransportPool(pool);
+        try {
+            // direct, pooled, then through the relay group over the same pooled connection
+            for (int i = 0; i < 3; i++) {
+                MailSender mail = newMail();
+                PhaseLog metrics = new PhaseLog();
+                mail.setMetrics(metrics);
+                if (i == 1) {
+                    mail.setTransportPool(pool);
+                } else if (i == 2) {
+                    mail.setRelayGroup(relayGroup);
+                }
+                mail.sendMail();
+
+                List<String> expected = new ArrayList<>(Arrays.asList("BUILD", "ENCODE", "CONNECT", "TRANSFER", "TOTAL"));
+                if (i == 2) {
+                    expected.remove("CONNECT");
+                }
+                assertEquals(expected, metrics.records);
+            }
+        } finally {
+            pool.close();
+        }
+        assertTrue(poolMetrics.records.isEmpty());
+    }
+
+    @Test
+    public void testPooledConnectFailureRecorded() throws Exception {
+        server.close();
+        MailSender mail = newMail();
+        PhaseLog metrics = new PhaseLog();
+        mail.setMetrics(metrics);
+        MailTransportPool pool = new MailTransportPool();
+        mail.setTransportPool(pool);
+        try {
+            mail.sendMail();
+            fail("The server is down");
+        } catch (final MessagingException e) {
+            assertEquals(Arrays.asList("BUILD", "ENCODE", "failed CONNECT"), metrics.records);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testValidateAddresses() throws Exception {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be,,jane@");
+        mail.setCc("jack@itlive.be", " ");
+        mail.setBcc("jill@@itlive.be");
+        Map<String, AddressException> invalid = mail.validateAddresses();
+
+        assertEquals(Arrays.asList("jane@", "jill@@itlive.be"), new ArrayList<>(invalid.keySet()));
+        mail.setRecep("john@itlive.be", "");
+        mail.setBcc();
+        assertTrue(mail.validateAddresses().isEmpty());
+    }
+
+    @Test
+    public void testBlankAddressesSkipped() throws Exception {
+        MailSender mail = new MailSender(session, "noreply@itlive.be", "john@itlive.be,, ");
+        mail.setCc("", "jack@itlive.be");
+        mail.setBcc(" ");
+        MimeMessage message = mail.createMessage();
+
+        assertEquals(1, message.getRecipients(RecipientType.TO).length);
+        assertEquals(new InternetAddress("jack@itlive.be"), message.getRecipients(RecipientType.CC)[0]);
+        assertNull(message.getRecipients(RecipientType.BCC));
+    }
+
+    @Test
+    public void testZipThreshold() throws Exception {
+        MailSender mail = newMail();
+        mail.setZipThreshold(100L);
+        mail.setSpillThreshold(50);
+        mail.getFileAppendable("small.csv").append("a;b;c\n");
+        Appendable large = mail.getFileAppendable("large.csv");
+        for (int i = 0; i < 20; i++) {
+            large.append("a;b;c;d;e\n");
+        }
+        mail.setMailAttachments(Arrays.asList(new MailAttachment("large.pdf", "application/pdf", new byte[101]),
+                new MailAttachment("small.pdf", "application/pdf", new byte[100]),
+                new MailAttachment("stream.pdf", "application/pdf", () -> new ByteArrayInputStream(new byte[1000]))));
+        MimeMultipart multipart = (MimeMultipart) mail.createMessage().getContent();
+
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 1; i < multipart.getCount(); i++) {
+            fileNames.add(multipart.getBodyPart(i).getFileName());
+        }
+        // the size of the stream is unknown, it is not zipped
+        assertEquals(Arrays.asList("large.pdf.zip", "small.pdf", "stream.pdf", "small.csv", "large.csv.zip"), fileNames);
+        assertEquals("application/zip", multipart.getBodyPart(5).getDataHandler().getContentType());
+        mail.releaseFileBuffers();
+    }
+
+    /**
+     * Metrics logging the recorded phases and failures.
+     */
+    private static final class PhaseLog implements MailMetrics {
+
+        private final List<String> records = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void recordPhase(final MailSendPhase phase, final long nanos) {
+            records.add(phase.name());
+        }
+
+        @Override
+        public void recordSent(final long bytes) {
+        }
+
+        @Override
+        public void recordFailure(final MailSendPhase phase, final Throwable error) {
+            records.add("failed " + phase.name());
+        }
+
+        @Override
+        public void recordQueueDepth(final int depth) {
+        }
+    }
+}
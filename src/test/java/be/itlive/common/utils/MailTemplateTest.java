@@ -0,0 +1,59 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+/**
+ * Test class for MailTemplate.
+ *
+ * @author vbiertho
+ */
+public class MailTemplateTest {
+
+    private final Session session = Session.getInstance(new Properties());
+
+    @Test
+    public void testNewMailUsesTemplate() throws Exception {
+        MailTemplate template = MailTemplate.builder(session).sender("noreply@itlive.be", "ITLive").replyTo("support@itlive.be")
+                .contentType("text/html; charset=\"UTF-8\"").build();
+        MailSender mail = template.newMail("john@itlive.be", "jane@itlive.be");
+        mail.setSubject("Hello");
+
+        MimeMessage msg = mail.createMessage();
+
+        assertSame(template, mail.getTemplate());
+        assertSame(session, mail.getSession());
+        assertEquals("noreply@itlive.be", mail.getSender());
+        assertEquals("ITLive", mail.getSenderName());
+        assertEquals("text/html; charset=\"UTF-8\"", mail.getContentType());
+        assertArrayEquals(new Address[] { new InternetAddress("noreply@itlive.be", "ITLive") }, msg.getFrom());
+        assertArrayEquals(new Address[] { new InternetAddress("support@itlive.be") }, msg.getReplyTo());
+        assertEquals(2, msg.getRecipients(RecipientType.TO).length);
+    }
+
+    @Test
+    public void testMailOverridesTemplate() throws Exception {
+        MailTemplate template = MailTemplate.builder(session).sender("noreply@itlive.be").build();
+        MailSender mail = template.newMail("john@itlive.be");
+        mail.setSender("sales@itlive.be");
+
+        assertEquals("sales@itlive.be", ((InternetAddress) mail.createMessage().getFrom()[0]).getAddress());
+        assertEquals("text/plain; charset=\"UTF-8\"", template.getContentType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidReplyTo() {
+        MailTemplate.builder(session).sender("noreply@itlive.be").replyTo("not an address").build();
+    }
+}
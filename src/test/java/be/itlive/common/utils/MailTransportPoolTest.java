@@ -0,0 +1,172 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for MailTransportPool, sending to a {@link FakeSmtpServer}.
+ *
+ * @author vbiertho
+ */
+public class MailTransportPoolTest {
+
+    private FakeSmtpServer server;
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSmtpServer();
+        session = server.newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private MimeMessage newMessage() throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("noreply@itlive.be"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("john@itlive.be"));
+        message.setSubject("Report");
+        message.setText("Hello");
+        return message;
+    }
+
+    @Test
+    public void testIdleTransportReused() throws Exception {
+        try (MailTransportPool pool = new MailTransportPool()) {
+            for (int i = 0; i < 3; i++) {
+                pool.send(session, newMessage());
+            }
+            assertEquals(1, pool.getIdleCount(session));
+        }
+
+        assertEquals(3, server.getReceivedCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testBorrowBlocksWhenExhausted() throws Exception {
+        try (MailTransportPool pool = new MailTransportPool(1, MailTransportPool.DEFAULT_MAX_IDLE_MILLIS)) {
+            Transport borrowed = pool.borrow(session);
+            CompletableFuture<Transport> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pool.borrow(session);
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(200L);
+            assertFalse(waiting.isDone());
+
+            pool.release(session, borrowed);
+            Transport next = waiting.get(5, TimeUnit.SECONDS);
+            assertSame(borrowed, next);
+            pool.release(session, next);
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testExpiredTransportEvicted() throws Exception {
+        try (MailTransportPool pool = new MailTransportPool(2, 50L)) {
+            pool.send(session, newMessage());
+            assertEquals(1, pool.getIdleCount(session));
+            Thread.sleep(100L);
+
+            assertEquals(1, pool.evictIdle());
+            assertEquals(0, pool.getIdleCount(session));
+        }
+    }
+
+    @Test
+    public void testDisconnectedTransportNotReused() throws Exception {
+        // validated at each reuse
+        try (MailTransportPool pool = new MailTransportPool(2, MailTransportPool.DEFAULT_MAX_IDLE_MILLIS, 0L)) {
+            pool.send(session, newMessage());
+            server.dropConnections();
+            Thread.sleep(50L);
+            pool.send(session, newMessage());
+        }
+
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testSendRetriedOnFreshConnection() throws Exception {
+        // reused without validation, the send fails on the dropped connection
+        try (MailTransportPool pool = new MailTransportPool()) {
+            pool.send(session, newMessage());
+            server.dropConnections();
+            Thread.sleep(50L);
+            pool.send(session, newMessage());
+            assertEquals(1, pool.getIdleCount(session));
+        }
+
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void testRefusedRecipientKeepsConnection() throws Exception {
+        server.refuseRecipient("john@itlive.be");
+        try (MailTransportPool pool = new MailTransportPool()) {
+            try {
+                pool.send(session, newMessage());
+                fail("The recipient was refused");
+            } catch (final SendFailedException e) {
+                // 550 to RCPT, the transaction was reset and the connection is fine
+            }
+            assertEquals(1, pool.getIdleCount(session));
+        }
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void testFailureAfterDataInvalidatesConnection() throws Exception {
+        server.setFailEvery(1);
+        try (MailTransportPool pool = new MailTransportPool()) {
+            try {
+                pool.send(session, newMessage());
+                fail("The mail was refused");
+            } catch (final SendFailedException e) {
+                // 451 after DATA
+            }
+            assertEquals(0, pool.getIdleCount(session));
+        }
+        assertEquals(1, server.getRefusedCount());
+    }
+
+    @Test
+    public void testServiceClosingRetriedOnFreshConnection() throws Exception {
+        try (MailTransportPool pool = new MailTransportPool()) {
+            pool.send(session, newMessage());
+            server.setDataReply("421 Service closing", 1);
+            pool.send(session, newMessage());
+            assertEquals(1, pool.getIdleCount(session));
+        }
+
+        assertEquals(1, server.getRefusedCount());
+        assertEquals(2, server.getReceivedCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+}
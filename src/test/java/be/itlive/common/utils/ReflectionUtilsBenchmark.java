@@ -0,0 +1,148 @@
+package be.itlive.common.utils;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link ReflectionUtils#collectFieldsByAnnotation(Class, Class...)} on an entity hierarchy of five levels, against the scan of
+ * the class chain it used to do at each call.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark -Djmh.includes=ReflectionUtilsBenchmark</code>.
+ * </p>
+ *
+ * @author vbiertho
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReflectionUtilsBenchmark {
+
+    /**
+     * Marks an identifier.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Id {
+    }
+
+    /**
+     * Marks a persisted column.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Column {
+    }
+
+    /**
+     * Marks a relation.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Relation {
+    }
+
+    static class AbstractEntity {
+        @Id
+        @Column
+        private Long id;
+        @Column
+        private Integer version;
+        private transient boolean dirty;
+    }
+
+    static class AuditedEntity extends AbstractEntity {
+        @Column
+        private String createdBy;
+        @Column
+        private String updatedBy;
+        @Column
+        private Long createdAt;
+        @Column
+        private Long updatedAt;
+    }
+
+    static class Party extends AuditedEntity {
+        @Column
+        private String name;
+        @Column
+        private String email;
+        @Relation
+        private List<Object> addresses;
+        private transient String displayName;
+    }
+
+    static class Customer extends Party {
+        @Column
+        private String vatNumber;
+        @Relation
+        private List<Object> orders;
+        @Relation
+        private Object account;
+        @Column
+        private Boolean active;
+    }
+
+    static class PremiumCustomer extends Customer {
+        @Column
+        private Integer level;
+        @Column
+        private Long since;
+        @Relation
+        private Object manager;
+        private transient Object cache;
+    }
+
+    @Benchmark
+    public List<Field> oneAnnotationScan() {
+        return scan(PremiumCustomer.class, Column.class);
+    }
+
+    @Benchmark
+    public List<Field> oneAnnotationIndexed() {
+        return ReflectionUtils.collectFieldsByAnnotation(PremiumCustomer.class, Column.class);
+    }
+
+    @Benchmark
+    public List<Field> twoAnnotationsScan() {
+        return scan(PremiumCustomer.class, Id.class, Relation.class);
+    }
+
+    @Benchmark
+    public List<Field> twoAnnotationsIndexed() {
+        return ReflectionUtils.collectFieldsByAnnotation(PremiumCustomer.class, Id.class, Relation.class);
+    }
+
+    /**
+     * The former implementation of collectFieldsByAnnotation.
+     */
+    @SafeVarargs
+    private static List<Field> scan(final Class<?> c, final Class<? extends Annotation>... annotations) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> clazz = c; clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                for (Class<? extends Annotation> annotation : annotations) {
+                    if (field.isAnnotationPresent(annotation)) {
+                        fields.add(field);
+                        break;
+                    }
+                }
+            }
+        }
+        return fields;
+    }
+}
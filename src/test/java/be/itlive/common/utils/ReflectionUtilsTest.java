@@ -0,0 +1,156 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import be.itlive.common.enums.MailSendPhase;
+
+/**
+ * Test class for ReflectionUtils and ClassFieldModel.
+ *
+ * @author vbiertho
+ */
+public class ReflectionUtilsTest {
+
+    /**
+     * Marks an identifier.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Id {
+    }
+
+    /**
+     * Marks a persisted column.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Column {
+    }
+
+    /**
+     * A parent entity.
+     */
+    static class Parent {
+
+        private static final String CONSTANT = "constant";
+
+        @Id
+        @Column
+        private Long id;
+
+        @Column
+        protected String name;
+    }
+
+    /**
+     * A child entity.
+     */
+    static class Child extends Parent {
+
+        private transient String cache;
+
+        @Column
+        private List<String> tags;
+
+        @Deprecated
+        private String name;
+    }
+
+    private static List<String> names(final List<Field> fields) {
+        List<String> names = new ArrayList<>();
+        for (Field field : fields) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testCollectFields() {
+        List<Field> fields = ReflectionUtils.collectFields(Child.class);
+
+        assertEquals(Arrays.asList("cache", "tags", "name", "CONSTANT", "id", "name"), names(fields));
+        assertSame(fields, ReflectionUtils.collectFields(Child.class));
+    }
+
+    @Test
+    public void testGetIndexedClasses() throws Exception {
+        List<Class<? extends Object>> named = new ArrayList<>();
+        for (Class<? extends Object> clazz : ReflectionUtils.getClasses("be.itlive.common.enums", false)) {
+            if (ClassIndex.isNamed(clazz.getName())) {
+                named.add(clazz);
+            }
+        }
+
+        // no index in the build output of the tests, so the package is scanned
+        assertEquals(named, ReflectionUtils.getIndexedClasses("be.itlive.common.enums", false));
+        assertTrue(named.contains(MailSendPhase.class));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCollectFieldsUnmodifiable() {
+        ReflectionUtils.collectFields(Child.class).clear();
+    }
+
+    @Test
+    public void testCollectFieldsAsMap() throws Exception {
+        Map<String, Field> fields = ReflectionUtils.collectFieldsAsMap(Child.class);
+
+        assertEquals(5, fields.size());
+        assertEquals(Parent.class.getDeclaredField("name"), fields.get("name"));
+        assertEquals(new HashSet<>(Arrays.asList("cache", "tags", "CONSTANT", "id")),
+                ReflectionUtils.collectFieldsdName(Child.class, "name"));
+    }
+
+    @Test
+    public void testCollectFieldsExcludingModifiers() {
+        List<Field> fields = ReflectionUtils.collectFields(Child.class, Modifier.STATIC, Modifier.TRANSIENT);
+
+        assertEquals(Arrays.asList("tags", "name", "id", "name"), names(fields));
+        assertEquals(new HashSet<>(Arrays.asList("tags", "id", "name")),
+                ReflectionUtils.collectFieldsAsMap(Child.class, Modifier.STATIC, Modifier.TRANSIENT).keySet());
+    }
+
+    @Test
+    public void testCollectFieldsByType() {
+        assertEquals(Arrays.asList("tags"), names(ReflectionUtils.collectFields(Child.class, List.class)));
+        assertEquals(Arrays.asList("cache", "name", "CONSTANT", "name"), names(ReflectionUtils.collectFields(Child.class, String.class)));
+    }
+
+    @Test
+    public void testModelSharesSuperclassFields() {
+        ClassFieldModel child = ClassFieldModel.of(Child.class);
+
+        assertSame(child, ClassFieldModel.of(Child.class));
+        assertSame(ClassFieldModel.of(Parent.class).getFields().get(1), child.getFields().get(4));
+        assertTrue(ClassFieldModel.of(Object.class).getFields().isEmpty());
+    }
+
+    @Test
+    public void testCollectFieldsByAnnotation() {
+        assertEquals(Arrays.asList("id"), names(ReflectionUtils.collectFieldsByAnnotation(Child.class, Id.class)));
+        assertEquals(Arrays.asList("tags", "id", "name"), names(ReflectionUtils.collectFieldsByAnnotation(Child.class, Column.class)));
+        assertEquals(Arrays.asList("tags", "name", "id", "name"),
+                names(ReflectionUtils.collectFieldsByAnnotation(Child.class, Id.class, Deprecated.class, Column.class)));
+        assertTrue(ReflectionUtils.collectFieldsByAnnotation(Child.class, Retention.class).isEmpty());
+    }
+
+    @Test
+    public void testCollectFieldsByAnnotationAsMap() throws Exception {
+        Map<String, Field> fields = ReflectionUtils.collectFieldsByAnnotationAsMap(Child.class, Deprecated.class, Id.class);
+
+        assertEquals(new HashSet<>(Arrays.asList("id", "name")), fields.keySet());
+        assertEquals(Child.class.getDeclaredField("name"), fields.get("name"));
+    }
+}
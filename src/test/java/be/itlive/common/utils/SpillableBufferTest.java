@@ -0,0 +1,89 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.activation.DataSource;
+
+import org.junit.Test;
+
+/**
+ * Test class for SpillableBuffer.
+ *
+ * @author vbiertho
+ */
+public class SpillableBufferTest {
+
+    @Test
+    public void testStaysInMemoryBelowThreshold() throws Exception {
+        try (SpillableBuffer buffer = new SpillableBuffer(10, StandardCharsets.UTF_8)) {
+            buffer.append("0123").append('4').append("xx56789xx", 2, 7);
+
+            assertFalse(buffer.isSpilled());
+            assertEquals(10L, buffer.length());
+            assertEquals("0123456789", read(buffer.getDataSource("a.txt", "text/plain")));
+        }
+    }
+
+    @Test
+    public void testSpillsAboveThreshold() throws Exception {
+        SpillableBuffer buffer = new SpillableBuffer(10, StandardCharsets.UTF_8);
+        buffer.append("0123456789");
+        buffer.append("été");
+
+        assertTrue(buffer.isSpilled());
+        assertEquals(13L, buffer.length());
+        DataSource source = buffer.getDataSource("a.txt", "text/plain");
+        assertEquals("a.txt", source.getName());
+        assertEquals("0123456789été", read(source));
+
+        buffer.append('!');
+        assertEquals("0123456789été!", read(buffer.getDataSource("a.txt", "text/plain")));
+
+        buffer.close();
+        assertFalse(buffer.isSpilled());
+        assertEquals(0L, buffer.length());
+    }
+
+    @Test
+    public void testEncodesMemoryAsGetBytes() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            // 1, 2, 3 and 4 bytes in UTF-8, the last one being a surrogate pair
+            text.append("aé€\uD83D\uDE00");
+        }
+        text.append('\uD83D');
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16)) {
+            try (SpillableBuffer buffer = new SpillableBuffer(Integer.MAX_VALUE, charset)) {
+                buffer.append(text);
+                DataSource source = buffer.getDataSource("a.txt", "text/plain");
+
+                assertArrayEquals(charset.name(), text.toString().getBytes(charset), readBytes(source));
+            }
+        }
+    }
+
+    private static String read(final DataSource source) throws Exception {
+        return new String(readBytes(source), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(final DataSource source) throws Exception {
+        try (InputStream in = source.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package be.itlive.common.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Test;
+
+/**
+ * Test class for ZipDataSource.
+ *
+ * @author vbiertho
+ */
+public class ZipDataSourceTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            csv.append(i).append(";lorem;ipsum\n");
+        }
+        byte[] content = csv.toString().getBytes("UTF-8");
+        ByteArrayDataSource source = new ByteArrayDataSource(content, "text/csv");
+        source.setName("export.csv");
+        ZipDataSource zip = new ZipDataSource(source, Deflater.BEST_SPEED);
+
+        assertEquals("export.csv.zip", zip.getName());
+        assertEquals("application/zip", zip.getContentType());
+
+        byte[] zipped;
+        try (InputStream in = zip.getInputStream()) {
+            zipped = readAll(in);
+        }
+        assertTrue(zipped.length < content.length / 4);
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zipped))) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("export.csv", entry.getName());
+            assertArrayEquals(content, readAll(in));
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new ZipDataSource(new ByteArrayDataSource(new byte[0], "text/csv"), 12);
+    }
+
+    private static byte[] readAll(final InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}